@@ -1,17 +1,66 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 import simpledb.Aggregator.Op;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min), grouped by any number of columns.  All the aggregates are computed in
+ * one pass over the child: a single aggregate with at most one group column
+ * uses an {@link IntegerAggregator} or {@link StringAggregator}, anything
+ * else a {@link GroupAggregator}.
+ * <p/>
+ * The groups are held in memory up to a budget (see {@link #setMaxGroups}).
+ * Past that, the partial aggregates of the groups in memory are split on a
+ * hash of the group value into {@link #PARTITIONS} temporary heap files and
+ * forgotten, and aggregation carries on from no groups.  Once the child is
+ * used up the remaining groups are spilled too, and each partition is then
+ * aggregated on its own by merging its partial aggregates, which brings
+ * together the pieces of any group that was spilled more than once.  A
+ * partition with more groups than the budget is split again with a
+ * different hash, up to {@link #MAX_PASSES} partitioning passes; after that
+ * it is aggregated in memory whatever its size.  The results of each
+ * partition are returned as they are read from the aggregator, so only one
+ * partition's groups are in memory at a time.
  */
 public class Aggregate extends Operator {
     
     private static final long serialVersionUID = 1L;
+    
+    /**
+     * Default maximum number of groups held in memory by one aggregate.
+     */
+    public static final int DEFAULT_MAX_GROUPS = 1 << 20;
+    
+    private static int maxGroups = DEFAULT_MAX_GROUPS;
+    
+    /**
+     * Number of partitions the groups are split into by each partitioning
+     * pass.
+     */
+    public static final int PARTITIONS = 16;
+    
+    /**
+     * Maximum number of partitioning passes over any group.
+     */
+    public static final int MAX_PASSES = 3;
+    
+    /**
+     * A file of partial aggregates, and the number of partitioning passes
+     * that produced it.
+     */
+    private static class Partition {
+        final TempHeapFile file;
+        final int pass;
+        
+        Partition(TempHeapFile file, int pass) {
+            this.file = file;
+            this.pass = pass;
+        }
+    }
+    
     private TupleDesc td = null;
     private DbIterator child = null;
     private DbIterator it = null;
@@ -20,6 +69,37 @@ public class Aggregate extends Operator {
     private String gFieldName = null;
     private String aFieldName = null;
     private int afield, gfield;
+    private final int[] afields, gfields;
+    private final Aggregator.Op[] aops;
+    // maximum number of groups in memory
+    private final int budget;
+    
+    // true if groups were spilled to temporary files
+    private transient boolean spilled;
+    // partitions still to be aggregated
+    private transient LinkedList<Partition> pending;
+    
+    /**
+     * @return the maximum number of groups held in memory by an aggregate
+     */
+    public static int getMaxGroups() {
+        return maxGroups;
+    }
+    
+    /**
+     * Sets the maximum number of groups held in memory by aggregates created
+     * from now on.
+     */
+    public static void setMaxGroups(int groups) {
+        if (groups < 1) {
+            throw new IllegalArgumentException("group budget must be at least one group");
+        }
+        maxGroups = groups;
+    }
+    
+    public static void resetMaxGroups() {
+        maxGroups = DEFAULT_MAX_GROUPS;
+    }
     
     /**
      * Constructor.
@@ -35,10 +115,24 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
-        this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this(child, afield, gfield, aop, maxGroups);
+    }
+    
+    /**
+     * Constructor with an explicit budget.
+     *
+     * @param child     The DbIterator that is feeding us tuples.
+     * @param afield    The column over which we are computing an aggregate.
+     * @param gfield    The column over which we are grouping the result, or -1
+     *                  if there is no grouping
+     * @param aop       The aggregation operator to use
+     * @param maxGroups The maximum number of groups to hold in memory
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop,
+                     int maxGroups) {
+        this(child, new int[]{afield},
+             gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield},
+             new Aggregator.Op[]{aop}, maxGroups);
         if (this.aop == Op.SC_AVG)
             if (this.gfield == Aggregator.NO_GROUPING)
                 this.afield = 0;
@@ -46,9 +140,54 @@ public class Aggregate extends Operator {
                 this.afield = 1;
                 this.gfield = 0;
             }
+    }
+    
+    /**
+     * Constructor for several aggregates, grouped by several columns.  The
+     * output tuples are the group by columns, in the order given, followed by
+     * the aggregates, in the order given; SUM_COUNT takes two columns.
+     *
+     * @param child   The DbIterator that is feeding us tuples.
+     * @param afields The column over which each aggregate is computed.
+     * @param gfields The columns over which we are grouping the result, most
+     *                significant first; empty if there is no grouping
+     * @param aops    The aggregation operator of each aggregate
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, maxGroups);
+    }
+    
+    /**
+     * Constructor for several aggregates with an explicit budget.
+     *
+     * @param child     The DbIterator that is feeding us tuples.
+     * @param afields   The column over which each aggregate is computed.
+     * @param gfields   The columns over which we are grouping the result, most
+     *                  significant first; empty if there is no grouping
+     * @param aops      The aggregation operator of each aggregate
+     * @param maxGroups The maximum number of groups to hold in memory
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops,
+                     int maxGroups) {
+        if (maxGroups < 1) {
+            throw new IllegalArgumentException("group budget must be at least one group");
+        }
+        if (afields.length == 0 || afields.length != aops.length) {
+            throw new IllegalArgumentException("need one operator for each of at least one aggregate");
+        }
+        this.budget = maxGroups;
+        this.child = child;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+        this.afield = afields[0];
+        this.gfield = gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+        this.aop = aops[0];
         TupleDesc child_td = child.getTupleDesc();
         
-        if (child_td.getFieldType(afield) == Type.INT_TYPE) {
+        if (aops.length > 1 || gfields.length > 1) {
+            this.agg = new GroupAggregator(child_td, gfields, afields, aops);
+        } else if (child_td.getFieldType(afield) == Type.INT_TYPE) {
             this.agg = new IntegerAggregator(gfield,
                                              gfield == Aggregator.NO_GROUPING ? null
                                              : child_td.getFieldType(gfield), afield, aop);
@@ -58,60 +197,27 @@ public class Aggregate extends Operator {
                                             : child_td.getFieldType(gfield), afield, aop);
         }
         
-        if (gfield == Aggregator.NO_GROUPING) {
-            int nFields = 1;
-            if (aop == Op.SUM_COUNT)
-                nFields = 2;
-            Type typeAr[] = new Type[nFields];
-            String fields[] = new String[nFields];
-            
-            typeAr[0] = Type.INT_TYPE;//child_td.getFieldType(afield);
-            
-            if (aop == Op.SUM_COUNT) {
-                typeAr[1] = Type.INT_TYPE;
-                fields[1] = "";
-            }
-            
-            //	    if (aop == Op.SC_AVG) {
-            //		fields[0] = nameOfAggregatorOp(Op.SC_AVG) + "("
-            //		        + child_td.getFieldName(afield) + ")";
-            //
-            //	    } else
-            fields[0] = nameOfAggregatorOp(aop) + "("
-            + child_td.getFieldName(afield) + ")";
-            aFieldName = fields[0];
-            
-            td = new TupleDesc(typeAr, fields);
-        } else {
-            int nFields = 2;
-            if (aop == Op.SUM_COUNT)
-                nFields = 3;
-            
-            Type typeAr[] = new Type[nFields];
-            String fields[] = new String[nFields];
-            
-            typeAr[0] = child_td.getFieldType(gfield);
-            typeAr[1] = Type.INT_TYPE;//child_td.getFieldType(afield);
-            fields[0] = child_td.getFieldName(gfield);
-            gFieldName = fields[0];
-            
-            //	    if (aop == Op.SC_AVG) {
-            //		fields[1] = nameOfAggregatorOp(Op.SC_AVG) + "("
-            //		        + child_td.getFieldName(afield) + ")";
-            //
-            //	    } else
-            fields[1] = nameOfAggregatorOp(aop) + "("
-            + child_td.getFieldName(afield) + ")";
-            
-            if (aop == Op.SUM_COUNT) {
-                typeAr[2] = Type.INT_TYPE;
-                fields[2] = "";
+        ArrayList<Type> typeAr = new ArrayList<Type>();
+        ArrayList<String> fields = new ArrayList<String>();
+        for (int g : gfields) {
+            typeAr.add(child_td.getFieldType(g));
+            fields.add(child_td.getFieldName(g));
+        }
+        for (int i = 0; i < afields.length; i++) {
+            typeAr.add(Type.INT_TYPE);//child_td.getFieldType(afield);
+            fields.add(nameOfAggregatorOp(aops[i]) + "("
+                       + child_td.getFieldName(afields[i]) + ")");
+            if (aops[i] == Op.SUM_COUNT) {
+                typeAr.add(Type.INT_TYPE);
+                fields.add("");
             }
-            
-            aFieldName = fields[1];
-            
-            td = new TupleDesc(typeAr, fields);
         }
+        if (gfields.length > 0)
+            gFieldName = fields.get(0);
+        aFieldName = fields.get(gfields.length);
+        
+        td = new TupleDesc(typeAr.toArray(new Type[typeAr.size()]),
+                           fields.toArray(new String[fields.size()]));
     }
     
     /**
@@ -154,6 +260,35 @@ public class Aggregate extends Operator {
         return this.aop;
     }
     
+    /**
+     * @return the group by fields in the <b>INPUT</b> tuples, most
+     * significant first; empty if there is no grouping
+     */
+    public int[] getGroupFields() {
+        return gfields.clone();
+    }
+    
+    /**
+     * @return the field each aggregate is computed over
+     */
+    public int[] getAggregateFields() {
+        return afields.clone();
+    }
+    
+    /**
+     * @return the operator of each aggregate
+     */
+    public Aggregator.Op[] getAggregateOps() {
+        return aops.clone();
+    }
+    
+    /**
+     * @return the aggregator the child's tuples are merged into
+     */
+    Aggregator aggregator() {
+        return agg;
+    }
+    
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         return aop.toString();
     }
@@ -161,8 +296,6 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
     TransactionAbortedException {
         child.open();
-        if (it != null)
-            it.open();
         super.open();
     }
     
@@ -171,28 +304,165 @@ public class Aggregate extends Operator {
      * field is the field by which we are grouping, and the second field is the
      * result of computing the aggregate, If there is no group by field, then
      * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * aggregate. With several group by fields or aggregates, the group by
+     * fields come first and the aggregates after them. Should return null if
+     * there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // Actually perform the aggregation
         if (it == null) {
-            while (child.hasNext()) {
-                Tuple t = child.next();
-                agg.mergeTupleIntoGroup(t);
-            }
-            
-            it = agg.iterator();
-            it.open();
+            aggregateChild();
         }
         
-        if (it.hasNext())
-            return it.next();
-        return null;
+        while (!it.hasNext()) {
+            if (pending == null || pending.isEmpty())
+                return null;
+            aggregatePartition(pending.removeFirst());
+        }
+        return it.next();
+    }
+    
+    /**
+     * Merges the child's tuples into the aggregator, spilling the groups
+     * whenever there are more than the budget, and points the iterator at
+     * the groups in memory, if they were never spilled.  The child is read
+     * by batch; a batch is merged all at once unless its rows could take the
+     * aggregator over the budget, in which case it is merged row by row.
+     */
+    private void aggregateChild() throws DbException, TransactionAbortedException {
+        TempHeapFile[] parts = new TempHeapFile[PARTITIONS];
+        pending = new LinkedList<Partition>();
+        BatchIterator batches = BatchAdapter.of(child);
+        try {
+            TupleBatch batch;
+            while ((batch = batches.nextBatch()) != null) {
+                if (agg.numGroups() + batch.size() <= budget) {
+                    agg.mergeBatchIntoGroups(batch);
+                    continue;
+                }
+                for (int r = 0; r < batch.size(); r++) {
+                    agg.mergeTupleIntoGroup(batch.getTuple(r));
+                    if (agg.numGroups() > budget) {
+                        spillGroups(1, parts);
+                        spilled = true;
+                    }
+                }
+            }
+            if (spilled) {
+                spillGroups(1, parts);
+            }
+        } finally {
+            queue(parts, 1);
+        }
+        it = agg.iterator();
+        it.open();
+    }
+    
+    /**
+     * Merges the partial aggregates of a partition into the emptied
+     * aggregator, splitting them again if there are more groups than the
+     * budget, and points the iterator at the groups in memory.
+     */
+    private void aggregatePartition(Partition p) throws DbException, TransactionAbortedException {
+        it.close();
+        agg.clear();
+        int pass = p.pass + 1;
+        TempHeapFile[] parts = new TempHeapFile[PARTITIONS];
+        boolean split = false;
+        try {
+            DbFileIterator in = p.file.iterator(null);
+            in.open();
+            while (in.hasNext()) {
+                agg.mergePartialIntoGroup(in.next());
+                if (agg.numGroups() > budget && p.pass < MAX_PASSES) {
+                    spillGroups(pass, parts);
+                    split = true;
+                }
+            }
+            in.close();
+            if (split) {
+                spillGroups(pass, parts);
+            }
+        } finally {
+            p.file.delete();
+            queue(parts, pass);
+        }
+        it = agg.iterator();
+        it.open();
     }
     
+    /**
+     * Appends the partial aggregates of the groups in memory to their
+     * partitions of the given pass, creating each partition's file on its
+     * first group, and empties the aggregator.
+     */
+    private void spillGroups(int pass, TempHeapFile[] parts)
+            throws DbException, TransactionAbortedException {
+        DbIterator partials = agg.partials();
+        partials.open();
+        try {
+            while (partials.hasNext()) {
+                Tuple t = partials.next();
+                int h = 0;
+                for (int k = 0; k < gfields.length; k++) {
+                    h = 31 * h + t.getField(k).hashCode();
+                }
+                int i = HashEquiJoin.partitionOf(h, pass, PARTITIONS);
+                if (parts[i] == null) {
+                    parts[i] = new TempHeapFile(partials.getTupleDesc());
+                }
+                parts[i].append(t);
+            }
+        } catch (IOException e) {
+            throw new DbException("Couldn't write spill file: " + e.getMessage());
+        }
+        partials.close();
+        agg.clear();
+    }
+    
+    /**
+     * Puts the non-empty partitions of a pass at the front of the pending
+     * list, so that a partition's pieces are aggregated before its siblings.
+     */
+    private void queue(TempHeapFile[] parts, int pass) {
+        for (int i = PARTITIONS - 1; i >= 0; i--) {
+            if (parts[i] != null) {
+                pending.addFirst(new Partition(parts[i], pass));
+            }
+        }
+    }
+    
+    /**
+     * Deletes the files of the partitions still to be aggregated and forgets
+     * the groups in memory.
+     */
+    private void discard() {
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+        if (pending != null) {
+            for (Partition p : pending) {
+                p.file.delete();
+            }
+            pending = null;
+        }
+        spilled = false;
+        agg.clear();
+    }
+    
+    /**
+     * Starts the results over.  If the groups were never spilled they are
+     * still in memory and are simply returned again; otherwise the spilled
+     * partitions have been used up, so the child is aggregated again.
+     */
     public void rewind() throws DbException, TransactionAbortedException {
-        close();
-        open();
+        if (it != null && !spilled) {
+            it.rewind();
+        } else {
+            discard();
+            child.rewind();
+        }
     }
     
     /**
@@ -213,9 +483,7 @@ public class Aggregate extends Operator {
     public void close() {
         super.close();
         child.close();
-        if (it != null) {
-            it.close();
-        }
+        discard();
     }
     
     @Override
@@ -76,10 +76,46 @@ public interface Aggregator extends Serializable {
     public void mergeTupleIntoGroup(Tuple tup);
 
     /**
-     * Create a DbIterator over group aggregate results.
+     * Merge every row of a batch into the aggregate for its group, as
+     * {@link #mergeTupleIntoGroup} would each of them.
+     *
+     * @param batch the rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroups(TupleBatch batch);
+
+    /**
+     * Create a DbIterator over group aggregate results.  The results are
+     * produced from the groups as they are read, so the iterator should be
+     * used up before more tuples are merged or the aggregator is cleared.
      *
      * @see simpledb.TupleIterator for a possible helper
      */
     public DbIterator iterator();
 
+    /**
+     * @return the number of distinct groups merged into so far
+     */
+    public int numGroups();
+
+    /**
+     * Create a DbIterator over the partial aggregates of the groups: the
+     * group value, if grouping, followed by the accumulated values from which
+     * the aggregate can be resumed with {@link #mergePartialIntoGroup}.  Like
+     * {@link #iterator}, it reads the groups as it goes.
+     */
+    public DbIterator partials();
+
+    /**
+     * Merge a partial aggregate, as returned by {@link #partials} of an
+     * aggregator constructed with the same arguments, into its group.
+     *
+     * @param partial the partial aggregate of one group
+     */
+    public void mergePartialIntoGroup(Tuple partial);
+
+    /**
+     * Forget all groups merged so far.
+     */
+    public void clear();
+
 }
@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchAdapter reads an iterator that only returns tuples one at a time as
+ * a {@link BatchIterator}, collecting its tuples into a batch of its own.
+ */
+class BatchAdapter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DbIterator it;
+    private transient TupleBatch batch;
+
+    private BatchAdapter(DbIterator it) {
+        this.it = it;
+    }
+
+    /**
+     * @return the iterator itself if it returns batches, an adapter
+     * collecting its tuples into batches otherwise
+     */
+    static BatchIterator of(DbIterator it) {
+        if (it instanceof BatchIterator) {
+            return (BatchIterator) it;
+        }
+        return new BatchAdapter(it);
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null) {
+            batch = new TupleBatch(it.getTupleDesc());
+        }
+        return batch.fill(it);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        it.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return it.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        return it.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return it.getTupleDesc();
+    }
+
+    public void close() {
+        it.close();
+    }
+}
@@ -0,0 +1,25 @@
+package simpledb;
+
+/**
+ * BatchIterator is implemented by the iterators that can also return their
+ * tuples a {@link TupleBatch} at a time, which saves the calls and the
+ * Tuple of each row of the tuple at a time interface.  Every
+ * {@link Operator} is a BatchIterator, collecting its batches from its
+ * tuples unless it overrides {@link #nextBatch}; an operator reads any child
+ * by batch through {@link BatchAdapter#of}.
+ * <p/>
+ * Between a call to open or rewind and the next, the caller should read
+ * either tuples or batches, not both.
+ */
+public interface BatchIterator extends DbIterator {
+
+    /**
+     * Returns the next tuples of the iterator.  The batch belongs to the
+     * iterator and is only good until the next call to it.
+     *
+     * @return the next batch of at least one tuple, or null if there are no
+     * more tuples
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
@@ -0,0 +1,88 @@
+package simpledb;
+
+/**
+ * Broadcast is the exchange that sends all the tuples of several subplans,
+ * run in parallel, to each of its consumers, such as the copies of one side
+ * of a join that each join a part of the other side.
+ * <p/>
+ * The input of a broadcast is meant to be small: each consumer keeps every
+ * batch it is sent (the batches themselves are shared), so it can be
+ * rewound without running the subplans again, and the producers never wait
+ * for the consumers.
+ */
+public class Broadcast extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Copies the batches of each producer into batches of its own, each of
+     * which is sent to every channel once it fills up.
+     */
+    private static class Copier extends Producers {
+        private final TupleBatch[] out;
+
+        Copier(DbIterator[] children, int consumers) {
+            super(children, consumers, true);
+            out = new TupleBatch[children.length];
+        }
+
+        void send(int producer, TupleBatch batch) {
+            int start = 0;
+            while (start < batch.size()) {
+                if (out[producer] == null) {
+                    out[producer] = new TupleBatch(batch.getTupleDesc());
+                }
+                TupleBatch o = out[producer];
+                int n = Math.min(batch.size() - start, o.capacity() - o.size());
+                o.addRange(batch, start, n);
+                start += n;
+                if (o.isFull()) {
+                    flush(producer);
+                }
+            }
+        }
+
+        void begin(int producer) {
+            out[producer] = null;
+        }
+
+        void flush(int producer) {
+            TupleBatch o = out[producer];
+            out[producer] = null;
+            if (o != null && o.size() > 0) {
+                for (Channel c : channels) {
+                    c.put(o);
+                }
+            }
+        }
+    }
+
+    private Broadcast(Producers producers, int index) {
+        super(producers, index);
+    }
+
+    /**
+     * Creates the consumers of a broadcast.
+     *
+     * @param children  the subplans to run in parallel, which return tuples
+     *                  of the same TupleDesc
+     * @param consumers the number of consumers
+     * @return the consumers, each of which returns all the tuples
+     */
+    public static Broadcast[] of(DbIterator[] children, int consumers) {
+        Producers producers = new Copier(children, consumers);
+        Broadcast[] out = new Broadcast[consumers];
+        for (int i = 0; i < consumers; i++) {
+            out[i] = new Broadcast(producers, i);
+        }
+        return out;
+    }
+
+    public String getName() {
+        return "Broadcast(" + getChildren().length + "->" + producers.channels.length + ")";
+    }
+
+    int estimateCardinality(int producerCardinality) {
+        return producerCardinality;
+    }
+}
@@ -3,12 +3,26 @@ package simpledb;
 import java.io.*;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import java.util.ArrayList; //I ADDED THIS, AM I ALLOWED TO?
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList; //AND THIS?
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.lang.Boolean;
 
 import simpledb.LockManager.LockNode;
@@ -20,6 +34,22 @@ import simpledb.LockManager.LockNode;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p/>
+ * Frames are split into hash partitions by PageId, each with its own latch,
+ * frame table and replacement policy.  Nothing here synchronizes on the
+ * BufferPool itself.  When a dirty page is written the LogFile monitor is
+ * taken before the partition latch, never the other way around.
+ * <p/>
+ * getPage watches for sequential requests of the pages of each heap file
+ * and, once a run of them starts, has a background thread read the next
+ * pages of the run into the pool ahead of the requests (see
+ * {@link #setReadAheadPages}).
+ * <p/>
+ * Committing a transaction only logs the pages it dirtied and forces the
+ * log; the pages stay dirty in the pool, and a background writer writes
+ * them out later in page order, or eviction writes one when it runs out of
+ * clean pages.  Since their updates are already forced by then, writing
+ * them needs no further logging.
  *
  * @Threadsafe, all fields are final
  */
@@ -44,28 +74,191 @@ public class BufferPool {
     public int numPages;
     
     /**
-     * Current number of pages in the buffer pool
+     * Default page replacement policy, used when none is given to the constructor.
+     */
+    public static final ReplacementPolicy.Kind DEFAULT_POLICY = ReplacementPolicy.Kind.LRU;
+    
+    /**
+     * Smallest number of frames worth giving a partition of its own; pools
+     * smaller than this have a single partition and behave like one table.
+     */
+    public static final int MIN_PARTITION_PAGES = 64;
+    
+    /**
+     * Upper bound on the default number of partitions.
+     */
+    public static final int MAX_PARTITIONS = 64;
+    
+    /**
+     * Default number of pages read ahead of a sequential run of requests.
+     */
+    public static final int DEFAULT_READ_AHEAD_PAGES = 16;
+
+    /**
+     * Number of sequential runs tracked at once for each file.
+     */
+    public static final int READ_AHEAD_STREAMS = 4;
+
+    private static int readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+
+    // the thread pages are read ahead on
+    private static final ExecutorService readAhead = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-readahead");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Milliseconds a committed page waits before the background writer
+     * writes it, so that pages committed together are written together.
+     */
+    public static final long WRITE_BEHIND_MILLIS = 1000;
+
+    // the thread committed pages are written on
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-writer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // the order the background writer writes pages in
+    private static final Comparator<PageId> PAGE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId()) {
+                return a.getTableId() < b.getTableId() ? -1 : 1;
+            }
+            return a.pageNumber() < b.pageNumber() ? -1 : (a.pageNumber() == b.pageNumber() ? 0 : 1);
+        }
+    };
+
+    /**
+     * One hash partition of the buffer pool.  Each partition has its own
+     * frame table, replacement policy and capacity, and the partition object
+     * itself is the latch guarding them, so transactions working on pages in
+     * different partitions never wait for each other.
+     */
+    private static class Partition {
+        final int capacity;
+        final HashMap<PageId, Page> frames;
+        final ReplacementPolicy policy;
+
+        Partition(int capacity, ReplacementPolicy.Kind policyKind) {
+            this.capacity = capacity;
+            this.frames = new HashMap<PageId, Page>(capacity);
+            this.policy = policyKind.create(capacity);
+        }
+    }
+    
+    /**
+     * The partitions; a page always lives in partitions[hash(pid) % length]
+     */
+    private final Partition[] partitions;
+    
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> tid_locks;
+    
+    /**
+     * The sequential runs of requests of each heap file, by table id
+     */
+    private final ConcurrentHashMap<Integer, Streams> streams;
+    
+    /**
+     * Counts the pages written, or discarded after being written behind the
+     * pool's back, so that read-ahead can tell if the pages it read may be
+     * out of date
+     */
+    private final AtomicInteger pageWrites;
+    
+    /**
+     * The pages being read ahead, added and removed under their partition's
+     * latch; waiters are notified on the set itself
+     */
+    private final Set<PageId> readingAhead;
+    
+    /**
+     * The pages whose logged changes are not yet on disk, with the
+     * transaction that made them.  Entries are added and removed under
+     * their page's partition latch.
      */
-    public int pageCount;
+    private final ConcurrentHashMap<PageId, Unwritten> unwritten;
     
     /**
-     * Array of Pages in the buffer pool
+     * Set while a pass of the background writer is scheduled
      */
-    public Page[] pages;
+    private final AtomicBoolean writeScheduled;
     
     /**
-     * LinkedList of pages in the buffer pool, the head of the list is the most recently used page, the tail is the least
+     * The first failure of the background writer not yet reported; thrown
+     * by the next flush
      */
-    private LinkedList<PageId> evict_list; 
-    private LinkedList<Boolean> dirt_check_list;
-    private HashMap<TransactionId, LinkedList<PageId>> tid_locks;
-    public HashMap<TransactionId, Long> tid_time;
-    public final int TIMEOUT = 5000;
+    private final AtomicReference<IOException> writeFailure;
+    
+    /**
+     * The changes of a transaction to a page, logged at commit but not yet
+     * written.  Once the commit is durable the page may be written without
+     * logging it again.
+     */
+    private static class Unwritten {
+        final TransactionId tid;
+        volatile boolean durable;
+
+        Unwritten(TransactionId tid) {
+            this.tid = tid;
+        }
+    }
+    
+    /**
+     * Sequential runs of page requests of one file.  Each run knows the page
+     * it expects next and how far its pages have been read ahead; a request
+     * that continues no run starts a new one in place of the oldest.
+     */
+    private static class Streams {
+        private final int[] next = new int[READ_AHEAD_STREAMS];
+        private final int[] issued = new int[READ_AHEAD_STREAMS];
+        private int oldest;
+
+        Streams() {
+            Arrays.fill(next, -1);
+        }
+
+        /**
+         * Records a request of a page.
+         *
+         * @param window the number of pages to keep read ahead of a run
+         * @return the first page to read ahead and one past the last, or null
+         * if none need to be
+         */
+        synchronized int[] requested(int page, int window) {
+            for (int s = 0; s < next.length; s++) {
+                if (next[s] == page + 1) {
+                    // the same page again
+                    return null;
+                }
+                if (next[s] == page) {
+                    next[s] = page + 1;
+                    // read ahead again once half the window has been used
+                    if (issued[s] - page > window / 2) {
+                        return null;
+                    }
+                    int from = Math.max(issued[s], page + 1);
+                    issued[s] = page + 1 + window;
+                    return new int[]{from, issued[s]};
+                }
+            }
+            next[oldest] = page + 1;
+            issued[oldest] = page + 1;
+            oldest = (oldest + 1) % next.length;
+            return null;
+        }
+    }
     
     /**
      * LockManager for the DB
      */
-    private LockManager lockManager;
+    private final LockManager lockManager;
     
     
     /**
@@ -74,14 +267,58 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_POLICY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyKind the page replacement policy to use.
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policyKind) {
+        this(numPages, policyKind, defaultPartitions(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numPartitions independently latched partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyKind the page replacement policy each partition uses.
+     * @param numPartitions number of partitions, between 1 and numPages.
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policyKind, int numPartitions) {
+        if (numPartitions < 1 || (numPages > 0 && numPartitions > numPages)) {
+            throw new IllegalArgumentException("Cannot split " + numPages + " pages into " + numPartitions + " partitions");
+        }
         this.numPages = numPages;
-        this.pageCount = 0;
-        this.pages = new Page[numPages];
-        this.evict_list = new LinkedList<PageId>();
-        this.dirt_check_list = new LinkedList<Boolean>();
+        this.partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            // spread the remainder over the first partitions
+            int capacity = numPages / numPartitions + (i < numPages % numPartitions ? 1 : 0);
+            this.partitions[i] = new Partition(capacity, policyKind);
+        }
         this.lockManager = new LockManager(this.numPages);
-        this.tid_locks = new HashMap<TransactionId, LinkedList<PageId>>();
-        this.tid_time = new HashMap<TransactionId, Long>();
+        this.tid_locks = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+        this.streams = new ConcurrentHashMap<Integer, Streams>();
+        this.pageWrites = new AtomicInteger();
+        this.readingAhead = Collections.synchronizedSet(new HashSet<PageId>());
+        this.unwritten = new ConcurrentHashMap<PageId, Unwritten>();
+        this.writeScheduled = new AtomicBoolean();
+        this.writeFailure = new AtomicReference<IOException>();
+    }
+
+    /**
+     * One partition per MIN_PARTITION_PAGES frames, up to MAX_PARTITIONS.
+     */
+    static int defaultPartitions(int numPages) {
+        return Math.max(1, Math.min(MAX_PARTITIONS, numPages / MIN_PARTITION_PAGES));
+    }
+
+    private Partition partitionOf(PageId pid) {
+        return partitions[(pid.hashCode() & 0x7fffffff) % partitions.length];
     }
 
     public static int getPageSize() {
@@ -93,6 +330,27 @@ public class BufferPool {
         BufferPool.pageSize = pageSize;
     }
 
+    /**
+     * Sets the number of pages read ahead of a sequential run of requests,
+     * or turns read-ahead off if 0.  At most a quarter of the pool is read
+     * ahead of any one run, so that read-ahead does not evict the pages it
+     * has just read before they are requested.
+     */
+    public static void setReadAheadPages(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("cannot read " + pages + " pages ahead");
+        }
+        readAheadPages = pages;
+    }
+
+    public static void resetReadAheadPages() {
+        readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+    }
+
+    public static int getReadAheadPages() {
+        return readAheadPages;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -110,26 +368,8 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-    	// get lock for the page
-    	Page page = null;
-    	LinkedList<PageId> pagelist = null;
-    	synchronized(this){
-	    	if (!tid_time.containsKey(tid)) {
-	    		tid_time.put(tid, System.currentTimeMillis());
-	    	} else {
-	    		if (System.currentTimeMillis() > tid_time.get(tid) + TIMEOUT) {
-	    			System.out.println("Thread " +tid.getId() + " aborted due to timeout.");
-	    			throw new TransactionAbortedException();
-	    		}
-	    	}
-	    	pagelist = tid_locks.get(tid);
-	    	if (pagelist == null) {
-	    		pagelist = new LinkedList<PageId>();
-	    		pagelist.add(pid);
-	    	} else if (!pagelist.contains(pid)){
-	    		pagelist.add(pid);
-	    	}
-    	}
+    	// get lock for the page; throws if tid is chosen as a deadlock victim
+    	pagesOf(tid).add(pid);
     	
     	if (perm.permLevel == 0) {
     		// shared
@@ -139,60 +379,177 @@ public class BufferPool {
     		lockManager.acquirePageLock(tid, pid, true);
     		
     	}
-    	Page retPage = null;
-    	synchronized(this) {
-    		
-	    	boolean cleanpages = false;
-	    	for (int i = 0; i < this.numPages; i++) {
-	        	// If the page is in the BufferPool, return it
-	        	
-	        	if (this.pages[i] != null){
-	        		
-	        		if ((pages[i].isDirty() == null)) {
-	        			cleanpages = true;
-	        		}
-	        		if (this.pages[i].getId().equals(pid)) {
-	        			
-	        			// we have accessed this page, so move it to the front of the evict list
-	        			int idx = evict_list.indexOf(pid);
-	        			dirt_check_list.remove(idx);
-	        			dirt_check_list.addFirst(java.lang.Boolean.valueOf(false));
-	        			evict_list.remove(pid); // remove the instance of pid in the linked list
-	        			evict_list.addFirst(pid); // add the instance of pid to the head of the linked list
-	        			page = this.pages[i];
-	        		}
-	        	}
-	        }
-	    	if (page == null) {
-		        if (this.pageCount >= this.numPages) {
-		        	
-		        	evictPage();
-		        	
-		        	this.pageCount--;
-		        	
-		        }
-		        // Page is not in BufferPool, get its table id
-		        Catalog catalog = Database.getCatalog();
-		        DbFile file = catalog.getDatabaseFile(pid.getTableId());
-		        int first_empty = 0;
-		        for (int i = 0; i < numPages; i++) {
-		        	if (pages[i] == null) {
-		        		first_empty = i;
-		        		break;
-		        	}
-		        }
-		        page = file.readPage(pid);
-		        this.pages[first_empty] = page;
-		        
-		        this.pageCount++;
-		        dirt_check_list.addFirst(Boolean.valueOf(false));
-		        evict_list.addFirst(pid);
-		        
+    	if (pid instanceof HeapPageId) {
+    		readAhead(pid);
+    	}
+    	Partition part = partitionOf(pid);
+    	while (true) {
+	    	synchronized(part) {
+	    		Page page = part.frames.get(pid);
+	    		if (page != null) {
+	    			part.policy.pageAccessed(pid);
+	    			return page;
+	    		}
+	    		if (!readingAhead.contains(pid)) {
+			        if (part.frames.size() >= part.capacity) {
+			        	evictPage(part);
+			        }
+			        // Page is not in BufferPool, get its table id
+			        Catalog catalog = Database.getCatalog();
+			        DbFile file = catalog.getDatabaseFile(pid.getTableId());
+			        page = file.readPage(pid);
+			        part.frames.put(pid, page);
+			        part.policy.pageLoaded(pid);
+			        return page;
+	    		}
 	    	}
-	    	tid_locks.put(tid, pagelist);
-	    	retPage = page;
+	    	// the page is being read ahead; wait for it rather than read it twice
+	    	awaitReadAhead(pid);
+    	}
+    }
+
+    /**
+     * Records a request of a page of a heap file, and if it continues a
+     * sequential run, has the pages following the run read ahead.
+     */
+    private void readAhead(PageId pid) {
+    	int window = Math.min(readAheadPages, numPages / 4);
+    	if (window == 0) {
+    		return;
+    	}
+    	Integer tableId = pid.getTableId();
+    	Streams s = streams.get(tableId);
+    	if (s == null) {
+    		Streams created = new Streams();
+    		s = streams.putIfAbsent(tableId, created);
+    		if (s == null) {
+    			s = created;
+    		}
+    	}
+    	final int[] range = s.requested(pid.pageNumber(), window);
+    	if (range == null) {
+    		return;
+    	}
+    	DbFile f;
+    	try {
+    		f = Database.getCatalog().getDatabaseFile(tableId);
+    	} catch (NoSuchElementException e) {
+    		return;
+    	}
+    	if (!(f instanceof HeapFile)) {
+    		return;
+    	}
+    	final HeapFile file = (HeapFile) f;
+    	readAhead.execute(new Runnable() {
+    		public void run() {
+    			preload(file, range[0], range[1] - range[0]);
+    		}
+    	});
+    }
+
+    /**
+     * Reads consecutive pages of a file into the pool with one read, without
+     * locking them for any transaction, evicting clean pages if need be.
+     * Only the run of pages from the first that is not in the pool yet up
+     * to the next that is are read; until they are in the pool, requests of
+     * them wait for them instead of reading them too.  The pages are read
+     * without any latch held, so they are dropped if a page may have been
+     * written since; a request of a page that is dropped, or could not be
+     * read, reads it as usual.
+     */
+    private void preload(HeapFile file, int first, int count) {
+    	int writes = pageWrites.get();
+    	int start = first, end = first;
+    	for (int p = first; p < first + count; p++) {
+    		PageId pid = new HeapPageId(file.getId(), p);
+    		Partition part = partitionOf(pid);
+    		synchronized (part) {
+    			if (part.frames.containsKey(pid)) {
+    				if (end > start) {
+    					break;
+    				}
+    				start = end = p + 1;
+    				continue;
+    			}
+    			readingAhead.add(pid);
+    			end = p + 1;
+    		}
+    	}
+    	Page[] pages = new Page[0];
+    	try {
+    		pages = file.readPages(start, end - start);
+    	} catch (RuntimeException e) {
+    		// the file could not be read
+    	}
+    	for (int p = start; p < end; p++) {
+    		PageId pid = new HeapPageId(file.getId(), p);
+    		Partition part = partitionOf(pid);
+    		synchronized (part) {
+    			if (p - start < pages.length && pageWrites.get() == writes) {
+    				try {
+    					if (part.frames.size() >= part.capacity) {
+    						evictPage(part);
+    					}
+    					part.frames.put(pid, pages[p - start]);
+    					part.policy.pageLoaded(pid);
+    				} catch (DbException e) {
+    					// every page is dirty
+    				}
+    			}
+    			synchronized (readingAhead) {
+    				readingAhead.remove(pid);
+    				readingAhead.notifyAll();
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Waits until a page is no longer being read ahead.
+     */
+    private void awaitReadAhead(PageId pid) {
+    	boolean interrupted = false;
+    	synchronized (readingAhead) {
+    		while (readingAhead.contains(pid)) {
+    			try {
+    				readingAhead.wait();
+    			} catch (InterruptedException e) {
+    				interrupted = true;
+    			}
+    		}
+    	}
+    	if (interrupted) {
+    		Thread.currentThread().interrupt();
+    	}
+    }
+
+    /**
+     * The set of pages tid has requested, created on first use.
+     */
+    private Set<PageId> pagesOf(TransactionId tid) {
+    	Set<PageId> pagelist = tid_locks.get(tid);
+    	if (pagelist == null) {
+    		Set<PageId> created = Collections.synchronizedSet(new LinkedHashSet<PageId>());
+    		pagelist = tid_locks.putIfAbsent(tid, created);
+    		if (pagelist == null) {
+    			pagelist = created;
+    		}
+    	}
+    	return pagelist;
+    }
+
+    /**
+     * A snapshot of the pages tid has requested, removing them from the
+     * BufferPool's bookkeeping if remove is set.
+     */
+    private ArrayList<PageId> pageSnapshot(TransactionId tid, boolean remove) {
+    	Set<PageId> pagelist = remove ? tid_locks.remove(tid) : tid_locks.get(tid);
+    	if (pagelist == null) {
+    		return new ArrayList<PageId>();
+    	}
+    	synchronized (pagelist) {
+    		return new ArrayList<PageId>(pagelist);
     	}
-        return retPage;
     }
 
     /**
@@ -227,77 +584,217 @@ public class BufferPool {
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p/>
+     * On commit the pages the transaction dirtied are logged, if
+     * {@link #logDirtyPages} has not logged them already, but not written:
+     * they are left to the background writer.  On abort its changes are
+     * undone by restoring the before-image of each page it dirtied.
      *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
             throws IOException {
-    	synchronized (this) {
-    		// check pages that may have been marked dirty but not changed,
-    		// as in the unit test TransactionTest
-    		LinkedList<PageId> pid_list = tid_locks.get(tid);
-    		for (int i = 0; i < numPages; i++) {
-    			if (pages[i] != null) {
-    				if (commit && (pid_list != null)) {
-    		    		// use current page contents as the before-image
-    		            // for the next transaction that modifies this page.
-    					if (pid_list.contains(pages[i].getId())) {
-    						pages[i].setBeforeImage();
-    					}
+        if (commit) {
+        	if (logDirtyPages(tid) > 0) {
+        		// not committed through Transaction, so nothing forced these
+        		Database.getLogFile().force();
+        	}
+        	for (PageId pid : pageSnapshot(tid, true)) {
+        		Unwritten u = unwritten.get(pid);
+        		if (u != null && u.tid.equals(tid)) {
+        			u.durable = true;
+        		}
+        		releasePage(tid, pid);
+        	}
+        	scheduleWrite();
+        	
+        } else {
+        	// txn aborts
+        	// revert any changes made my txn by restoring page to its
+        	// before-image, the last committed state of the page
+        	for (PageId pid : pageSnapshot(tid, true)) {
+        		Partition part = partitionOf(pid);
+        		synchronized (part) {
+        			Page page = part.frames.get(pid);
+        			Unwritten u = unwritten.get(pid);
+        			if (u != null && u.tid.equals(tid)) {
+        				unwritten.remove(pid);
+        				u = null;
+        			}
+        			if (page != null && page.isDirty() != null && page.isDirty().equals(tid)) {
+        				Page restored = page.getBeforeImage();
+        				if (u != null) {
+        					// an earlier commit is still waiting to be written
+        					restored.markDirty(true, u.tid);
+        				}
+        				part.frames.put(pid, restored);
+        			}
+        		}
+        		pageRestored(pid);
+        		releasePage(tid, pid);
+        	}
+        	
+        }
+    }
+
+    /**
+     * Tells the file of a page an aborted transaction held that the page is
+     * back in its last committed state.
+     */
+    private static void pageRestored(PageId pid) {
+    	DbFile file;
+    	try {
+    		file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    	} catch (NoSuchElementException e) {
+    		// the table has been dropped
+    		return;
+    	}
+    	if (file instanceof HeapFile) {
+    		((HeapFile) file).pageRestored(pid.pageNumber());
+    	}
+    }
+
+    /**
+     * Appends an update record to the log for each page tid has dirtied and
+     * not yet logged, and makes the logged page its before-image.  Called on
+     * commit, before the commit record is written; the pages themselves are
+     * written later, once the commit record has been forced.
+     *
+     * @return the number of pages logged
+     */
+    public int logDirtyPages(TransactionId tid) throws IOException {
+    	LogFile log = Database.getLogFile();
+    	int logged = 0;
+    	synchronized (log) {
+    		for (PageId pid : pageSnapshot(tid, false)) {
+    			Partition part = partitionOf(pid);
+    			synchronized (part) {
+    				Page page = part.frames.get(pid);
+    				if (page == null || page.isDirty() == null || !page.isDirty().equals(tid)) {
+    					continue;
+    				}
+    				Unwritten u = unwritten.get(pid);
+    				if (u != null && u.tid.equals(tid)) {
+    					continue;
     				}
-    				if (pages[i].isDirty() != null) {
-	    				int idx = evict_list.indexOf(pages[i].getId());
-	    				dirt_check_list.set(idx, Boolean.valueOf(true));
-	    				
-	    			}
+    				log.logWrite(tid, page.getBeforeImage(), page);
+    				page.setBeforeImage();
+    				unwritten.put(pid, new Unwritten(tid));
+    				logged++;
     			}
     		}
-    		
-	        if (commit) {
-	        	flushPages(tid);
-	        	
-	        } else {
-	        	// txn aborts
-	        	// revert any changes made my txn by restoring page to its
-	        	//on disk state
-	        	Catalog catalog = Database.getCatalog();
-	        	
-	        	pid_list = tid_locks.remove(tid);
-	        	if (pid_list == null) {
-	        		return;
-	        	}
-	        	while (!pid_list.isEmpty()) {
-	        		PageId pid = pid_list.removeFirst();
-	        		if (evict_list.contains(pid)) {
-		        		int idx = evict_list.indexOf(pid);
-		        		evict_list.get(idx);
-		        		
-		        		if (dirt_check_list.get(idx)) {
-		        			// page is dirty
-		        			dirt_check_list.set(idx, Boolean.valueOf(false));
-		        			DbFile file = catalog.getDatabaseFile(pid.getTableId());
-		        			for (int i = 0; i < numPages; i++){
-		        	    		if (pages[i] != null) {
-		        	    			if (pages[i].getId().equals(pid)) {
-		        	    				pages[i] = file.readPage(pid);
-		        	    				break;
-		        	    			}
-		        	    			
-		        	    		}
-		        	    	}
-		        		}
-		        		//releasePage(tid, pid);
-	        		}
-	        		releasePage(tid, pid);
-	        	}
-	        	
-	        }
-	        tid_time.remove(tid);
     	}
+    	return logged;
+    }
+
+    /**
+     * Schedules a pass of the background writer, unless one is already
+     * scheduled.  If committed pages fill half the pool the pass runs at
+     * once, so that eviction keeps finding clean pages.
+     */
+    private void scheduleWrite() {
+    	if (unwritten.isEmpty()) {
+    		return;
+    	}
+    	boolean pressed = unwritten.size() >= numPages / 2;
+    	if (!writeScheduled.compareAndSet(false, true) && !pressed) {
+    		return;
+    	}
+    	Runnable pass = new Runnable() {
+    		public void run() {
+    			writeBehind();
+    		}
+    	};
+    	writer.schedule(pass, pressed ? 0 : WRITE_BEHIND_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One pass of the background writer: writes the pages of durable
+     * commits in table and page order, each under its partition's latch
+     * only, and schedules another pass if any are left.  A pool that is no
+     * longer the database's, having been reset as if after a crash, writes
+     * nothing more.
+     */
+    private void writeBehind() {
+    	writeScheduled.set(false);
+    	if (Database.getBufferPool() != this) {
+    		return;
+    	}
+    	ArrayList<PageId> pids = new ArrayList<PageId>();
+    	for (Map.Entry<PageId, Unwritten> e : unwritten.entrySet()) {
+    		if (e.getValue().durable) {
+    			pids.add(e.getKey());
+    		}
+    	}
+    	Collections.sort(pids, PAGE_ORDER);
+    	try {
+    		for (PageId pid : pids) {
+    			if (Database.getBufferPool() != this) {
+    				return;
+    			}
+    			Partition part = partitionOf(pid);
+    			synchronized (part) {
+    				writeCommitted(part, pid);
+    			}
+    		}
+    	} catch (IOException e) {
+    		// the pages stay dirty, to be written by the next pass or a flush
+    		writeFailure.compareAndSet(null, e);
+    	}
+    	scheduleWrite();
+    }
+
+    /**
+     * Returns the first failure of the background writer to write committed
+     * pages since the last flush, or null if there has been none.  The
+     * pages stay dirty, and are written by a later pass or a flush; the
+     * next {@link #flushAllPages} or {@link #flushPages} throws the failure.
+     */
+    public IOException getWriteFailure() {
+    	return writeFailure.get();
+    }
+
+    /**
+     * Throws the failure of the background writer not yet reported, if any.
+     */
+    private void reportWriteFailure() throws IOException {
+    	IOException e = writeFailure.getAndSet(null);
+    	if (e != null) {
+    		throw new IOException("Could not write committed pages: " + e.getMessage(), e);
+    	}
+    }
+
+    /**
+     * Writes the committed changes to a page, if they are durable.  If
+     * another transaction has dirtied the page since, its before-image, the
+     * committed state, is written and the page stays dirty.  The caller
+     * holds the partition's latch.
+     *
+     * @return true if the page is now clean
+     */
+    private boolean writeCommitted(Partition part, PageId pid) throws IOException {
+    	Unwritten u = unwritten.get(pid);
+    	if (u == null || !u.durable) {
+    		return false;
+    	}
+    	Page page = part.frames.get(pid);
+    	boolean clean = true;
+    	if (page != null && page.isDirty() != null) {
+    		DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    		pageWrites.incrementAndGet();
+    		if (u.tid.equals(page.isDirty())) {
+    			file.writePage(page);
+    			page.markDirty(false, null);
+    		} else {
+    			file.writePage(page.getBeforeImage());
+    			clean = false;
+    		}
+    	}
+    	unwritten.remove(pid);
+    	return clean;
     }
 
-    
     /**
      * Helper function for insertTuple and Delete Tuple:
      * Gets the file, inserts/deletes the tuple, dirties the pages that were modified, and updates those pages if they are in the BufferPool
@@ -310,44 +807,27 @@ public class BufferPool {
     public void updateTuple(TransactionId tid, int tableId, Tuple t, boolean isInsert) 
     		throws DbException, IOException, TransactionAbortedException {
     	Catalog catalog = Database.getCatalog();
-        synchronized (this) {
-        	if (!tid_time.containsKey(tid)) {
-	    		tid_time.put(tid, System.currentTimeMillis());
-	    	} else {
-	    		if (System.currentTimeMillis() > tid_time.get(tid) + TIMEOUT) {
-	    			throw new TransactionAbortedException();
-	    		}
-	    	}
-	    	DbFile file = catalog.getDatabaseFile(tableId);
-	        ArrayList<Page> modified_pages = null;
-	        if (isInsert) {
-	        	modified_pages = file.insertTuple(tid, t);
-	        } else {
-	        	modified_pages = file.deleteTuple(tid, t);
-	        }
-	        Page page = null;
-	        for (int i = 0; i < modified_pages.size(); i++) {
-	        	page = modified_pages.get(i);
-	        	if (page != null) {
-	        		page.markDirty(true, tid);
-	        		PageId pid = page.getId();
-	        		int idx = evict_list.indexOf(pid);
-	        		if (idx != -1) {
-	        			dirt_check_list.set(idx, Boolean.valueOf(true));
-	        			
-	        		}
-	        		
-	        		for (int j = 0; j < numPages; j++) {
-	        			if (pages[j] != null) {
-	        				if (pages[j].getId().equals(page.getId())) {
-	        				// the modified page has a former version in the buffer pool
-	        				// replace with the modified page
-	        				pages[j] = page;
-	        				}
-	        			}
-	        		}
-	        	}
-	        }
+    	// the file takes the page locks it needs through getPage
+    	DbFile file = catalog.getDatabaseFile(tableId);
+        ArrayList<Page> modified_pages = null;
+        if (isInsert) {
+        	modified_pages = file.insertTuple(tid, t);
+        } else {
+        	modified_pages = file.deleteTuple(tid, t);
+        }
+        for (Page page : modified_pages) {
+        	if (page != null) {
+        		page.markDirty(true, tid);
+        		PageId pid = page.getId();
+        		Partition part = partitionOf(pid);
+        		synchronized (part) {
+        			if (part.frames.containsKey(pid)) {
+        				// the modified page has a former version in the buffer pool
+        				// replace with the modified page
+        				part.frames.put(pid, page);
+        			}
+        		}
+        	}
         }
     }
     
@@ -396,30 +876,17 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      * break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-    	Catalog catalog = Database.getCatalog();
-    	DbFile file = null;
-    	Page page = null;
-    	for (int i = 0; i < numPages; i++){
-    		if (pages[i] != null) {
-    			page = pages[i];
-    			if (page.isDirty() != null) {
-    				flushPage(page.getId());
-    			}
-    			/*if (page.isDirty() != null) {
-    				page.markDirty(false, null);
-    				int idx = evict_list.indexOf(page.getId());
-    				dirt_check_list.set(idx, Boolean.valueOf(false));
-    				file = catalog.getDatabaseFile(page.getId().getTableId());
-    				file.writePage(page);
-    				pages[i] = file.readPage(page.getId());
-    			}
-    			break;
-    			*/
-		
+    public void flushAllPages() throws IOException {
+    	for (Partition part : partitions) {
+    		ArrayList<PageId> resident;
+    		synchronized (part) {
+    			resident = new ArrayList<PageId>(part.frames.keySet());
+    		}
+    		for (PageId pid : resident) {
+    			flushPage(pid);
     		}
     	}
-    	
+    	reportWriteFailure();
     }
 
     /**
@@ -428,20 +895,15 @@ public class BufferPool {
      * buffer pool doesn't keep a rolled back page in its
      * cache.
      */
-    public synchronized void discardPage(PageId pid) {
-        for (int pageIdx = 0; pageIdx < numPages; pageIdx++) {
-        	if (pages[pageIdx] != null){
-	        	if (pages[pageIdx].getId().equals(pid)) {
-	        		pages[pageIdx] = null;
-	        		int idx = evict_list.indexOf(pid);
-	        		if (idx != -1) {
-	        			evict_list.remove(idx);
-	        			dirt_check_list.remove(idx);
-	        		}
-	        		return;
-	        	}
-        	}
-        }
+    public void discardPage(PageId pid) {
+    	pageWrites.incrementAndGet();
+    	Partition part = partitionOf(pid);
+    	synchronized (part) {
+    		unwritten.remove(pid);
+    		if (part.frames.remove(pid) != null) {
+    			part.policy.pageRemoved(pid);
+    		}
+    	}
     }
 
     /**
@@ -449,32 +911,38 @@ public class BufferPool {
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
-    	Catalog catalog = Database.getCatalog();
-    	DbFile file = catalog.getDatabaseFile(pid.getTableId());
-    	Page page = null;
-    	for (int i = 0; i < numPages; i++){
-    		if (pages[i] != null) {
-    			page = pages[i];
-    			if (pages[i].getId().equals(pid)) {
-    				TransactionId dirtier = page.isDirty();
-    				if (dirtier != null) {
-    					
-    					page.markDirty(false, null);
-    					int idx = evict_list.indexOf(page.getId());
-        				dirt_check_list.set(idx, Boolean.valueOf(false));
-        				// append an update record to the log, with 
-        		        // a before-image and after-image.
-        		        Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-        		        Database.getLogFile().force();
-        				file.writePage(page);
-    					pages[i] = file.readPage(pid);
+    private void flushPage(PageId pid) throws IOException {
+    	Partition part = partitionOf(pid);
+    	synchronized (part) {
+    		Page page = part.frames.get(pid);
+    		if (page == null || page.isDirty() == null) {
+    			return;
+    		}
+    	}
+    	// writing the page logs it first; take the log before the partition
+    	// latch, the same order LogFile.logCheckpoint uses for flushAllPages
+    	LogFile log = Database.getLogFile();
+    	synchronized (log) {
+    		synchronized (part) {
+    			Page page = part.frames.get(pid);
+    			if (page == null) {
+    				return;
+    			}
+    			TransactionId dirtier = page.isDirty();
+    			if (dirtier != null) {
+    				DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    				page.markDirty(false, null);
+    				Unwritten u = unwritten.remove(pid);
+    				if (u == null || !u.durable || !u.tid.equals(dirtier)) {
+    					// append an update record to the log, with 
+    					// a before-image and after-image.
+    					log.logWrite(dirtier, page.getBeforeImage(), page);
+    					log.force();
     				}
-    				break;
+    				pageWrites.incrementAndGet();
+    				file.writePage(page);
+    				part.frames.put(pid, file.readPage(pid));
     			}
-		
     		}
     	}
     }
@@ -482,60 +950,40 @@ public class BufferPool {
     /**
      * Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
-    	LinkedList<PageId> pid_list = tid_locks.get(tid);
-    	if (pid_list == null) {
-    		return;
+    public void flushPages(TransactionId tid) throws IOException {
+    	for (PageId pid : pageSnapshot(tid, true)) {
+    		flushPage(pid);
+    		releasePage(tid, pid);
     	}
-        	while (!pid_list.isEmpty()) {
-        		PageId pid = pid_list.removeFirst();
-        		int idx = evict_list.indexOf(pid);
-        		if (idx != -1) {
-        			// page hasn't been evicted yet
-	        		evict_list.get(idx);
-	        		if (dirt_check_list.get(idx)) {
-	        			// page is dirty
-	        			
-	        			flushPage(pid);
-	        		}
-	        		releasePage(tid, pid);
-        		}
-        	
-        	}
-        	tid_locks.remove(tid);
+    	reportWriteFailure();
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Discards a page from the given partition.  Only clean pages are
+     * evicted; if there are none, a page whose commit is durable but not
+     * yet written is written first.  The caller holds the partition's
+     * latch.
      */
-    private synchronized void evictPage() throws DbException {
-    	PageId pid = null;
-    	int idx = -1;
-    	for (int i = evict_list.size() - 1; i >= 0; i--) {
-    		if (!(dirt_check_list.get(i))) {
-    			pid = evict_list.get(i);
-    			idx = i;
-    			//if page not dirty
-    			break;
+    private void evictPage(Partition part) throws DbException {
+    	PageId pid = part.policy.chooseVictim(part.frames);
+    	if (pid == null) {
+    		try {
+    			for (PageId committed : new ArrayList<PageId>(part.frames.keySet())) {
+    				if (writeCommitted(part, committed)) {
+    					pid = part.policy.chooseVictim(part.frames);
+    					break;
+    				}
+    			}
+    		} catch (IOException e) {
+    			throw new DbException("Could not write a committed page: " + e.getMessage());
     		}
     	}
     	if (pid == null) {
     		throw new DbException("No clean pages in buffer pool, so could not evict a page!");
     	}
-    		evict_list.remove(idx);
-			dirt_check_list.remove(idx);
-			lockManager.removePage(pid);
-    	// set the page equal to null
-    	for (int i = 0; i < numPages; i++){
-    		if (pages[i] != null) {
-    			if (pages[i].getId().equals(pid)) {
-    				pages[i] = null;
-    				break;
-    			}
-    			
-    		}
-    	}
+    	part.frames.remove(pid);
+    	part.policy.pageRemoved(pid);
+    	lockManager.removePage(pid);
     }
 
 }
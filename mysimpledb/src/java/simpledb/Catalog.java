@@ -56,30 +56,25 @@ public class Catalog {
     }
     
     /**
-     * Array of tables in Catalog
+     * The tables in the Catalog, by table id.  Operators register and drop
+     * their spill files from worker threads while others look tables up,
+     * so both maps are concurrent.
      */
-    public Table[] tables;
+    private final ConcurrentHashMap<Integer, Table> tables;
     
     /**
-     * Number of tables in Catalog
+     * The tables in the Catalog, by name; a name maps to the table most
+     * recently added under it
      */
-    public int numTables;
-    
-    /**
-     * Initial size of catalog (number of tables in tables array)
-     * I only made this a variable so that if I change this size later in the project,
-     * I wouldn't need to remember to update the clear() method to restore the Catalog 
-     * to the new size
-     */
-    public final int initial_catalog_size = 5;
+    private final ConcurrentHashMap<String, Table> names;
     
     /**
      * Constructor.
      * Creates a new, empty catalog.
      */
     public Catalog() {
-        this.tables = new Table[this.initial_catalog_size]; 
-        this.numTables = 0;
+        this.tables = new ConcurrentHashMap<Integer, Table>();
+        this.names = new ConcurrentHashMap<String, Table>();
     }
 
     /**
@@ -96,15 +91,9 @@ public class Catalog {
     	if (name == null) {
     		throw new RuntimeException("Table name cannot be null");
     	}
-    	//if tables array is full, resize it
-    	if (this.numTables >= this.tables.length) {
-    		Table[] temp = new Table[this.tables.length * 2];
-    		System.arraycopy(this.tables, 0, temp, 0, this.numTables);
-    		this.tables = temp;
-    	}
-    	//NOTE: THIS IS NOT OPTIMIZED OR SORTED IN ANY WAY!  (HeapFile Implementation)
-    	this.tables[this.numTables] = new Table(file, name, pkeyField);
-    	this.numTables += 1;
+    	Table table = new Table(file, name, pkeyField);
+    	this.tables.put(table.tid, table);
+    	this.names.put(name, table);
     }
 
     public void addTable(DbFile file, String name) {
@@ -123,6 +112,46 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Remove a table from the catalog.  Does nothing if the table is not in
+     * the catalog.
+     *
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *                function passed to addTable
+     */
+    public void removeTable(int tableid) {
+    	Table table = this.tables.remove(tableid);
+    	if (table != null) {
+    		this.names.remove(table.name, table);
+    		close(table);
+    	}
+    }
+
+    /**
+     * Closes the file of a table dropped from the catalog, so it does not
+     * hold a file descriptor; a HeapFile reopens it if it is used again.
+     */
+    private static void close(Table table) {
+    	if (table.file instanceof HeapFile) {
+    		try {
+    			((HeapFile) table.file).close();
+    		} catch (IOException e) {
+    			// nothing was written through the channel that has not been forced
+    		}
+    	}
+    }
+
+    /**
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    private Table table(int tableid) throws NoSuchElementException {
+    	Table table = this.tables.get(tableid);
+    	if (table == null) {
+    		throw new NoSuchElementException("Table id is not in Catalog");
+    	}
+    	return table;
+    }
+
     /**
      * Return the id of the table with a specified name,
      *
@@ -132,14 +161,11 @@ public class Catalog {
     	if (name == null) {
         	throw new NoSuchElementException("Table name must be a string, not null");
         }
-        // iterates backwards through the tables array (starting with most recently added)
-        // so that if there is a name conflict, it will return the table id for the most recently added table
-        for (int i = this.numTables - 1; i >= 0; i--) {
-        	if (this.tables[i].name.equals(name)) {
-        		return this.tables[i].tid;
-        	}
-        }
-        throw new NoSuchElementException("Table name is not in Catalog");
+    	Table table = this.names.get(name);
+    	if (table == null) {
+    		throw new NoSuchElementException("Table name is not in Catalog");
+    	}
+    	return table.tid;
     }
 
     /**
@@ -150,12 +176,7 @@ public class Catalog {
      * @throws NoSuchElementException if the table doesn't exist
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
-    	for (int i = this.numTables - 1; i >= 0; i--) {
-        	if (this.tables[i].tid == tableid) {
-        		return this.tables[i].file.getTupleDesc();
-        	}
-        }
-        throw new NoSuchElementException("Table id is not in Catalog");
+    	return table(tableid).file.getTupleDesc();
     }
 
     /**
@@ -166,51 +187,54 @@ public class Catalog {
      *                function passed to addTable
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
-    	for (int i = this.numTables - 1; i >= 0; i--) {
-        	if (this.tables[i].tid == tableid) {
-        		return this.tables[i].file;
-        	}
-        }
-        throw new NoSuchElementException("Table id is not in Catalog");
+    	return table(tableid).file;
     }
 
     public String getPrimaryKey(int tableid) {
-    	for (int i = this.numTables - 1; i >= 0; i--) {
-        	if (this.tables[i].tid == tableid) {
-        		return this.tables[i].pkeyField;
-        	}
-        }
-    	throw new RuntimeException("Table id is not in Catalog");
+    	Table table = this.tables.get(tableid);
+    	if (table == null) {
+    		throw new RuntimeException("Table id is not in Catalog");
+    	}
+    	return table.pkeyField;
+    }
+
+    /**
+     * @return the number of tables in the catalog
+     */
+    public int numTables() {
+        return this.tables.size();
     }
 
     public Iterator<Integer> tableIdIterator() {
-        //Creates an Integer array of table ids, converts it to a list, then returns a iterator
-    	Integer[] tableIds = new Integer[this.numTables];
-        for (int i = 0; i < this.numTables; i++) {
-        	tableIds[i] = this.tables[i].tid;
-        }
-        return Arrays.asList(tableIds).iterator();
+        // a snapshot, so that tables added or removed meanwhile don't matter
+        return new ArrayList<Integer>(this.tables.keySet()).iterator();
     }
 
     public String getTableName(int id) {
-    	for (int i = this.numTables - 1; i >= 0; i--) {
-        	if (this.tables[i].tid == id) {
-        		return this.tables[i].name;
-        	}
-        }
-    	throw new RuntimeException("Table id is not in Catalog");
+    	Table table = this.tables.get(id);
+    	if (table == null) {
+    		throw new RuntimeException("Table id is not in Catalog");
+    	}
+    	return table.name;
     }
 
     /**
-     * Delete all tables from the catalog
+     * Delete all tables from the catalog, closing their files
      */
     public void clear() {
-    	// restore tables array to a blank array of the original size
-        this.tables = new Table[this.initial_catalog_size];
+        for (Integer id : this.tables.keySet()) {
+            removeTable(id);
+        }
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table, as in
+     * <pre>
+     * name (field type, field type pk, ...) mmap
+     * </pre>
+     * where the optional trailing mmap flag opens the table's HeapFile in
+     * mapped mode (see {@link HeapFile}), for read-mostly tables.
      *
      * @param catalogFile
      */
@@ -249,10 +273,18 @@ public class Catalog {
                         }
                     }
                 }
+                boolean mapped = false;
+                String flags = line.substring(line.indexOf(")") + 1).trim();
+                if (flags.equals("mmap")) {
+                    mapped = true;
+                } else if (!flags.equals("")) {
+                    System.out.println("Unknown table flag " + flags);
+                    System.exit(0);
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t, mapped);
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t + (primaryKey.equals("")? "":(" key is " + primaryKey)));
             }
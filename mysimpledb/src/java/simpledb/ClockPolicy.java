@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CLOCK (second chance) replacement.  Each frame has a reference bit that is
+ * set on every hit; the clock hand sweeps the frames, clearing set bits and
+ * stopping at the first clean page whose bit is already clear.  A hit only
+ * sets a bit, so no list has to be reordered.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final PageId[] slots;
+    private final boolean[] referenced;
+    private final HashMap<PageId, Integer> slotOf;
+    private final ArrayDeque<Integer> freeSlots;
+    private int hand;
+
+    /**
+     * @param numPages the number of frames in the buffer pool
+     */
+    public ClockPolicy(int numPages) {
+        this.slots = new PageId[numPages];
+        this.referenced = new boolean[numPages];
+        this.slotOf = new HashMap<PageId, Integer>(numPages);
+        this.freeSlots = new ArrayDeque<Integer>(numPages);
+        for (int i = 0; i < numPages; i++) {
+            freeSlots.addLast(i);
+        }
+        this.hand = 0;
+    }
+
+    public void pageLoaded(PageId pid) {
+        if (slotOf.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        Integer slot = freeSlots.pollFirst();
+        if (slot == null) {
+            throw new IllegalStateException("CLOCK has no free frame for page " + pid);
+        }
+        slots[slot] = pid;
+        // a newly loaded page has not been re-referenced yet
+        referenced[slot] = false;
+        slotOf.put(pid, slot);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced[slot] = true;
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            slots[slot] = null;
+            referenced[slot] = false;
+            freeSlots.addLast(slot);
+        }
+    }
+
+    public PageId chooseVictim(Map<PageId, Page> frames) {
+        // two full sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * slots.length; step++) {
+            int slot = hand;
+            hand = (hand + 1) % slots.length;
+            PageId pid = slots[slot];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            Page page = frames.get(pid);
+            if (page != null && page.isDirty() == null) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
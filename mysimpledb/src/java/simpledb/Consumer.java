@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Consumer is the end of an {@link Exchange} that the rest of a plan reads:
+ * it returns the tuples its exchange's producers send to its channel, as
+ * tuples or as the batches they were sent in.  Its children are the
+ * exchange's producer subplans, shared with the exchange's other consumers.
+ */
+public abstract class Consumer extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    final Producers producers;
+    // the index of this consumer's channel
+    private final int index;
+
+    // the run of the producers this consumer reads
+    private transient int generation;
+    // the batch being returned a tuple at a time
+    private transient TupleBatch current;
+    private transient int row;
+
+    Consumer(Producers producers, int index) {
+        this.producers = producers;
+        this.index = index;
+    }
+
+    /**
+     * @return the estimated cardinality of this consumer's tuples, given
+     * that of all the tuples of the exchange's producers
+     */
+    abstract int estimateCardinality(int producerCardinality);
+
+    public TupleDesc getTupleDesc() {
+        return producers.children[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        generation = producers.generation();
+        current = null;
+        producers.open();
+        super.open();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (current == null || row == current.size()) {
+            current = nextBatch();
+            row = 0;
+            if (current == null) {
+                return null;
+            }
+        }
+        return current.getTuple(row++);
+    }
+
+    /**
+     * Returns the next batch sent to this consumer, waiting for the
+     * producers if need be.  If some of the tuples of the last batch were
+     * returned one at a time, the rest of them come first.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (current != null && row < current.size()) {
+            TupleBatch rest = new TupleBatch(current.getTupleDesc());
+            rest.addRange(current, row, current.size() - row);
+            current = null;
+            return rest;
+        }
+        current = null;
+        return take();
+    }
+
+    /**
+     * Returns the next batch in this consumer's channel, waiting for the
+     * producers if need be, or null once they are done.
+     */
+    TupleBatch take() throws DbException, TransactionAbortedException {
+        return producers.channels[index].take(generation);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        current = null;
+        restart();
+    }
+
+    /**
+     * Makes {@link #take} return this consumer's batches from the first.
+     */
+    void restart() throws DbException, TransactionAbortedException {
+        if (producers.replayable) {
+            producers.channels[index].replay();
+        } else {
+            producers.rewind();
+            generation++;
+        }
+    }
+
+    public void close() {
+        super.close();
+        current = null;
+        producers.close(index);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return producers.children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        producers.children = children;
+    }
+}
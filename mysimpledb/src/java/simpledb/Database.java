@@ -21,9 +21,15 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    /**
+     * System property naming the buffer pool's page replacement policy, one of
+     * the {@link ReplacementPolicy.Kind} names (e.g. -Dsimpledb.replacementPolicy=TWO_Q).
+     */
+    public final static String REPLACEMENT_POLICY_PROPERTY = "simpledb.replacementPolicy";
+
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES, replacementPolicy());
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -35,6 +41,18 @@ public class Database {
         // startControllerThread();
     }
 
+    /**
+     * The replacement policy selected with REPLACEMENT_POLICY_PROPERTY, or
+     * the BufferPool default if the property is not set.
+     */
+    static ReplacementPolicy.Kind replacementPolicy() {
+        String name = System.getProperty(REPLACEMENT_POLICY_PROPERTY);
+        if (name == null) {
+            return BufferPool.DEFAULT_POLICY;
+        }
+        return ReplacementPolicy.Kind.valueOf(name.trim().toUpperCase());
+    }
+
     /**
      * Return the log file of the static Database instance
      */
@@ -61,11 +79,27 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, replacementPolicy());
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with the given replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind policyKind) {
+        return resetBufferPool(pages, policyKind, BufferPool.defaultPartitions(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with the given replacement policy and number of partitions and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind policyKind, int partitions) {
         java.lang.reflect.Field bufferPoolF = null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, policyKind, partitions));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -0,0 +1,419 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Exchange is the superclass of the operators that run parts of a query on
+ * other threads.  The child subplans of an exchange are its producers: each
+ * runs on a thread of a shared worker pool, reads its subplan a batch at a
+ * time and sends the tuples into the channels of the exchange, one for each
+ * {@link Consumer} of the exchange, which the rest of the plan reads like
+ * any other operator.  How the tuples are spread over the consumers is up
+ * to the kind of exchange: {@link Gather}, {@link Repartition} or
+ * {@link Broadcast}.
+ * <p/>
+ * The channels hold a few batches each, so the producers stay at most that
+ * far ahead of the consumers.  An exception thrown by a producer is thrown
+ * again by the consumers.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of batches a channel holds before its producers wait for the
+     * consumer.
+     */
+    public static final int CHANNEL_BATCHES = 8;
+
+    // the threads the producers run on; a producer can wait on another
+    // exchange's consumer, so the pool never makes a producer wait for a
+    // thread
+    private static final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-exchange");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * @return the name the exchange is shown with in query plans
+     */
+    public abstract String getName();
+
+    /**
+     * Stops the producers of the exchanges in a plan, which then behave as
+     * if their subplans had no more tuples.  Exchanges whose producers
+     * cannot be stopped are left to finish, and so is everything below them.
+     */
+    static void cancel(DbIterator plan) {
+        if (plan instanceof Consumer) {
+            ((Consumer) plan).producers.cancel();
+        } else if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren()) {
+                if (child != null) {
+                    cancel(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * The batches on their way from the producers of an exchange to one
+     * consumer.
+     */
+    static class Channel {
+        private final ArrayDeque<TupleBatch> batches = new ArrayDeque<TupleBatch>();
+        private final int capacity;
+        // the batches taken so far, if they are kept to be taken again
+        private final ArrayList<TupleBatch> taken;
+        // producers that are still sending
+        private int producers;
+        private int generation;
+        private boolean cancelled;
+        private Throwable error;
+
+        /**
+         * @param capacity the number of batches the channel holds
+         * @param keep     true if the batches taken are kept so that
+         *                 {@link #replay} can take them again
+         */
+        Channel(int capacity, boolean keep) {
+            this.capacity = capacity;
+            this.taken = keep ? new ArrayList<TupleBatch>() : null;
+        }
+
+        /**
+         * Empties the channel for a new run of its producers.
+         */
+        synchronized void reset(int producers, int generation) {
+            batches.clear();
+            if (taken != null) {
+                taken.clear();
+            }
+            this.producers = producers;
+            this.generation = generation;
+            this.cancelled = false;
+            this.error = null;
+            notifyAll();
+        }
+
+        /**
+         * Adds a batch, waiting while the channel is full.
+         *
+         * @return false if the batch was dropped because the channel was
+         * cancelled
+         */
+        synchronized boolean put(TupleBatch batch) {
+            try {
+                while (batches.size() >= capacity && !cancelled) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                return false;
+            }
+            if (cancelled) {
+                return false;
+            }
+            batches.addLast(batch);
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * Records that a producer has sent all its tuples.
+         */
+        synchronized void done() {
+            producers--;
+            notifyAll();
+        }
+
+        /**
+         * Records the exception a producer failed with.
+         */
+        synchronized void fail(Throwable e) {
+            if (error == null) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Drops the batches in the channel and any sent to it from now on,
+         * and ends the consumer's tuples.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            batches.clear();
+            notifyAll();
+        }
+
+        /**
+         * Makes the batches taken so far be taken again, before the rest.
+         */
+        synchronized void replay() {
+            for (int i = taken.size() - 1; i >= 0; i--) {
+                batches.addFirst(taken.get(i));
+            }
+            taken.clear();
+        }
+
+        /**
+         * Returns the next batch sent by the producers of the given run,
+         * waiting for one if need be.
+         *
+         * @return the batch, or null once all the producers are done
+         */
+        synchronized TupleBatch take(int generation) throws DbException, TransactionAbortedException {
+            try {
+                while (this.generation != generation
+                        || (batches.isEmpty() && producers > 0 && !cancelled && error == null)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for an exchange");
+            }
+            if (error instanceof TransactionAbortedException) {
+                throw (TransactionAbortedException) error;
+            } else if (error instanceof DbException) {
+                throw (DbException) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new DbException(error.toString());
+            }
+            TupleBatch batch = batches.pollFirst();
+            if (batch != null) {
+                if (taken != null) {
+                    taken.add(batch);
+                }
+                notifyAll();
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * The producers of an exchange, shared by its consumers.  They are
+     * started when the first consumer is opened, run again once every
+     * consumer has been rewound, and stopped and closed once every consumer
+     * has been closed.  Once cancelled they stay stopped until then.
+     * <p/>
+     * Producers still running when they are to run again are left to finish,
+     * their tuples dropped, rather than cancelled: the exchanges their
+     * subplans read may have consumers elsewhere in the plan that still
+     * need the rest of their tuples, such as those of a {@link Repartition}
+     * that are rewound on their own.
+     * <p/>
+     * The channels of replayable producers keep every batch instead, and
+     * their consumers are rewound by taking the batches again; such
+     * producers are never cancelled, but always run to the end.
+     */
+    abstract static class Producers {
+        DbIterator[] children;
+        final Channel[] channels;
+        final boolean replayable;
+
+        private boolean started;
+        private boolean cancelled;
+        private volatile boolean stopped;
+        // producers still running
+        private int running;
+        private int generation;
+        private int rewound;
+        private int closed;
+
+        /**
+         * @param children  the producers' subplans
+         * @param consumers the number of consumers
+         * @param replayable true if the consumers are rewound by taking the
+         *                  batches again
+         */
+        Producers(DbIterator[] children, int consumers, boolean replayable) {
+            if (children.length == 0) {
+                throw new IllegalArgumentException("an exchange needs at least one producer");
+            }
+            this.children = children;
+            this.channels = new Channel[consumers];
+            for (int i = 0; i < consumers; i++) {
+                channels[i] = replayable ? new Channel(Integer.MAX_VALUE, true)
+                        : new Channel(CHANNEL_BATCHES, false);
+            }
+            this.replayable = replayable;
+        }
+
+        /**
+         * Sends the tuples of a batch of a producer's subplan to the
+         * channels.  The batch is only good until the call returns.
+         *
+         * @param producer the index of the producer
+         */
+        abstract void send(int producer, TupleBatch batch);
+
+        /**
+         * Sends any tuples a producer has held back, once its subplan has no
+         * more.
+         */
+        abstract void flush(int producer);
+
+        /**
+         * Forgets any tuples a producer held back in an earlier run.
+         */
+        abstract void begin(int producer);
+
+        /**
+         * @return true if the producers have been told to stop
+         */
+        boolean stopped() {
+            return stopped;
+        }
+
+        synchronized int generation() {
+            return generation;
+        }
+
+        synchronized void open() {
+            if (!started) {
+                started = true;
+                start(false);
+            }
+        }
+
+        /**
+         * Rewinds a consumer; the producers run again once all of them have
+         * been.
+         */
+        synchronized void rewind() {
+            if (++rewound < channels.length) {
+                return;
+            }
+            rewound = 0;
+            for (Channel c : channels) {
+                c.cancel();
+            }
+            awaitProducers();
+            cancelled = false;
+            generation++;
+            start(true);
+        }
+
+        /**
+         * Closes a consumer; the producers are stopped and their subplans
+         * closed once all of them are closed.
+         */
+        synchronized void close(int consumer) {
+            channels[consumer].cancel();
+            if (++closed < channels.length) {
+                return;
+            }
+            closed = 0;
+            stop();
+            for (DbIterator child : children) {
+                child.close();
+            }
+            started = false;
+            cancelled = false;
+        }
+
+        /**
+         * Makes the producers stop at their next batch, along with the
+         * exchanges their subplans read.
+         */
+        synchronized void cancel() {
+            if (replayable) {
+                return;
+            }
+            cancelled = true;
+            stopped = true;
+            for (Channel c : channels) {
+                c.cancel();
+            }
+            for (DbIterator child : children) {
+                Exchange.cancel(child);
+            }
+        }
+
+        // stops the producers and waits for them to finish
+        private void stop() {
+            cancel();
+            awaitProducers();
+        }
+
+        // waits for the producers to finish
+        private void awaitProducers() {
+            boolean interrupted = false;
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // starts a producer for each child, which opens it or rewinds it
+        private void start(final boolean rewind) {
+            for (Channel c : channels) {
+                c.reset(children.length, generation);
+                if (cancelled) {
+                    c.cancel();
+                }
+            }
+            if (cancelled) {
+                return;
+            }
+            stopped = false;
+            running = children.length;
+            for (int i = 0; i < children.length; i++) {
+                final int producer = i;
+                workers.execute(new Runnable() {
+                    public void run() {
+                        produce(producer, rewind);
+                    }
+                });
+            }
+        }
+
+        private void produce(int producer, boolean rewind) {
+            DbIterator child = children[producer];
+            begin(producer);
+            try {
+                if (rewind) {
+                    child.rewind();
+                } else {
+                    child.open();
+                }
+                BatchIterator batches = BatchAdapter.of(child);
+                TupleBatch batch;
+                while (!stopped && (batch = batches.nextBatch()) != null) {
+                    send(producer, batch);
+                }
+                if (!stopped) {
+                    flush(producer);
+                }
+            } catch (Throwable e) {
+                for (Channel c : channels) {
+                    c.fail(e);
+                }
+            } finally {
+                for (Channel c : channels) {
+                    c.done();
+                }
+                synchronized (this) {
+                    running--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
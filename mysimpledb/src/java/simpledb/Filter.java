@@ -12,6 +12,11 @@ public class Filter extends Operator {
     
     public DbIterator[] iter_children; //  array of child DbIterators -- if only one child, only 1 DbIterator in array
     public Predicate pred; //predicate for the filter
+    
+    // the child read by batch, and the indexes of the rows of a child
+    // batch that pass
+    private transient BatchIterator batches;
+    private transient int[] passed;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -37,11 +42,14 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
     	iter_children[0].open();
+    	batches = BatchAdapter.of(iter_children[0]);
     	super.open();
     }
 
     public void close() {
     	iter_children[0].close();
+    	batches = null;
+    	passed = null;
     	super.close();
     }
 
@@ -71,6 +79,29 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Returns the rows of the child's next batches that pass the predicate,
+     * skipping batches none of which do, as a selection of the child's
+     * batch rather than a copy.  A batch all of whose rows pass is returned
+     * as it is.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (passed == null) {
+            passed = new int[TupleBatch.CAPACITY];
+        }
+        TupleBatch in;
+        while ((in = batches.nextBatch()) != null) {
+            int n = pred.filter(in, passed);
+            if (n == in.size()) {
+                return in;
+            }
+            if (n > 0) {
+                return in.select(passed, n);
+            }
+        }
+        return null;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return iter_children;
@@ -0,0 +1,70 @@
+package simpledb;
+
+/**
+ * Gather is the exchange that brings the tuples of several subplans, run in
+ * parallel, together into one stream, in no particular order.
+ */
+public class Gather extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Copies the batches of each producer into batches of its own, which are
+     * sent to the one channel as they fill up.
+     */
+    private static class Copier extends Producers {
+        private final TupleBatch[] out;
+
+        Copier(DbIterator[] children) {
+            super(children, 1, false);
+            out = new TupleBatch[children.length];
+        }
+
+        void send(int producer, TupleBatch batch) {
+            int start = 0;
+            while (start < batch.size()) {
+                if (out[producer] == null) {
+                    out[producer] = new TupleBatch(batch.getTupleDesc());
+                }
+                TupleBatch o = out[producer];
+                int n = Math.min(batch.size() - start, o.capacity() - o.size());
+                o.addRange(batch, start, n);
+                start += n;
+                if (o.isFull()) {
+                    out[producer] = null;
+                    channels[0].put(o);
+                }
+            }
+        }
+
+        void begin(int producer) {
+            out[producer] = null;
+        }
+
+        void flush(int producer) {
+            TupleBatch o = out[producer];
+            out[producer] = null;
+            if (o != null && o.size() > 0) {
+                channels[0].put(o);
+            }
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param children the subplans to run in parallel, which return tuples
+     *                 of the same TupleDesc
+     */
+    public Gather(DbIterator[] children) {
+        super(new Copier(children), 0);
+    }
+
+    public String getName() {
+        return "Gather(" + getChildren().length + ")";
+    }
+
+    int estimateCardinality(int producerCardinality) {
+        return producerCardinality;
+    }
+}
@@ -0,0 +1,402 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Knows how to compute any number of aggregates at once, over groups keyed
+ * by any number of fields.  The aggregate fields may be IntFields, or
+ * StringFields for COUNT.
+ * <p/>
+ * Groups are numbered in order of first appearance, and the accumulated
+ * values of all the aggregates of group g are kept side by side from index
+ * g * width of a single int array, so merging a tuple takes one group lookup
+ * however many aggregates there are.  A single int group field is looked up
+ * in an {@link IntGroupTable}; other group keys are hashed as lists of
+ * Fields.
+ */
+public class GroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gbfields;
+    // the indexes of the group-by fields in a partial aggregate
+    private final int[] partialGbfields;
+    private final Type[] gbfieldtypes;
+    private final int[] afields;
+    private final Op[] what;
+    // index of each aggregate's accumulated values within those of a group,
+    // and the number of ints accumulated for a group
+    private final int[] offsets;
+    private final int width;
+
+    // groups by int group value, if grouping on a single int field
+    private IntGroupTable intGroups;
+    // group numbers by key otherwise, with an empty key if there is no
+    // grouping, and the key of each group
+    private HashMap<List<Field>, Integer> groups;
+    private ArrayList<List<Field>> keys;
+    private int numGroups;
+    private int[] acc;
+    // the index of the accumulated values of each row of a batch
+    private transient int[] bases;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param td       the TupleDesc of the tuples to be merged
+     * @param gbfields the 0-based indexes of the group-by fields in the
+     *                 tuple, most significant first; empty if there is no
+     *                 grouping
+     * @param afields  the 0-based index of the aggregate field of each
+     *                 aggregate
+     * @param what     the aggregation operator of each aggregate
+     * @throws IllegalArgumentException if there are no aggregates, or an
+     *                                  aggregate other than COUNT is over a
+     *                                  field that is not an int
+     */
+    public GroupAggregator(TupleDesc td, int[] gbfields, int[] afields, Op[] what) {
+        if (afields.length == 0 || afields.length != what.length) {
+            throw new IllegalArgumentException("need one operator for each of at least one aggregate");
+        }
+        this.gbfields = gbfields.clone();
+        this.partialGbfields = new int[gbfields.length];
+        this.gbfieldtypes = new Type[gbfields.length];
+        for (int i = 0; i < gbfields.length; i++) {
+            partialGbfields[i] = i;
+            gbfieldtypes[i] = td.getFieldType(gbfields[i]);
+        }
+        this.afields = afields.clone();
+        this.what = what.clone();
+        this.offsets = new int[what.length];
+        int w = 0;
+        for (int a = 0; a < what.length; a++) {
+            if (what[a] != Op.COUNT && td.getFieldType(afields[a]) != Type.INT_TYPE) {
+                throw new IllegalArgumentException("Invalid operator type " + what[a]
+                        + " over " + td.getFieldType(afields[a]));
+            }
+            offsets[a] = w;
+            w += accumulators(what[a]);
+        }
+        this.width = w;
+        if (gbfields.length == 1 && gbfieldtypes[0] == Type.INT_TYPE) {
+            this.intGroups = new IntGroupTable();
+        } else {
+            this.groups = new HashMap<List<Field>, Integer>();
+            this.keys = new ArrayList<List<Field>>();
+        }
+        this.acc = new int[8 * width];
+    }
+
+    /**
+     * @return the number of ints accumulated for an aggregate: the sum and
+     * the count for AVG and SUM_COUNT, the sum and the sum of the counts for
+     * SC_AVG, and the one result for the others
+     */
+    private static int accumulators(Op op) {
+        return op == Op.AVG || op == Op.SUM_COUNT || op == Op.SC_AVG ? 2 : 1;
+    }
+
+    /**
+     * @return the index of the accumulated values of the group of a tuple
+     * whose group-by fields are at the given indexes, adding a new group if
+     * there is none
+     */
+    private int groupOf(Tuple tup, int[] fields) {
+        if (intGroups != null) {
+            return base(intGroups.group(((IntField) tup.getField(fields[0])).getValue()));
+        }
+        Field[] key = new Field[fields.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = tup.getField(fields[i]);
+        }
+        return base(numberOf(key));
+    }
+
+    /**
+     * @return the number of the group with the given key, adding a new group
+     * if there is none
+     */
+    private int numberOf(Field[] key) {
+        List<Field> k = Arrays.asList(key);
+        Integer found = groups.get(k);
+        if (found != null) {
+            return found;
+        }
+        groups.put(k, numGroups);
+        keys.add(k);
+        return numGroups;
+    }
+
+    /**
+     * @return the index of the accumulated values of group g, which are
+     * initialized if g is a new group
+     */
+    private int base(int g) {
+        if (g == numGroups) {
+            numGroups++;
+            if (numGroups * width > acc.length) {
+                acc = Arrays.copyOf(acc, acc.length * 2);
+            }
+            for (int a = 0; a < what.length; a++) {
+                int o = g * width + offsets[a];
+                acc[o] = what[a] == Op.MIN ? Integer.MAX_VALUE
+                        : what[a] == Op.MAX ? Integer.MIN_VALUE : 0;
+                if (accumulators(what[a]) == 2) {
+                    acc[o + 1] = 0;
+                }
+            }
+        }
+        return g * width;
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group, grouping as
+     * indicated in the constructor
+     *
+     * @param tup the Tuple containing the aggregate fields and the group-by
+     *            fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int base = groupOf(tup, gbfields);
+        for (int a = 0; a < what.length; a++) {
+            int o = base + offsets[a];
+            if (what[a] == Op.COUNT) {
+                acc[o]++;
+                continue;
+            }
+            int x = ((IntField) tup.getField(afields[a])).getValue();
+            int sc = what[a] == Op.SC_AVG ? ((IntField) tup.getField(afields[a] + 1)).getValue() : 0;
+            accumulate(what[a], o, x, sc);
+        }
+    }
+
+    /**
+     * Merge the rows of a batch into the aggregates of their groups: looks
+     * up the groups of all the rows, then folds the values of each
+     * aggregate into them in a loop over the batch.
+     */
+    public void mergeBatchIntoGroups(TupleBatch batch) {
+        int n = batch.size();
+        int[] sel = batch.selection();
+        if (bases == null) {
+            bases = new int[TupleBatch.CAPACITY];
+        }
+        if (intGroups != null) {
+            int[] g = batch.ints(gbfields[0]);
+            for (int r = 0; r < n; r++) {
+                bases[r] = base(intGroups.group(g[sel == null ? r : sel[r]]));
+            }
+        } else if (gbfields.length == 0) {
+            Arrays.fill(bases, 0, n, base(numberOf(new Field[0])));
+        } else {
+            for (int r = 0; r < n; r++) {
+                Field[] key = new Field[gbfields.length];
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = batch.getField(gbfields[i], r);
+                }
+                bases[r] = base(numberOf(key));
+            }
+        }
+        for (int a = 0; a < what.length; a++) {
+            int off = offsets[a];
+            if (what[a] == Op.COUNT) {
+                for (int r = 0; r < n; r++) {
+                    acc[bases[r] + off]++;
+                }
+                continue;
+            }
+            int[] x = batch.ints(afields[a]);
+            int[] sc = what[a] == Op.SC_AVG ? batch.ints(afields[a] + 1) : null;
+            for (int r = 0; r < n; r++) {
+                int i = sel == null ? r : sel[r];
+                accumulate(what[a], bases[r] + off, x[i], sc == null ? 0 : sc[i]);
+            }
+        }
+    }
+
+    /**
+     * Folds an aggregate value (and, for SC_AVG, a count) into the
+     * accumulated values at index o.
+     */
+    private void accumulate(Op op, int o, int x, int sc) {
+        switch (op) {
+            case MIN:
+                if (x < acc[o])
+                    acc[o] = x;
+                break;
+            case MAX:
+                if (x > acc[o])
+                    acc[o] = x;
+                break;
+            case SUM:
+                acc[o] += x;
+                break;
+            case AVG:
+            case SUM_COUNT:
+                acc[o] += x;
+                acc[o + 1]++;
+                break;
+            case SC_AVG:
+                acc[o] += x;
+                acc[o + 1] += sc;
+                break;
+        }
+    }
+
+    /**
+     * Merge a partial aggregate, as returned by {@link #partials}, into its
+     * group
+     *
+     * @param partial the group-by fields followed by the accumulated values
+     *                of each aggregate
+     */
+    public void mergePartialIntoGroup(Tuple partial) {
+        int base = groupOf(partial, partialGbfields);
+        for (int a = 0; a < what.length; a++) {
+            int o = base + offsets[a];
+            int p = gbfields.length + offsets[a];
+            int x = ((IntField) partial.getField(p)).getValue();
+            switch (what[a]) {
+                case MIN:
+                    if (x < acc[o])
+                        acc[o] = x;
+                    break;
+                case MAX:
+                    if (x > acc[o])
+                        acc[o] = x;
+                    break;
+                default:
+                    acc[o] += x;
+                    if (accumulators(what[a]) == 2) {
+                        acc[o + 1] += ((IntField) partial.getField(p + 1)).getValue();
+                    }
+                    break;
+            }
+        }
+    }
+
+    public int numGroups() {
+        return numGroups;
+    }
+
+    public void clear() {
+        if (intGroups != null) {
+            intGroups.clear();
+        } else {
+            groups.clear();
+            keys.clear();
+        }
+        numGroups = 0;
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples are the group-by fields followed by
+     * the value of each aggregate, two values (the sum and the count) for
+     * SUM_COUNT
+     */
+    public DbIterator iterator() {
+        ArrayList<Type> types = new ArrayList<Type>(Arrays.asList(gbfieldtypes));
+        for (Op op : what) {
+            types.add(Type.INT_TYPE);
+            if (op == Op.SUM_COUNT) {
+                types.add(Type.INT_TYPE);
+            }
+        }
+        return new GroupIterator(new TupleDesc(types.toArray(new Type[types.size()])), false);
+    }
+
+    /**
+     * Create a DbIterator over the partial aggregates of the groups.
+     *
+     * @return a DbIterator whose tuples are the group-by fields followed by
+     * the accumulated values of each aggregate
+     */
+    public DbIterator partials() {
+        Type[] types = new Type[gbfields.length + width];
+        System.arraycopy(gbfieldtypes, 0, types, 0, gbfields.length);
+        Arrays.fill(types, gbfields.length, types.length, Type.INT_TYPE);
+        return new GroupIterator(new TupleDesc(types), true);
+    }
+
+    /**
+     * Iterates over the groups in order of first appearance, building the
+     * result or partial tuple of each as it is returned.
+     */
+    private class GroupIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td;
+        private final boolean partial;
+        // next group to return, or -1 when closed
+        private int next = -1;
+
+        GroupIterator(TupleDesc td, boolean partial) {
+            this.td = td;
+            this.partial = partial;
+        }
+
+        public void open() {
+            next = 0;
+        }
+
+        public boolean hasNext() {
+            return next >= 0 && next < numGroups;
+        }
+
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No more groups.");
+            int g = next++;
+            Tuple tup = new Tuple(td);
+            int i = 0;
+            if (intGroups != null) {
+                tup.setField(i++, new IntField(intGroups.key(g)));
+            } else {
+                for (Field f : keys.get(g)) {
+                    tup.setField(i++, f);
+                }
+            }
+            int base = g * width;
+            if (partial) {
+                for (int j = 0; j < width; j++) {
+                    tup.setField(i++, new IntField(acc[base + j]));
+                }
+                return tup;
+            }
+            for (int a = 0; a < what.length; a++) {
+                int o = base + offsets[a];
+                switch (what[a]) {
+                    case AVG:
+                        tup.setField(i++, new IntField(acc[o] / acc[o + 1]));
+                        break;
+                    case SUM_COUNT:
+                        tup.setField(i++, new IntField(acc[o]));
+                        tup.setField(i++, new IntField(acc[o + 1]));
+                        break;
+                    case SC_AVG:
+                        tup.setField(i++, new IntField(acc[o] / acc[o + 1]));
+                        break;
+                    default:
+                        tup.setField(i++, new IntField(acc[o]));
+                        break;
+                }
+            }
+            return tup;
+        }
+
+        public void rewind() {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            next = -1;
+        }
+    }
+}
@@ -1,14 +1,136 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join by building a hash
+ * table over the smaller of its two inputs and probing it with the tuples of
+ * the other, which are streamed through without being stored.
+ * <p/>
+ * The sizes of the inputs are not known up front, so open reads both children
+ * in step until one of them runs out; that one becomes the build side, and the
+ * tuples already read from the other are probed before the rest of it.
+ * <p/>
+ * The hash table is limited to a budget of tuples (see
+ * {@link #setMaxTableTuples}).  If both inputs turn out to be bigger than
+ * that, the join falls back to a Grace hash join: both inputs are split on a
+ * hash of the join field into {@link #PARTITIONS} pairs of temporary heap
+ * files, and each pair is then joined on its own, building on the smaller
+ * file of the pair.  A pair that still does not fit is split again with a
+ * different hash, up to {@link #MAX_PASSES} partitioning passes; after that
+ * (typically because most tuples share one key) its build file is loaded a
+ * budget at a time and the probe file is read once for each part.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Default maximum number of tuples in the hash table of one join.
+     */
+    public static final int DEFAULT_MAX_TABLE_TUPLES = 1 << 20;
+
+    private static int maxTableTuples = DEFAULT_MAX_TABLE_TUPLES;
+
+    /**
+     * Number of partitions an input is split into by each partitioning pass.
+     */
+    public static final int PARTITIONS = 16;
+
+    /**
+     * Maximum number of partitioning passes over any tuple.
+     */
+    public static final int MAX_PASSES = 3;
+
+    /**
+     * A pair of partitions of the two inputs, either of which may be null
+     * if no tuple hashed to it.
+     */
+    private static class PartitionPair {
+        final TempHeapFile left;
+        final TempHeapFile right;
+        // number of partitioning passes that produced this pair
+        final int pass;
+
+        PartitionPair(TempHeapFile left, TempHeapFile right, int pass) {
+            this.left = left;
+            this.right = right;
+            this.pass = pass;
+        }
+
+        void delete() {
+            if (left != null) {
+                left.delete();
+            }
+            if (right != null) {
+                right.delete();
+            }
+        }
+    }
+
+    private final JoinPredicate pred;
+    private DbIterator[] children;
+    private TupleDesc td;
+    // maximum number of tuples in the hash table
+    private final int budget;
+
+    // build side tuples, keyed by their join field
+    private transient HashMap<Field, ArrayList<Tuple>> table;
+    // true if child1 is the build side, false if child2 is
+    private transient boolean buildIsChild1;
+    // probe side tuples read while looking for the smaller input
+    private transient Iterator<Tuple> probePrefix;
+    // the probe tuple being joined, and its remaining matches
+    private transient Tuple probe;
+    private transient Iterator<Tuple> matches;
+
+    // the children read by batch
+    private transient BatchIterator batches1;
+    private transient BatchIterator batches2;
+    // when returning batches: the batch of probe tuples being joined, the
+    // probe row being joined, its matches and the next one to join, and the
+    // batches the probe tuples read a tuple at a time and the joined tuples
+    // are put in
+    private transient TupleBatch probeBatch;
+    private transient int probeRow;
+    private transient ArrayList<Tuple> bucket;
+    private transient int bucketIndex;
+    private transient TupleBatch probeRows;
+    private transient TupleBatch joined;
+
+    // true if the inputs were partitioned to temporary files
+    private transient boolean spilled;
+    // partition pairs still to be joined
+    private transient LinkedList<PartitionPair> pending;
+    // the pair being joined, the rest of its build file beyond what is in
+    // the table, and its probe file
+    private transient PartitionPair current;
+    private transient DbFileIterator buildFile;
+    private transient DbFileIterator probeFile;
+
+    /**
+     * @return the maximum number of tuples in the hash table of a join
+     */
+    public static int getMaxTableTuples() {
+        return maxTableTuples;
+    }
+
+    /**
+     * Sets the maximum number of tuples in the hash table of joins created
+     * from now on.
+     */
+    public static void setMaxTableTuples(int tuples) {
+        if (tuples < 1) {
+            throw new IllegalArgumentException("hash table budget must be at least one tuple");
+        }
+        maxTableTuples = tuples;
+    }
+
+    public static void resetMaxTableTuples() {
+        maxTableTuples = DEFAULT_MAX_TABLE_TUPLES;
+    }
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -18,44 +140,326 @@ public class HashEquiJoin extends Operator {
      * @param child2 Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
-       throw new UnsupportedOperationException();
+        this(p, child1, child2, maxTableTuples);
+    }
+
+    /**
+     * Constructor for a join whose hash table holds at most maxTableTuples
+     * tuples, instead of the current default.
+     *
+     * @param p              The predicate to use to join the children
+     * @param child1         Iterator for the left(outer) relation to join
+     * @param child2         Iterator for the right(inner) relation to join
+     * @param maxTableTuples The maximum number of tuples in the hash table
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int maxTableTuples) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("HashEquiJoin only supports equality predicates");
+        }
+        if (maxTableTuples < 1) {
+            throw new IllegalArgumentException("hash table budget must be at least one tuple");
+        }
+        this.pred = p;
+        this.budget = maxTableTuples;
+        setChildren(new DbIterator[]{child1, child2});
     }
 
     public JoinPredicate getJoinPredicate() {
-        // some code goes here
-        return null;
+        return pred;
     }
 
     public TupleDesc getTupleDesc() {
-        // some code goes here
-        return null;
+        return td;
     }
 
+    /**
+     * @return the field name of join field1. Should be quantified by
+     * alias or table name.
+     */
     public String getJoinField1Name() {
-        // some code goes here
-        return null;
+        return children[0].getTupleDesc().getFieldName(pred.getField1());
     }
 
+    /**
+     * @return the field name of join field2. Should be quantified by
+     * alias or table name.
+     */
     public String getJoinField2Name() {
-        // some code goes here
-        return null;
+        return children[1].getTupleDesc().getFieldName(pred.getField2());
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        // some code goes here
+        children[0].open();
+        children[1].open();
+        batches1 = BatchAdapter.of(children[0]);
+        batches2 = BatchAdapter.of(children[1]);
+        build();
+        super.open();
+    }
+
+    /**
+     * Reads both children a tuple at a time until one is exhausted and
+     * builds the hash table over that one, or partitions both if neither
+     * fits in the table.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> read1 = new ArrayList<Tuple>();
+        ArrayList<Tuple> read2 = new ArrayList<Tuple>();
+        boolean more1 = true, more2 = true;
+        while (more1 && more2 && read1.size() <= budget) {
+            if (children[0].hasNext()) {
+                read1.add(children[0].next());
+            } else {
+                more1 = false;
+            }
+            if (children[1].hasNext()) {
+                read2.add(children[1].next());
+            } else {
+                more2 = false;
+            }
+        }
+        probe = null;
+        matches = null;
+        if (more1 && more2) {
+            spilled = true;
+            partitionChildren(read1, read2);
+            nextPartition();
+            return;
+        }
+        spilled = false;
+        buildIsChild1 = !more1;
+        ArrayList<Tuple> buildTuples = buildIsChild1 ? read1 : read2;
+        int buildField = buildIsChild1 ? pred.getField1() : pred.getField2();
+
+        table = new HashMap<Field, ArrayList<Tuple>>(buildTuples.size() * 4 / 3 + 1);
+        for (Tuple t : buildTuples) {
+            addToTable(t, buildField);
+        }
+        probePrefix = (buildIsChild1 ? read2 : read1).iterator();
+    }
+
+    private void addToTable(Tuple t, int buildField) {
+        Field key = t.getField(buildField);
+        ArrayList<Tuple> bucket = table.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Tuple>(1);
+            table.put(key, bucket);
+        }
+        bucket.add(t);
+    }
+
+    /**
+     * Returns the partition, out of the given number, that a join field
+     * value with the given hash code goes to on the given pass.  Each pass mixes the hash differently,
+     * so that a partition which is split again spreads over all of the new
+     * partitions.  Also used by {@link Aggregate} to split groups.
+     */
+    static int partitionOf(int hash, int pass, int partitions) {
+        int h = hash ^ (pass * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h >>> 1) % partitions;
+    }
+
+    /**
+     * Appends a tuple to its partition, creating the partition's file if
+     * this is its first tuple.
+     */
+    private static void spill(Tuple t, int field, int pass, TempHeapFile[] parts, TupleDesc td)
+            throws DbException {
+        int i = partitionOf(t.getField(field).hashCode(), pass, PARTITIONS);
+        try {
+            if (parts[i] == null) {
+                parts[i] = new TempHeapFile(td);
+            }
+            parts[i].append(t);
+        } catch (IOException e) {
+            throw new DbException("Couldn't write spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Splits both children, starting with the tuples already read from them,
+     * into the pending partition pairs of the first pass.
+     */
+    private void partitionChildren(ArrayList<Tuple> read1, ArrayList<Tuple> read2)
+            throws DbException, TransactionAbortedException {
+        TupleDesc td1 = children[0].getTupleDesc(), td2 = children[1].getTupleDesc();
+        TempHeapFile[] left = new TempHeapFile[PARTITIONS];
+        TempHeapFile[] right = new TempHeapFile[PARTITIONS];
+        pending = new LinkedList<PartitionPair>();
+        try {
+            for (Tuple t : read1) {
+                spill(t, pred.getField1(), 1, left, td1);
+            }
+            read1.clear();
+            while (children[0].hasNext()) {
+                spill(children[0].next(), pred.getField1(), 1, left, td1);
+            }
+            for (Tuple t : read2) {
+                spill(t, pred.getField2(), 1, right, td2);
+            }
+            read2.clear();
+            while (children[1].hasNext()) {
+                spill(children[1].next(), pred.getField2(), 1, right, td2);
+            }
+        } finally {
+            for (int i = 0; i < PARTITIONS; i++) {
+                pending.add(new PartitionPair(left[i], right[i], 1));
+            }
+        }
+    }
+
+    /**
+     * Replaces a partition pair at the front of the pending list with the
+     * pairs it splits into on the next pass.
+     */
+    private void split(PartitionPair pair) throws DbException, TransactionAbortedException {
+        int pass = pair.pass + 1;
+        TempHeapFile[] left = new TempHeapFile[PARTITIONS];
+        TempHeapFile[] right = new TempHeapFile[PARTITIONS];
+        try {
+            DbFileIterator it = pair.left.iterator(null);
+            it.open();
+            while (it.hasNext()) {
+                spill(it.next(), pred.getField1(), pass, left, pair.left.getTupleDesc());
+            }
+            it = pair.right.iterator(null);
+            it.open();
+            while (it.hasNext()) {
+                spill(it.next(), pred.getField2(), pass, right, pair.right.getTupleDesc());
+            }
+        } finally {
+            pair.delete();
+            for (int i = PARTITIONS - 1; i >= 0; i--) {
+                pending.addFirst(new PartitionPair(left[i], right[i], pass));
+            }
+        }
+    }
+
+    /**
+     * Moves on to the next pending partition pair that can produce output,
+     * splitting pairs that do not fit in the table, and loads the first
+     * part of its build file.
+     *
+     * @return false if there are no pairs left
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        discardCurrent();
+        while (!pending.isEmpty()) {
+            PartitionPair pair = pending.removeFirst();
+            if (pair.left == null || pair.right == null) {
+                pair.delete();
+                continue;
+            }
+            if (Math.min(pair.left.numTuples(), pair.right.numTuples()) > budget
+                    && pair.pass < MAX_PASSES) {
+                split(pair);
+                continue;
+            }
+            current = pair;
+            buildIsChild1 = pair.left.numTuples() <= pair.right.numTuples();
+            buildFile = (buildIsChild1 ? pair.left : pair.right).iterator(null);
+            buildFile.open();
+            probeFile = (buildIsChild1 ? pair.right : pair.left).iterator(null);
+            probeFile.open();
+            loadChunk();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Fills the table with up to a budget of tuples from the build file.
+     */
+    private void loadChunk() throws DbException, TransactionAbortedException {
+        int buildField = buildIsChild1 ? pred.getField1() : pred.getField2();
+        table = new HashMap<Field, ArrayList<Tuple>>();
+        for (int n = 0; n < budget && buildFile.hasNext(); n++) {
+            addToTable(buildFile.next(), buildField);
+        }
+        matches = null;
+    }
+
+    /**
+     * Once the probe file has been read, joins the next part of the build
+     * file against it or moves on to the next partition pair.
+     *
+     * @return false if there is nothing left to join
+     */
+    private boolean nextChunk() throws DbException, TransactionAbortedException {
+        if (buildFile != null && buildFile.hasNext()) {
+            loadChunk();
+            probeFile.rewind();
+            return true;
+        }
+        return nextPartition();
+    }
+
+    /**
+     * Deletes the files of the partition pair being joined.
+     */
+    private void discardCurrent() {
+        if (current != null) {
+            buildFile.close();
+            probeFile.close();
+            current.delete();
+            current = null;
+            buildFile = null;
+            probeFile = null;
+        }
+    }
+
+    /**
+     * Deletes all temporary files of a partitioned join.
+     */
+    private void discardSpill() {
+        discardCurrent();
+        if (pending != null) {
+            for (PartitionPair pair : pending) {
+                pair.delete();
+            }
+            pending = null;
+        }
+        spilled = false;
     }
 
     public void close() {
-        // some code goes here
+        children[0].close();
+        children[1].close();
+        discardSpill();
+        table = null;
+        probePrefix = null;
+        probe = null;
+        matches = null;
+        resetBatches();
+        probeRows = null;
+        joined = null;
+        super.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        // some code goes here
+        if (spilled) {
+            // the partitions are deleted as they are joined, so start over
+            discardSpill();
+            children[0].rewind();
+            children[1].rewind();
+            build();
+            resetBatches();
+            return;
+        }
+        // the hash table is still good; replay the probe side from the start,
+        // which also yields the tuples that were read ahead during the build
+        (buildIsChild1 ? children[1] : children[0]).rewind();
+        probePrefix = null;
+        probe = null;
+        matches = null;
+        resetBatches();
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -75,19 +479,133 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // some code goes here
-        return null;
+        while (matches == null || !matches.hasNext()) {
+            probe = nextProbe();
+            if (probe == null) {
+                if (spilled && nextChunk()) {
+                    continue;
+                }
+                return null;
+            }
+            // the build side can change from one partition pair to the next
+            int probeField = buildIsChild1 ? pred.getField2() : pred.getField1();
+            ArrayList<Tuple> bucket = table.get(probe.getField(probeField));
+            matches = bucket == null ? null : bucket.iterator();
+        }
+        Tuple match = matches.next();
+        return buildIsChild1 ? concat(match, probe) : concat(probe, match);
+    }
+
+    /**
+     * Returns the next tuple of the probe side, or null if there are no more.
+     */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (spilled) {
+            return probeFile != null && probeFile.hasNext() ? probeFile.next() : null;
+        }
+        if (probePrefix != null && probePrefix.hasNext()) {
+            return probePrefix.next();
+        }
+        DbIterator probeChild = buildIsChild1 ? children[1] : children[0];
+        return probeChild.hasNext() ? probeChild.next() : null;
+    }
+
+    /**
+     * Returns the next tuples generated by the join, the same as
+     * {@link #fetchNext} would.  The probe side is read by batch, and each
+     * joined tuple is written straight into the batch returned, without a
+     * Tuple of its own.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (joined == null) {
+            joined = new TupleBatch(td);
+        }
+        joined.clear();
+        while (!joined.isFull()) {
+            if (bucket != null && bucketIndex < bucket.size()) {
+                Tuple match = bucket.get(bucketIndex++);
+                int row = joined.addRow();
+                if (buildIsChild1) {
+                    joined.setFields(row, 0, match);
+                    joined.setFields(row, match.fields.length, probeBatch, probeRow);
+                } else {
+                    joined.setFields(row, 0, probeBatch, probeRow);
+                    joined.setFields(row, probeBatch.getTupleDesc().numFields(), match);
+                }
+                continue;
+            }
+            if (probeBatch != null && probeRow + 1 < probeBatch.size()) {
+                probeRow++;
+                int probeField = buildIsChild1 ? pred.getField2() : pred.getField1();
+                bucket = table.get(probeBatch.getField(probeField, probeRow));
+                bucketIndex = 0;
+                continue;
+            }
+            bucket = null;
+            probeRow = -1;
+            probeBatch = nextProbeBatch();
+            if (probeBatch == null && !(spilled && nextChunk())) {
+                break;
+            }
+        }
+        return joined.size() > 0 ? joined : null;
+    }
+
+    /**
+     * Returns the next batch of the probe side, or null if there are no
+     * more.  The probe child's batches are used as they are; the tuples of
+     * partition files and the ones read while building are collected into a
+     * batch.
+     */
+    private TupleBatch nextProbeBatch() throws DbException, TransactionAbortedException {
+        boolean prefix = probePrefix != null && probePrefix.hasNext();
+        if (!spilled && !prefix) {
+            return (buildIsChild1 ? batches2 : batches1).nextBatch();
+        }
+        TupleDesc probeTd = children[buildIsChild1 ? 1 : 0].getTupleDesc();
+        if (probeRows == null || !probeRows.getTupleDesc().equals(probeTd)) {
+            probeRows = new TupleBatch(probeTd);
+        }
+        probeRows.clear();
+        if (spilled) {
+            while (!probeRows.isFull() && probeFile != null && probeFile.hasNext()) {
+                probeRows.add(probeFile.next());
+            }
+        } else {
+            while (!probeRows.isFull() && probePrefix.hasNext()) {
+                probeRows.add(probePrefix.next());
+            }
+        }
+        return probeRows.size() > 0 ? probeRows : null;
+    }
+
+    /**
+     * Forgets the probe batch being joined, so that nextBatch starts from
+     * the probe side's next tuple.
+     */
+    private void resetBatches() {
+        probeBatch = null;
+        bucket = null;
+    }
+
+    private Tuple concat(Tuple t1, Tuple t2) {
+        Tuple tNew = new Tuple(td);
+        System.arraycopy(t1.fields, 0, tNew.fields, 0, t1.fields.length);
+        System.arraycopy(t2.fields, 0, tNew.fields, t1.fields.length, t2.fields.length);
+        return tNew;
     }
 
     @Override
     public DbIterator[] getChildren() {
-        // some code goes here
-        return null;
+        return children;
     }
 
     @Override
     public void setChildren(DbIterator[] children) {
-        // some code goes here
+        if (children.length == 2) {
+            this.children = children;
+            this.td = TupleDesc.merge(children[0].getTupleDesc(), children[1].getTupleDesc());
+        }
     }
 
 }
@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -9,6 +12,12 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p/>
+ * A HeapFile can be opened in mapped mode, meant for read-mostly tables:
+ * pages are then parsed directly out of a read-only memory mapping of the
+ * file instead of being copied in with a read call.  Writes still go
+ * through the file channel; the mapping shares the OS page cache with
+ * the channel, so readers see them.
  *
  * @author Sam Madden
  * @see simpledb.HeapPage#HeapPage
@@ -24,6 +33,40 @@ public class HeapFile implements DbFile {
 	// unique id for this HeapFile
 	public final int id;
 	
+	// channel used for all page reads and writes; opened read-only on first
+	// use, so a read-only file can be scanned, and reopened for writing on
+	// the first write.  Closed when the table is dropped from the Catalog
+	private FileChannel channel;
+	
+	// whether channel was opened for writing
+	private boolean writable;
+	
+	// the read-only channel replaced by the writable one, which readers
+	// may still be using; closed with the file
+	private FileChannel retired;
+	
+	// number of pages in the file; read from the file length once and kept
+	// up to date by writePage when the file grows
+	private volatile int num_pages;
+	
+	// whether pages are read through a memory mapping of the file
+	private final boolean mapped;
+	
+	// read-only mappings of consecutive MAX_SEGMENT_BYTES stretches of the
+	// file (a single mapping cannot exceed 2GB); a segment is remapped when
+	// the file has grown past the end of its mapping
+	private MappedByteBuffer[] segments;
+	
+	private static final int MAX_SEGMENT_BYTES = 1 << 30;
+	
+	// free-space map: a clear bit means the page is known to be full.  Bits
+	// start out set and are cleared when insertTuple finds the page full,
+	// and set again when a tuple is deleted from it or the page is restored
+	// by an abort, so inserts go straight to a page with room instead of
+	// probing every page from the start.
+	// Guarded by itself
+	private final BitSet may_have_space;
+	
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -31,9 +74,33 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f      the file that stores the on-disk backing store for this heap
+     *               file.
+     * @param mapped if true, pages are read through a memory mapping of the
+     *               file rather than with read calls
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
         this.f = f;
         this.td = td;
         this.id = f.getAbsoluteFile().hashCode();
+        this.num_pages = (int) ((f.length() + BufferPool.getPageSize() - 1) / BufferPool.getPageSize());
+        this.mapped = mapped;
+        this.segments = new MappedByteBuffer[0];
+        this.may_have_space = new BitSet();
+        this.may_have_space.set(0, num_pages);
+    }
+
+    /**
+     * @return true if pages of this file are read through a memory mapping
+     */
+    public boolean isMapped() {
+        return this.mapped;
     }
 
     /**
@@ -67,110 +134,258 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * Returns the channel for this file, opening it on first use; read-only
+     * unless the file has been written or does not exist yet.
+     */
+    private synchronized FileChannel channel() throws IOException {
+    	if (channel == null) {
+    		if (!f.exists()) {
+    			return writableChannel();
+    		}
+    		channel = new RandomAccessFile(f, "r").getChannel();
+    	}
+    	return channel;
+    }
+
+    /**
+     * Returns a channel for writing this file, replacing a read-only one.
+     */
+    private synchronized FileChannel writableChannel() throws IOException {
+    	if (!writable) {
+    		FileChannel ch = new RandomAccessFile(f, "rw").getChannel();
+    		retired = channel;
+    		channel = ch;
+    		writable = true;
+    	}
+    	return channel;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
-    	InputStream in;
+    	int page_size = BufferPool.getPageSize();
+    	if (this.numPages() < pid.pageNumber()) {
+    		throw new RuntimeException("Page not in file.");
+    		//throw new IllegalArgumentException("Page not in file.");
+    	}
+    	HeapPageId hpid = new HeapPageId(pid.getTableId(), pid.pageNumber());
+    	if (mapped) {
+    		try {
+    			ByteBuffer page_buf = mappedPage(pid.pageNumber());
+    			if (page_buf != null) {
+    				return new HeapPage(hpid, page_buf);
+    			}
+    		} catch (IOException e) {
+    			throw new RuntimeException("Couldn't map file");
+    		}
+    	}
+    	//byte array to store the bytes of the page
+    	byte[] page_byteAr = new byte[page_size];
+    	ByteBuffer buf = ByteBuffer.wrap(page_byteAr);
+    	long offset = (long) pid.pageNumber() * page_size;
     	try {
-    		in = new FileInputStream(this.f);
-    		int page_size = BufferPool.getPageSize();
-    		//byte array to store the bytes of the page
-    		byte[] page_byteAr = new byte[page_size];
-    		// skip to the correct page
-    		if (this.numPages() < pid.pageNumber()) {
-    			in.close();
-    			throw new RuntimeException("Page not in file.");
-    			//throw new IllegalArgumentException("Page not in file.");
+    		FileChannel ch = channel();
+    		// positional reads leave the channel's position alone, so
+    		// concurrent readers do not interfere
+    		while (buf.hasRemaining()) {
+    			if (ch.read(buf, offset + buf.position()) < 0) {
+    				break;
+    			}
     		}
-    		in.skip(pid.pageNumber() * page_size);
-    		// Read the number of bytes in a page
-    		in.read(page_byteAr, 0, page_size);
-        	in.close();
-        	return new HeapPage((new HeapPageId(pid.getTableId(), pid.pageNumber())), page_byteAr);
+        	return new HeapPage(hpid, page_byteAr);
     	} catch (IOException e){
     		throw new RuntimeException("Couldn't read file");
     	}
     }
 
+    /**
+     * Reads consecutive pages of the file with a single read, as when
+     * reading ahead of a scan.  Pages past the end of the file are left out.
+     *
+     * @param first the number of the first page
+     * @param count the number of pages
+     * @return the pages read, which may be fewer than count
+     */
+    public Page[] readPages(int first, int count) {
+    	int pages = Math.max(0, Math.min(count, numPages() - first));
+    	Page[] out = new Page[pages];
+    	if (mapped) {
+    		// mapped pages are not copied in, so there is no read to save
+    		for (int i = 0; i < pages; i++) {
+    			out[i] = readPage(new HeapPageId(getId(), first + i));
+    		}
+    		return out;
+    	}
+    	int page_size = BufferPool.getPageSize();
+    	byte[] data = new byte[pages * page_size];
+    	ByteBuffer buf = ByteBuffer.wrap(data);
+    	long offset = (long) first * page_size;
+    	try {
+    		FileChannel ch = channel();
+    		while (buf.hasRemaining()) {
+    			if (ch.read(buf, offset + buf.position()) < 0) {
+    				break;
+    			}
+    		}
+    		for (int i = 0; i < pages; i++) {
+    			out[i] = new HeapPage(new HeapPageId(getId(), first + i),
+    					Arrays.copyOfRange(data, i * page_size, (i + 1) * page_size));
+    		}
+    		return out;
+    	} catch (IOException e) {
+    		throw new RuntimeException("Couldn't read file");
+    	}
+    }
+
+    /**
+     * Closes the file channel and drops any mappings.  The channel is opened
+     * again if the file is used afterwards.
+     */
+    synchronized void close() throws IOException {
+    	segments = new MappedByteBuffer[0];
+    	writable = false;
+    	try {
+    		if (retired != null) {
+    			retired.close();
+    		}
+    	} finally {
+    		retired = null;
+    		if (channel != null) {
+    			channel.close();
+    			channel = null;
+    		}
+    	}
+    }
+
+    /**
+     * Returns a buffer over page pgNo of the file's mapping, mapping or
+     * remapping the segment it falls in if necessary, or null if the page
+     * lies (partly) past the end of the file.
+     */
+    private synchronized ByteBuffer mappedPage(int pgNo) throws IOException {
+    	int page_size = BufferPool.getPageSize();
+    	int segment_pages = Math.max(1, MAX_SEGMENT_BYTES / page_size);
+    	int seg = pgNo / segment_pages;
+    	int offset = (pgNo % segment_pages) * page_size;
+    	if (seg >= segments.length) {
+    		segments = Arrays.copyOf(segments, seg + 1);
+    	}
+    	MappedByteBuffer segment = segments[seg];
+    	if (segment == null || segment.capacity() < offset + page_size) {
+    		long start = (long) seg * segment_pages * page_size;
+    		long length = Math.min((long) segment_pages * page_size, channel().size() - start);
+    		if (length < offset + page_size) {
+    			return null;
+    		}
+    		segment = channel().map(FileChannel.MapMode.READ_ONLY, start, length);
+    		segments[seg] = segment;
+    	}
+    	// a private view, so concurrent readers do not share a position
+    	ByteBuffer page_buf = segment.duplicate();
+    	page_buf.position(offset);
+    	page_buf.limit(offset + page_size);
+    	return page_buf;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        RandomAccessFile file = new RandomAccessFile(f, "rw");
         int pgNo = page.getId().pageNumber();
         int page_size = BufferPool.getPageSize();
-        file.skipBytes(pgNo * page_size);
-        file.write(page.getPageData());
-        file.close();
+        ByteBuffer buf = ByteBuffer.wrap(page.getPageData());
+        long offset = (long) pgNo * page_size;
+        FileChannel ch = writableChannel();
+        while (buf.hasRemaining()) {
+        	ch.write(buf, offset + buf.position());
+        }
+        if (pgNo >= num_pages) {
+        	synchronized (this) {
+        		if (pgNo >= num_pages) {
+        			synchronized (may_have_space) {
+        				may_have_space.set(num_pages, pgNo + 1);
+        			}
+        			num_pages = pgNo + 1;
+        		}
+        	}
+        }
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-    	// size of the file / size of a page
-        int num_pages = (int) Math.ceil(((float) this.f.length()) / BufferPool.getPageSize());
         return num_pages;
     }
 
+    /**
+     * Returns the first page at or after pgNo that the free-space map says
+     * may have an empty slot, or -1 if there is none.
+     */
+    private int nextPageWithSpace(int pgNo) {
+    	synchronized (may_have_space) {
+    		int next = may_have_space.nextSetBit(pgNo);
+    		return next < num_pages ? next : -1;
+    	}
+    }
+
+    /**
+     * Records in the free-space map whether the page may have an empty slot.
+     */
+    private void setHasSpace(int pgNo, boolean has_space) {
+    	synchronized (may_have_space) {
+    		may_have_space.set(pgNo, has_space);
+    	}
+    }
+
+    /**
+     * Records that page pgNo was restored to its last committed state by an
+     * abort.  An insert that found the page full may have been filling it
+     * itself, so the page may have room again.
+     */
+    void pageRestored(int pgNo) {
+    	setHasSpace(pgNo, true);
+    }
+
+    /**
+     * Appends an empty page to the file and returns its page number; each
+     * caller gets a page of its own.
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+    	int pgNo = numPages();
+    	writePage(new HeapPage(new HeapPageId(getId(), pgNo), HeapPage.createEmptyPageData()));
+    	return pgNo;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         int tableId = this.getId();
         BufferPool bp = Database.getBufferPool();
         HeapPage page = null;
-        PageId pid = null;
-        boolean justGotLock = true;
-        boolean page_has_space = false; // indicates if page has an open slot
-        for (int i = 0; i < numPages(); i++) {
-        	pid = new HeapPageId(tableId, i);
-        	if (bp.holdsLock(tid, pid)) {
-        		// transaction already has lock
-        		justGotLock = false;
-        	}
+        int pgNo = nextPageWithSpace(0);
+        while (pgNo >= 0) {
+        	HeapPageId pid = new HeapPageId(tableId, pgNo);
+        	boolean justGotLock = !bp.holdsLock(tid, pid);
         	page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
         	if (page.getNumEmptySlots() > 0) {
-        		// page has an open slot
-        		
+        		// page has an open slot; nobody else can fill it while we
+        		// hold the shared lock, so it still has one once upgraded
         		page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
-        		page_has_space = true;
         		break;
-        	} else {
-        		if (i != numPages()-1) {
-        			if (justGotLock) {
-        				bp.releasePage(tid, pid);
-        			}
-        		} else {
-        			// IS THIS RIGHT??
-        			// we are going to get a new page, make sure no one is writing to the page
-        			// before the new page in the heapfile
-        			// this hopefully ensures that no one can create a new page at the same time
-        			// since they would first need to get a shared lock on this page and look 
-        			// for empty tuple slots
-        			page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
-        			break;
-        		}
         	}
-        	justGotLock = true;
+        	// page is full, skip it from now on
+        	setHasSpace(pgNo, false);
+        	if (justGotLock) {
+        		bp.releasePage(tid, pid);
+        	}
+        	page = null;
+        	pgNo = nextPageWithSpace(pgNo + 1);
         }
-        if (page_has_space){
-        	// a page has an open slot
-        	page.insertTuple(t);
-        } else {
+        if (page == null) {
         	// all pages are full -> create new page
-        	int pgNo = numPages();
-        	HeapPageId pid2 = new HeapPageId(tableId, pgNo);
-        	HeapPage new_page = new HeapPage(pid2, HeapPage.createEmptyPageData());
-        	
-        	OutputStream output = new BufferedOutputStream(new FileOutputStream(f, true), BufferPool.getPageSize());
-        	output.write(new_page.getPageData(),0, BufferPool.getPageSize());
-           	output.flush();
-           	output.close();
-           	page = (HeapPage) bp.getPage(tid, pid2, Permissions.READ_WRITE); // Note: this acquires the lock for the new page
-           	
-           	if (justGotLock) {
-           	// release lock for penultimate page if it was just acquired
-           		bp.releasePage(tid, pid);
-           	}
-           	page.insertTuple(t);
+        	HeapPageId pid = new HeapPageId(tableId, appendEmptyPage());
+        	page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE); // Note: this acquires the lock for the new page
         }
+        page.insertTuple(t);
         page.markDirty(true, tid);
         ArrayList<Page> modified_pages = new ArrayList<Page>();
         modified_pages.add(page);
@@ -188,24 +403,34 @@ public class HeapFile implements DbFile {
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.rid.pid, Permissions.READ_WRITE);
         page.deleteTuple(t);
         page.markDirty(true, tid);
+        setHasSpace(t_pid.pageNumber(), true);
         ArrayList<Page> modified_pages = new ArrayList<Page>();
         modified_pages.add(page);
         return modified_pages;
     }
 
     /**
-     * Class for HeapFile Iterator.  Iterates through tuples in a Heapfile
+     * Class for HeapFile Iterator.  Iterates through tuples in a Heapfile,
+     * or in a stretch of its pages
      */
     class HeapFileIterator implements DbFileIterator {
     	
     	// Current page number
     	private int current_page_num;
     	
-    	// Number of pages stored in this HeapFile
+    	// The first page and one past the last page to iterate over; with
+    	// morsels, those of the morsel being read
+    	private int first_page;
     	private int num_pages;
     	
+    	// The morsels the pages are claimed from, or null to read all of them
+    	private final PageMorsels morsels;
+    	
+    	// The round of the morsels' pages being read
+    	private int round;
+    	
     	// TupleIterator to iterate over the tuples in the file
-    	private Iterator<Tuple> tuple_iter;
+    	private HeapPage.TupleIterator tuple_iter;
     	
     	// Transaction Id
     	private TransactionId transId;
@@ -217,13 +442,23 @@ public class HeapFile implements DbFile {
          * Constructor for HeapFileIterator
          */
     	public HeapFileIterator(TransactionId tid) {
-    		current_page_num = 0; 
-    		num_pages = numPages();
-    		transId = tid;
-    		isOpen = false;
-    		if (num_pages <= 0) {
+    		this(tid, null);
+    	}
+    	
+    	/**
+         * Constructor for a HeapFileIterator over the morsels of the file's
+         * pages it claims from those shared with other iterators
+         */
+    	public HeapFileIterator(TransactionId tid, PageMorsels morsels) {
+    		if (morsels == null && numPages() <= 0) {
     			throw new RuntimeException("No pages in Heapfile");
     		}
+    		this.morsels = morsels;
+    		first_page = 0;
+    		num_pages = morsels == null ? numPages() : 0;
+    		current_page_num = first_page;
+    		transId = tid;
+    		isOpen = false;
     	}
     	
     	/**
@@ -241,7 +476,58 @@ public class HeapFile implements DbFile {
     			BufferPool bp = Database.getBufferPool();
     			HeapPage page = (HeapPage) bp.getPage(transId, pid, Permissions.READ_ONLY);
     			//create a TupleIterator for the page
-    			this.tuple_iter = page.iterator();
+    			this.tuple_iter = (HeapPage.TupleIterator) page.iterator();
+    	}
+    	
+    	/**
+         * Claims the next morsel of pages.
+         *
+         * @return false if there are no more
+         */
+    	private boolean claim() {
+    		int first = morsels.claim(round);
+    		if (first < 0) {
+    			return false;
+    		}
+    		first_page = first;
+    		num_pages = morsels.end(first);
+    		current_page_num = first_page;
+    		return true;
+    	}
+    	
+    	/**
+         * Moves on to the next page to read, claiming a new morsel once the
+         * pages of the last one have been read.
+         *
+         * @return false if there are no more pages
+         */
+    	private boolean nextPage() throws DbException, TransactionAbortedException {
+    		if (this.current_page_num + 1 < this.num_pages) {
+    			this.current_page_num++;
+    		} else if (morsels == null || !claim()) {
+    			tuple_iter = null;
+    			return false;
+    		}
+    		set_tuple_iter();
+    		return true;
+    	}
+    	
+    	/**
+         * Goes back to the first page, or with morsels claims the first of a
+         * new round.
+         */
+    	private void start() throws DbException, TransactionAbortedException {
+    		tuple_iter = null;
+    		if (morsels != null) {
+    			round++;
+    			if (!claim()) {
+    				return;
+    			}
+    		}
+    		current_page_num = first_page;
+    		if (current_page_num < num_pages) {
+    			set_tuple_iter();
+    		}
     	}
     	
     	/**
@@ -250,11 +536,9 @@ public class HeapFile implements DbFile {
          * @throws DbException when there are problems opening/accessing the database.
          */
         public void open() throws DbException, TransactionAbortedException {
-        	if (tuple_iter == null){
-        		set_tuple_iter();
-        	}
-        	// tuple_iter should not be null here
-        	if (tuple_iter == null) {
+        	start();
+        	// tuple_iter should not be null here unless there are no pages to read
+        	if (tuple_iter == null && morsels == null) {
         		throw new DbException("Could not set up tuple iterator.");
         	}
     		isOpen = true;
@@ -267,13 +551,11 @@ public class HeapFile implements DbFile {
         	if (!isOpen) {
         		return false;
         	}
-        	if (tuple_iter.hasNext()){
-        		return true;
-        	} else if (this.current_page_num + 1 < this.num_pages) {
-        		this.current_page_num++;
-            	set_tuple_iter();
-            	open();
-            	return this.hasNext();
+        	while (tuple_iter != null) {
+        		if (tuple_iter.hasNext()) {
+        			return true;
+        		}
+        		nextPage();
         	}
         	return false;
         }
@@ -295,6 +577,35 @@ public class HeapFile implements DbFile {
         	throw new NoSuchElementException("No more tuples in file.");
         }
 
+        /**
+         * Returns the following tuples, going through the pages' tuples
+         * directly: a page all of whose slots are in use is returned as
+         * the page's own batch, and otherwise the tuples are copied into the
+         * given batch until it is full or there are no more.
+         *
+         * @return a batch of at least one tuple, or null if there are no more
+         */
+        TupleBatch nextBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+        	batch.clear();
+        	if (!isOpen) {
+        		return null;
+        	}
+        	while (tuple_iter != null) {
+        		if (batch.size() == 0) {
+        			TupleBatch page = tuple_iter.wholePage();
+        			if (page != null) {
+        				return page;
+        			}
+        		}
+        		tuple_iter.addTo(batch);
+        		if (batch.isFull()) {
+        			return batch;
+        		}
+        		nextPage();
+        	}
+        	return batch.size() > 0 ? batch : null;
+        }
+
         /**
          * Resets the iterator to the start.
          *
@@ -304,8 +615,7 @@ public class HeapFile implements DbFile {
         	if (!isOpen) {
         		throw new DbException("Iterator is closed.  Operation not supported when closed.");
         	}
-        	current_page_num = 0;
-        	set_tuple_iter();
+        	start();
         }
         
         /**
@@ -322,5 +632,16 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid);
     }
 
+    /**
+     * Returns an iterator over the morsels of this file's pages that it
+     * claims from those shared with other iterators.
+     */
+    public DbFileIterator iterator(TransactionId tid, PageMorsels morsels) {
+        if (morsels.getFile() != this) {
+            throw new IllegalArgumentException("morsels of another file");
+        }
+        return new HeapFileIterator(tid, morsels);
+    }
+
 }
 
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -17,12 +19,18 @@ public class HeapPage implements Page {
     final byte header[];
     final Tuple tuples[];
     final int numSlots;
+    private int numEmpty; // number of slots not in use, kept up to date by markSlotUsed
     boolean dirty; // indicates if page is dirty
     TransactionId dirty_tid;  // transactionId that last dirtied the page, or null if page is dirty
 
     byte[] oldData;
     private final Byte oldDataLock = new Byte((byte) 0);
 
+    // the tuples of the page field by field, row i being slot i, for scans
+    // that read them a batch at a time; made by the first such scan and
+    // dropped when a tuple is inserted or deleted
+    private volatile TupleBatch slotBatch;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -41,27 +49,47 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the bytes between the buffer's position and
+     * its limit, for example a page of a memory-mapped file.  The tuples are
+     * parsed straight out of the buffer, which is not retained.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
         this.dirty = false;
         this.dirty_tid = null;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        ByteBuffer buf = data.duplicate();
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        try {
+            buf.get(header);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("page too short for its header");
+        }
+
+        numEmpty = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                numEmpty++;
+            }
+        }
 
         tuples = new Tuple[numSlots];
         try {
             // allocate and read the actual records of this page
             for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
+                tuples[i] = readNextTuple(buf, i);
         } catch (NoSuchElementException e) {
             e.printStackTrace();
         }
-        dis.close();
 
         setBeforeImage();
    
@@ -120,17 +148,14 @@ public class HeapPage implements Page {
     /**
      * Suck up tuples from the source file.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+    private Tuple readNextTuple(ByteBuffer buf, int slotId) throws NoSuchElementException {
         // if associated bit is not set, read forward to the next tuple, and
         // return null.
         if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+            if (buf.remaining() < td.getSize()) {
+                throw new NoSuchElementException("error reading empty tuple");
             }
+            buf.position(buf.position() + td.getSize());
             return null;
         }
 
@@ -140,7 +165,7 @@ public class HeapPage implements Page {
         t.setRecordId(rid);
         try {
             for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = td.getFieldType(j).parse(buf);
                 t.setField(j, f);
             }
         } catch (java.text.ParseException e) {
@@ -178,17 +203,15 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
+        byte[] emptySlot = new byte[td.getSize()];
         for (int i = 0; i < tuples.length; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
+                try {
+                    dos.write(emptySlot);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
                 continue;
             }
@@ -264,6 +287,7 @@ public class HeapPage implements Page {
     		throw new DbException("Slot is already empty.");
     	}
     	markSlotUsed(slot_num, false);
+    	slotBatch = null;
     	// is this right???? ******
     	t.setRecordId(null);
     }
@@ -282,16 +306,19 @@ public class HeapPage implements Page {
         } else if (!t.td.equals(this.td)) {
         	throw new DbException("This tuple's tuple descriptor does not match this page's.");
         }
-        int slot_num = 0;
-        for (int i = 0; i < numSlots; i++) {
-        	if (!isSlotUsed(i)) {
-        		slot_num = i;
-        		break;
-        	}
+        // skip over header bytes whose slots are all in use
+        int byte_index = 0;
+        while (header[byte_index] == (byte) 0xFF) {
+        	byte_index++;
+        }
+        int slot_num = byte_index * 8;
+        while (isSlotUsed(slot_num)) {
+        	slot_num++;
         }
         t.setRecordId(new RecordId(this.getId(), slot_num));
         tuples[slot_num] = t;
         markSlotUsed(slot_num, true);
+        slotBatch = null;
     }
 
     /**
@@ -318,12 +345,6 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int numEmpty = 0;
-        for (int i = 0; i < this.numSlots; i++) {
-        	if (!isSlotUsed(i)) {
-        		numEmpty++;
-        	}
-        }
         return numEmpty;
     }
 
@@ -352,6 +373,9 @@ public class HeapPage implements Page {
         int byte_index = (int) Math.floor(i / 8.0);
         //power of two corresponding to the slot, i.e. the left shift
         int shift =  i % 8;
+        if (value != isSlotUsed(i)) {
+        	numEmpty += value ? -1 : 1;
+        }
         if (value){
         	// slot will be used, mark the corresponding bit as 1 (insertion)
         	header[byte_index] = (byte) ((1 << shift) | Byte.valueOf(header[byte_index]).intValue());
@@ -364,6 +388,26 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * @return the tuples of the page as a batch whose row i holds the
+     * tuple in slot i, if the slot is in use
+     */
+    private TupleBatch slotBatch() {
+        TupleBatch batch = slotBatch;
+        if (batch == null) {
+            batch = new TupleBatch(td, numSlots);
+            for (int i = 0; i < numSlots; i++) {
+                if (isSlotUsed(i)) {
+                    batch.add(tuples[i]);
+                } else {
+                    batch.addRow();
+                }
+            }
+            slotBatch = batch;
+        }
+        return batch;
+    }
+
     /**
      * Class for tupleIterator.  Iterates through tuples on a HeapPage
      */
@@ -404,6 +448,40 @@ public class HeapPage implements Page {
     		}
     	}
     	
+    	/**
+         * Adds the tuples of the following slots to a batch, until it is
+         * full or this page has no more
+         */
+    	void addTo(TupleBatch batch) {
+    		TupleBatch slots = slotBatch();
+    		while (this.idx < numSlots && !batch.isFull()) {
+    			// copy the run of used slots starting here, as far as fits
+    			int end = this.idx;
+    			int room = batch.capacity() - batch.size();
+    			while (end < numSlots && end - this.idx < room
+    					&& (header[end >> 3] & (1 << (end & 7))) != 0) {
+    				end++;
+    			}
+    			batch.addRange(slots, this.idx, end - this.idx);
+    			this.idx = end == this.idx ? end + 1 : end;
+    		}
+    	}
+    	
+    	/**
+         * If no tuple of this page has been returned yet and every slot is
+         * in use, returns all of them as the page's own batch, which is not
+         * to be modified, and moves past them
+         *
+         * @return the page's tuples, or null if they are not returned whole
+         */
+    	TupleBatch wholePage() {
+    		if (this.idx != 0 || numEmpty != 0 || numSlots > TupleBatch.CAPACITY) {
+    			return null;
+    		}
+    		this.idx = numSlots;
+    		return slotBatch();
+    	}
+    	
     	// unsupported remove operation
     	public void remove(){
     		throw new UnsupportedOperationException("Tuples cannot be removed using TupleIterator");
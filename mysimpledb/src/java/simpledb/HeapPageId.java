@@ -51,8 +51,9 @@ public class HeapPageId implements PageId {
      * @see BufferPool
      */
     public int hashCode() {
-    	// Concatenate tableId and page number and return as int
-    	int hash_pid = (int) ((this.tableId * Math.pow(10, ((Integer.valueOf(this.pgNo)).toString()).length()) + this.pgNo) % Math.pow(2, 15));
+    	// combine tableId and page number without folding the result into a
+    	// small range, so the BufferPool frame table spreads across all buckets
+    	int hash_pid = 31 * this.tableId + this.pgNo;
         return hash_pid;
     }
 
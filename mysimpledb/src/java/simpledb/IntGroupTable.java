@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * IntGroupTable numbers the distinct int values it is given, in order of
+ * first appearance, for the aggregators that group on an int field.  It is
+ * an open addressing hash table of primitive ints, probed linearly and kept
+ * at most half full, so looking a value up neither boxes it nor allocates.
+ * Groups are numbered from zero with no gaps, so an aggregator can keep the
+ * accumulated values of group g at index g of arrays of its own.
+ */
+class IntGroupTable {
+
+    // the group number plus one of the value in each slot, zero marking an
+    // empty slot
+    private int[] slots = new int[16];
+    // the value of each group
+    private int[] keys = new int[8];
+    private int size;
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the number of groups
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the value of the given group
+     */
+    int key(int g) {
+        return keys[g];
+    }
+
+    /**
+     * @return the number of the group with the given value, adding a new
+     * group, numbered size() - 1, if there is none
+     */
+    int group(int key) {
+        int mask = slots.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int g = slots[i] - 1;
+            if (g < 0) {
+                return add(key, i);
+            }
+            if (keys[g] == key) {
+                return g;
+            }
+        }
+    }
+
+    /**
+     * Removes all groups, keeping the capacity of the table.
+     */
+    void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    private int add(int key, int slot) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        int g = size++;
+        keys[g] = key;
+        slots[slot] = g + 1;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return g;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int g = 0; g < size; g++) {
+            int i = hash(keys[g]) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = g + 1;
+        }
+    }
+}
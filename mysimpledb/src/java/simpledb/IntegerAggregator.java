@@ -4,6 +4,11 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p/>
+ * Int group values are kept in an open addressing hash table of primitive
+ * ints (see {@link IntGroupTable}), so grouping on an int field neither boxes
+ * the value nor allocates per tuple.  Other group values are hashed as
+ * Fields.
  */
 public class IntegerAggregator implements Aggregator {
     
@@ -13,8 +18,11 @@ public class IntegerAggregator implements Aggregator {
     private int gbfield;
     private Type gbfieldtype;
     private int afield;
-    // a map of groupVal -> AggregateFields
-    private HashMap<String, AggregateFields> groups;
+    // groups by int group value, if grouping on an int field
+    private IntGroups intGroups;
+    // a map of groupVal -> AggregateFields otherwise, with a null groupVal
+    // if there is no grouping
+    private HashMap<Field, AggregateFields> groups;
     
     /**
      * Aggregate constructor
@@ -32,7 +40,10 @@ public class IntegerAggregator implements Aggregator {
         this.gbfield = gbfield;
         this.afield = afield;
         this.gbfieldtype = gbfieldtype;
-        this.groups = new HashMap<String, AggregateFields>();
+        if (gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE)
+            this.intGroups = new IntGroups();
+        else
+            this.groups = new HashMap<Field, AggregateFields>();
     }
     
     /**
@@ -42,24 +53,117 @@ public class IntegerAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        String groupVal = "";
-        if (gbfield != NO_GROUPING) {
-            groupVal = tup.getField(gbfield).toString();
-        }
-        AggregateFields agg = groups.get(groupVal);
-        if (agg == null)
-            agg = new AggregateFields(groupVal);
-        
         int x = ((IntField) tup.getField(afield)).getValue();
+        int sc = what == Op.SC_AVG ? ((IntField) tup.getField(afield + 1)).getValue() : 0;
         
+        if (intGroups != null) {
+            intGroups.merge(((IntField) tup.getField(gbfield)).getValue(), x, sc);
+            return;
+        }
+        AggregateFields agg = group(gbfield == NO_GROUPING ? null : tup.getField(gbfield));
         agg.count++;
         agg.sum += x;
         agg.min = (x < agg.min ? x : agg.min);
         agg.max = (x > agg.max ? x : agg.max);
-        if (what == Op.SC_AVG)
-            agg.sumCount += ((IntField) tup.getField(afield + 1)).getValue();
+        agg.sumCount += sc;
+    }
+    
+    /**
+     * Merge the rows of a batch into the aggregate.  Int group values and,
+     * without grouping, the whole batch are aggregated in a loop over the
+     * batch's int values.
+     */
+    public void mergeBatchIntoGroups(TupleBatch batch) {
+        int n = batch.size();
+        int[] sel = batch.selection();
+        int[] x = batch.ints(afield);
+        int[] sc = what == Op.SC_AVG ? batch.ints(afield + 1) : null;
         
-        groups.put(groupVal, agg);
+        if (intGroups != null) {
+            intGroups.mergeAll(batch.ints(gbfield), x, sc, sel, n, what);
+            return;
+        }
+        if (gbfield != NO_GROUPING) {
+            for (int i = 0; i < n; i++) {
+                int r = sel == null ? i : sel[i];
+                AggregateFields agg = group(batch.getField(gbfield, i));
+                agg.count++;
+                agg.sum += x[r];
+                agg.min = (x[r] < agg.min ? x[r] : agg.min);
+                agg.max = (x[r] > agg.max ? x[r] : agg.max);
+                agg.sumCount += sc == null ? 0 : sc[r];
+            }
+            return;
+        }
+        int sum = 0, min = Integer.MAX_VALUE, max = Integer.MIN_VALUE, sumCount = 0;
+        for (int i = 0; i < n; i++) {
+            int r = sel == null ? i : sel[i];
+            sum += x[r];
+            min = (x[r] < min ? x[r] : min);
+            max = (x[r] > max ? x[r] : max);
+        }
+        if (sc != null) {
+            for (int i = 0; i < n; i++)
+                sumCount += sc[sel == null ? i : sel[i]];
+        }
+        AggregateFields agg = group(null);
+        agg.count += n;
+        agg.sum += sum;
+        agg.min = (min < agg.min ? min : agg.min);
+        agg.max = (max > agg.max ? max : agg.max);
+        agg.sumCount += sumCount;
+    }
+    
+    /**
+     * @return the accumulated values of the group with the given value,
+     * adding a new group if there is none
+     */
+    private AggregateFields group(Field groupVal) {
+        AggregateFields agg = groups.get(groupVal);
+        if (agg == null) {
+            agg = new AggregateFields();
+            groups.put(groupVal, agg);
+        }
+        return agg;
+    }
+    
+    /**
+     * Merge a partial aggregate, as returned by {@link #partials}, into its
+     * group
+     *
+     * @param partial the group value, if grouping, followed by the min, max,
+     *                sum, count and SC_AVG count of the group
+     */
+    public void mergePartialIntoGroup(Tuple partial) {
+        int i = gbfield == NO_GROUPING ? 0 : 1;
+        int pmin = ((IntField) partial.getField(i)).getValue();
+        int pmax = ((IntField) partial.getField(i + 1)).getValue();
+        int psum = ((IntField) partial.getField(i + 2)).getValue();
+        int pcount = ((IntField) partial.getField(i + 3)).getValue();
+        int psc = ((IntField) partial.getField(i + 4)).getValue();
+        
+        if (intGroups != null) {
+            intGroups.combine(((IntField) partial.getField(0)).getValue(),
+                    pmin, pmax, psum, pcount, psc);
+            return;
+        }
+        AggregateFields agg = group(gbfield == NO_GROUPING ? null : partial.getField(0));
+        agg.count += pcount;
+        agg.sum += psum;
+        agg.min = (pmin < agg.min ? pmin : agg.min);
+        agg.max = (pmax > agg.max ? pmax : agg.max);
+        agg.sumCount += psc;
+    }
+    
+    public int numGroups() {
+        return intGroups != null ? intGroups.table.size() : groups.size();
+    }
+    
+    public void clear() {
+        if (intGroups != null)
+            intGroups.table.clear();
+        else
+            groups.clear();
     }
     
     /**
@@ -71,80 +175,287 @@ public class IntegerAggregator implements Aggregator {
      * the constructor.
      */
     public DbIterator iterator() {
-        LinkedList<Tuple> result = new LinkedList<Tuple>();
-        int aggField = 1;
-        TupleDesc td;
-        
-        if (gbfield == NO_GROUPING) {
-            if (what == Op.SUM_COUNT)
-                td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
-            else
-                td = new TupleDesc(new Type[]{Type.INT_TYPE});
-            aggField = 0;
-        } else {
-            if (what == Op.SUM_COUNT)
-                td = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE, Type.INT_TYPE});
-            else
-                td = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
-        }
-        
-        // iterate over groups and create summary tuples
-        for (String groupVal : groups.keySet()) {
-            AggregateFields agg = groups.get(groupVal);
+        Type[] types;
+        if (what == Op.SUM_COUNT)
+            types = new Type[]{Type.INT_TYPE, Type.INT_TYPE};
+        else
+            types = new Type[]{Type.INT_TYPE};
+        return new GroupIterator(withGroupType(types), false);
+    }
+    
+    /**
+     * Create a DbIterator over the partial aggregates of the groups.
+     *
+     * @return a DbIterator whose tuples are the group value, if grouping,
+     * followed by the min, max, sum, count and SC_AVG count of the group
+     */
+    public DbIterator partials() {
+        Type[] types = new Type[5];
+        Arrays.fill(types, Type.INT_TYPE);
+        return new GroupIterator(withGroupType(types), true);
+    }
+    
+    /**
+     * @return a TupleDesc of the given types, preceded by the group by type
+     * if grouping
+     */
+    private TupleDesc withGroupType(Type[] types) {
+        if (gbfield == NO_GROUPING)
+            return new TupleDesc(types);
+        Type[] all = new Type[types.length + 1];
+        all[0] = gbfieldtype;
+        System.arraycopy(types, 0, all, 1, types.length);
+        return new TupleDesc(all);
+    }
+    
+    /**
+     * Iterates over the groups, building the result or partial tuple of each
+     * as it is returned.
+     */
+    private class GroupIterator implements DbIterator {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final TupleDesc td;
+        private final boolean partial;
+        // next group of the int group table, or the remaining entries of the
+        // group map
+        private int next;
+        private transient Iterator<Map.Entry<Field, AggregateFields>> entries;
+        private boolean open;
+        
+        GroupIterator(TupleDesc td, boolean partial) {
+            this.td = td;
+            this.partial = partial;
+        }
+        
+        public void open() {
+            next = 0;
+            if (groups != null)
+                entries = groups.entrySet().iterator();
+            open = true;
+        }
+        
+        public boolean hasNext() {
+            if (!open)
+                return false;
+            return intGroups != null ? next < intGroups.table.size() : entries.hasNext();
+        }
+        
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No more groups.");
+            if (intGroups != null) {
+                IntGroups t = intGroups;
+                int g = next++;
+                return tuple(new IntField(t.table.key(g)),
+                        t.min[g], t.max[g], t.sum[g], t.count[g], t.sumCount[g]);
+            }
+            Map.Entry<Field, AggregateFields> e = entries.next();
+            AggregateFields agg = e.getValue();
+            return tuple(e.getKey(), agg.min, agg.max, agg.sum, agg.count, agg.sumCount);
+        }
+        
+        private Tuple tuple(Field groupVal, int min, int max, int sum, int count, int sumCount) {
+            if (!partial)
+                return summary(td, groupVal, min, max, sum, count, sumCount);
             Tuple tup = new Tuple(td);
-            
-            if (gbfield != NO_GROUPING) {
-                if (gbfieldtype == Type.INT_TYPE)
-                    tup.setField(0, new IntField(new Integer(groupVal)));
-                else
-                    tup.setField(0, new StringField(groupVal, Type.STRING_LEN));
+            int i = 0;
+            if (gbfield != NO_GROUPING)
+                tup.setField(i++, groupVal);
+            tup.setField(i, new IntField(min));
+            tup.setField(i + 1, new IntField(max));
+            tup.setField(i + 2, new IntField(sum));
+            tup.setField(i + 3, new IntField(count));
+            tup.setField(i + 4, new IntField(sumCount));
+            return tup;
+        }
+        
+        public void rewind() {
+            open();
+        }
+        
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+        
+        public void close() {
+            open = false;
+            entries = null;
+        }
+    }
+    
+    /**
+     * Creates the result tuple of a group from its accumulated values.
+     */
+    private Tuple summary(TupleDesc td, Field groupVal,
+                          int min, int max, int sum, int count, int sumCount) {
+        Tuple tup = new Tuple(td);
+        int aggField = 0;
+        if (gbfield != NO_GROUPING) {
+            tup.setField(0, groupVal);
+            aggField = 1;
+        }
+        switch (what) {
+            case MIN:
+                tup.setField(aggField, new IntField(min));
+                break;
+            case MAX:
+                tup.setField(aggField, new IntField(max));
+                break;
+            case SUM:
+                tup.setField(aggField, new IntField(sum));
+                break;
+            case COUNT:
+                tup.setField(aggField, new IntField(count));
+                break;
+            case AVG:
+                tup.setField(aggField, new IntField(sum / count));
+                break;
+            case SUM_COUNT:
+                tup.setField(aggField, new IntField(sum));
+                tup.setField(aggField + 1, new IntField(count));
+                break;
+            case SC_AVG:
+                tup.setField(aggField, new IntField(sum / sumCount));
+                break;
+        }
+        return tup;
+    }
+    
+    /**
+     * A helper struct to store accumulated aggregate values.
+     */
+    private static class AggregateFields {
+        public int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        public int sum, count, sumCount;
+    }
+    
+    /**
+     * The accumulated values of the groups with int group values.  The
+     * groups are numbered by an {@link IntGroupTable}, and the accumulators
+     * of group g are at index g of the arrays below.
+     */
+    static class IntGroups {
+        final IntGroupTable table = new IntGroupTable();
+        int[] min = new int[8];
+        int[] max = new int[8];
+        int[] sum = new int[8];
+        int[] count = new int[8];
+        int[] sumCount = new int[8];
+        // the group and aggregate value of each row being merged by mergeAll
+        private int[] rowGroups;
+        private int[] rowValues;
+        
+        /**
+         * @return the number of the group with the given value, with
+         * accumulators, adding a new group if there is none
+         */
+        int group(int key) {
+            int n = table.size();
+            int g = table.group(key);
+            if (g == n) {
+                if (g == min.length) {
+                    min = Arrays.copyOf(min, g * 2);
+                    max = Arrays.copyOf(max, g * 2);
+                    sum = Arrays.copyOf(sum, g * 2);
+                    count = Arrays.copyOf(count, g * 2);
+                    sumCount = Arrays.copyOf(sumCount, g * 2);
+                }
+                min[g] = Integer.MAX_VALUE;
+                max[g] = Integer.MIN_VALUE;
+                sum[g] = 0;
+                count[g] = 0;
+                sumCount[g] = 0;
+            }
+            return g;
+        }
+        
+        /**
+         * Folds an aggregate value (and, for SC_AVG, a count) into the
+         * group with the given value.
+         */
+        void merge(int key, int x, int sc) {
+            int g = group(key);
+            count[g]++;
+            sum[g] += x;
+            if (x < min[g])
+                min[g] = x;
+            if (x > max[g])
+                max[g] = x;
+            sumCount[g] += sc;
+        }
+        
+        /**
+         * Folds the aggregate values (and, for SC_AVG, counts) of n rows
+         * into the groups with the rows' values.  The values of the rows
+         * are gathered first, and the groups of all the rows looked up;
+         * then only the accumulators that the operator needs are updated,
+         * a loop for each.
+         *
+         * @param sel the index of each row in keys, x and sc, or null if
+         *            row i is at index i
+         */
+        void mergeAll(int[] keys, int[] x, int[] sc, int[] sel, int n, Op what) {
+            if (rowGroups == null) {
+                rowGroups = new int[TupleBatch.CAPACITY];
+                rowValues = new int[TupleBatch.CAPACITY];
+            }
+            int[] g = rowGroups;
+            int[] v = rowValues;
+            if (sel == null) {
+                for (int r = 0; r < n; r++)
+                    g[r] = group(keys[r]);
+                System.arraycopy(x, 0, v, 0, n);
+            } else {
+                for (int r = 0; r < n; r++)
+                    g[r] = group(keys[sel[r]]);
+                for (int r = 0; r < n; r++)
+                    v[r] = x[sel[r]];
             }
+            // counted whatever the operator, as merge does
+            for (int r = 0; r < n; r++)
+                count[g[r]]++;
             switch (what) {
                 case MIN:
-                    tup.setField(aggField, new IntField(agg.min));
+                    for (int r = 0; r < n; r++)
+                        if (v[r] < min[g[r]])
+                            min[g[r]] = v[r];
                     break;
                 case MAX:
-                    tup.setField(aggField, new IntField(agg.max));
-                    break;
-                case SUM:
-                    tup.setField(aggField, new IntField(agg.sum));
+                    for (int r = 0; r < n; r++)
+                        if (v[r] > max[g[r]])
+                            max[g[r]] = v[r];
                     break;
                 case COUNT:
-                    tup.setField(aggField, new IntField(agg.count));
-                    break;
-                case AVG:
-                    tup.setField(aggField, new IntField(agg.sum / agg.count));
-                    break;
-                case SUM_COUNT:
-                    tup.setField(aggField, new IntField(agg.sum));
-                    tup.setField(aggField + 1, new IntField(agg.count));
                     break;
                 case SC_AVG:
-                    tup.setField(aggField, new IntField(agg.sum / agg.sumCount));
+                    for (int r = 0; r < n; r++)
+                        sumCount[g[r]] += sc[sel == null ? r : sel[r]];
+                    for (int r = 0; r < n; r++)
+                        sum[g[r]] += v[r];
+                    break;
+                default:
+                    for (int r = 0; r < n; r++)
+                        sum[g[r]] += v[r];
                     break;
             }
-            
-            result.add(tup);
         }
         
-        DbIterator retVal = null;
-        retVal = new TupleIterator(td, Collections.unmodifiableList(result));
-        return retVal;
-    }
-    
-    /**
-     * A helper struct to store accumulated aggregate values.
-     */
-    private class AggregateFields {
-        public String groupVal;
-        public int min, max, sum, count, sumCount;
-        
-        public AggregateFields(String groupVal) {
-            this.groupVal = groupVal;
-            min = Integer.MAX_VALUE;
-            max = Integer.MIN_VALUE;
-            sum = count = sumCount = 0;
+        /**
+         * Folds the partial aggregate of a group into the group with the
+         * same value.
+         */
+        void combine(int key, int pmin, int pmax, int psum, int pcount, int psc) {
+            int g = group(key);
+            count[g] += pcount;
+            sum[g] += psum;
+            if (pmin < min[g])
+                min[g] = pmin;
+            if (pmax > max[g])
+                max[g] = pmax;
+            sumCount[g] += psc;
         }
     }
     
-}
\ No newline at end of file
+}
@@ -3,17 +3,62 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation as a block
+ * nested loops join: it reads a block of tuples from the left (outer) child,
+ * then scans the right (inner) child once for the whole block, so the inner
+ * is scanned once per block rather than once per outer tuple.  The block
+ * size is a number of tuples (see {@link #setBlockTuples}).
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Default number of outer tuples joined per scan of the inner child.
+     */
+    public static final int DEFAULT_BLOCK_TUPLES = 1 << 12;
+
+    private static int blockTuples = DEFAULT_BLOCK_TUPLES;
+
     public JoinPredicate pred;
     public DbIterator[] iter_children;
+    // the outer tuple last compared, and the inner tuple being compared
+    // with the block
     public Tuple t1;
     public Tuple t2;
-    
+
+    // outer tuples per block
+    private final int blockSize;
+    private TupleDesc td;
+    // the current block of outer tuples, the position in it of the next one
+    // to compare with t2, and whether the inner child is still positioned
+    // at its start
+    private transient ArrayList<Tuple> block;
+    private transient int blockPos;
+    private transient boolean innerAtStart;
+
+    /**
+     * @return the number of outer tuples joined per scan of the inner child
+     */
+    public static int getBlockTuples() {
+        return blockTuples;
+    }
+
+    /**
+     * Sets the number of outer tuples joined per scan of the inner child, for
+     * joins created from now on.
+     */
+    public static void setBlockTuples(int tuples) {
+        if (tuples < 1) {
+            throw new IllegalArgumentException("block must hold at least one tuple");
+        }
+        blockTuples = tuples;
+    }
+
+    public static void resetBlockTuples() {
+        blockTuples = DEFAULT_BLOCK_TUPLES;
+    }
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -23,10 +68,28 @@ public class Join extends Operator {
      * @param child2 Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, blockTuples);
+    }
+
+    /**
+     * Constructor for a join that buffers blockTuples outer tuples per scan
+     * of the inner child, instead of the current default.
+     *
+     * @param p           The predicate to use to join the children
+     * @param child1      Iterator for the left(outer) relation to join
+     * @param child2      Iterator for the right(inner) relation to join
+     * @param blockTuples The number of outer tuples per block
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockTuples) {
+        if (blockTuples < 1) {
+            throw new IllegalArgumentException("block must hold at least one tuple");
+        }
         this.pred = p;
+        this.blockSize = blockTuples;
         this.iter_children = new DbIterator[2];
         iter_children[0] = child1;
         iter_children[1] = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
         this.t1 = null;
         this.t2 = null;
     }
@@ -56,25 +119,34 @@ public class Join extends Operator {
      * implementation logic.
      */
     public TupleDesc getTupleDesc() {
-        return TupleDesc.merge(iter_children[0].getTupleDesc(), iter_children[1].getTupleDesc());
+        return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         iter_children[0].open();
         iter_children[1].open();
+        block = new ArrayList<Tuple>();
+        innerAtStart = true;
         super.open();
     }
 
     public void close() {
     	iter_children[0].close();
         iter_children[1].close();
+        block = null;
+        t1 = null;
+        t2 = null;
         super.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         iter_children[0].rewind();
     	iter_children[1].rewind();
+    	block.clear();
+    	innerAtStart = true;
+    	t1 = null;
+    	t2 = null;
     }
 
     /**
@@ -97,32 +169,51 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
     	while (true) {
-        	if (t1 == null) {
-        		if (iter_children[0].hasNext()) {
-        			t1 = iter_children[0].next();
-        			iter_children[1].rewind();
-        		} else {
-        			return null;
-        		}
-        	}
-        	while (iter_children[1].hasNext()) {
-        		t2 = iter_children[1].next();
-        		if (pred.filter(t1, t2)) {
-        			Tuple tNew = new Tuple(getTupleDesc());
-        			int idx = 0;
-        			for (int i = 0; i < t1.getTupleDesc().numFields(); i++) {
-        				tNew.fields[idx] = t1.getField(i);
-        				idx++;
-        			}
-        			for (int j = 0; j < t2.getTupleDesc().numFields(); j++) {
-        				tNew.fields[idx] = t2.getField(j);
-        				idx++;
-        			}
-        			return tNew;
-        		}
-        	}
-        	t1 = null;
-        }
+    		if (t2 == null) {
+    			if (block.isEmpty() || !iter_children[1].hasNext()) {
+    				// start the next block, with a fresh scan of the inner
+    				if (!nextBlock()) {
+    					return null;
+    				}
+    				if (!iter_children[1].hasNext()) {
+    					return null;
+    				}
+    			}
+    			t2 = iter_children[1].next();
+    			blockPos = 0;
+    		}
+    		while (blockPos < block.size()) {
+    			t1 = block.get(blockPos++);
+    			if (pred.filter(t1, t2)) {
+    				Tuple tNew = new Tuple(td);
+    				System.arraycopy(t1.fields, 0, tNew.fields, 0, t1.fields.length);
+    				System.arraycopy(t2.fields, 0, tNew.fields, t1.fields.length, t2.fields.length);
+    				return tNew;
+    			}
+    		}
+    		t2 = null;
+    	}
+    }
+
+    /**
+     * Reads the next block of outer tuples and rewinds the inner child if it
+     * has been read from.
+     *
+     * @return false if the outer child has no more tuples
+     */
+    private boolean nextBlock() throws DbException, TransactionAbortedException {
+    	block.clear();
+    	while (block.size() < blockSize && iter_children[0].hasNext()) {
+    		block.add(iter_children[0].next());
+    	}
+    	if (block.isEmpty()) {
+    		return false;
+    	}
+    	if (!innerAtStart) {
+    		iter_children[1].rewind();
+    	}
+    	innerAtStart = false;
+    	return true;
     }
 
     @Override
@@ -134,6 +225,7 @@ public class Join extends Operator {
     public void setChildren(DbIterator[] children) {
         if (children.length == 2) {
         	iter_children = children;
+        	td = TupleDesc.merge(children[0].getTupleDesc(), children[1].getTupleDesc());
         }
     }
 
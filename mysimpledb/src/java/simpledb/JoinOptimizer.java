@@ -14,6 +14,13 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /**
+     * Estimated cost of writing a tuple to a temporary file and reading it
+     * back: a page of I/O each way, shared by the tuples on the page (taken
+     * to be about a hundred).
+     */
+    static final double SPILL_COST_PER_TUPLE = 2.0 * TableStats.IOCOSTPERPAGE / 100;
+
     /**
      * Constructor
      *
@@ -39,6 +46,20 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
                                              DbIterator plan1, DbIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, given the
+     * estimated cardinality of its right subplan: a range join is merged
+     * only if its right input is small enough to hold in memory; see
+     * {@link #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator)}.
+     *
+     * @param card2 the estimated cardinality of plan2, or
+     *              Integer.MAX_VALUE if it is not known
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj,
+                                             DbIterator plan1, DbIterator plan2, int card2) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         DbIterator j;
@@ -63,18 +84,17 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
-
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (DbIterator) ct
-                        .newInstance(new Object[]{p, plan1, plan2});
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
+        if (useSortMerge(lj.p, isSortedOn(plan1, t1id), card2)) {
+            // sort only the inputs that are not in order already
+            if (!isSortedOn(plan1, t1id)) {
+                plan1 = new OrderBy(t1id, true, plan1);
             }
+            if (!isSortedOn(plan2, t2id)) {
+                plan2 = new OrderBy(t2id, true, plan2);
+            }
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2);
         } else {
             j = new Join(p, plan1, plan2);
         }
@@ -83,6 +103,128 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Decides whether a join is done with a SortMergeJoin: for range
+     * predicates, which cannot be hashed, when the right input fits the
+     * memory a merge of a range holds it in, and for equality when the left
+     * input is already in order, so that the order is kept for the joins or
+     * ORDER BY above.
+     *
+     * @param op         the join predicate
+     * @param leftSorted true if the left input is in ascending order of its
+     *                   join field
+     * @param rightCard  the estimated cardinality of the right input
+     */
+    static boolean useSortMerge(Predicate.Op op, boolean leftSorted, int rightCard) {
+        if (op == Predicate.Op.EQUALS) {
+            return leftSorted;
+        }
+        return SortMergeJoin.canMerge(op) && rightCard <= SortMergeJoin.getMaxRangeTuples();
+    }
+
+    /**
+     * Returns true if the tuples of the given plan are known to come out in
+     * ascending order of the given field: the plan is an ascending OrderBy,
+     * a SortMergeJoin or a StreamAggregate on that field, possibly under
+     * Filters.
+     */
+    static boolean isSortedOn(DbIterator plan, int field) {
+        if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.isASC() && o.getOrderByField() == field;
+        } else if (plan instanceof SortMergeJoin) {
+            return ((SortMergeJoin) plan).isSortedOn(field);
+        } else if (plan instanceof StreamAggregate) {
+            return ((StreamAggregate) plan).isSortedOn(field);
+        } else if (plan instanceof Filter) {
+            return isSortedOn(((Filter) plan).getChildren()[0], field);
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the tuples of the given plan are known to come out
+     * grouped on the given fields, with all the tuples that agree on them
+     * next to each other: the plan is an OrderBy whose leading sort fields
+     * are the given fields, in any order and direction, or is sorted on the
+     * one field given, possibly under Filters.
+     */
+    static boolean isGroupedOn(DbIterator plan, int[] fields) {
+        if (plan instanceof Filter) {
+            return isGroupedOn(((Filter) plan).getChildren()[0], fields);
+        } else if (plan instanceof OrderBy) {
+            int[] sortFields = ((OrderBy) plan).getSortOrder().getFields();
+            if (sortFields.length < fields.length) {
+                return false;
+            }
+            Set<Integer> leading = new HashSet<Integer>();
+            for (int i = 0; i < fields.length; i++) {
+                leading.add(sortFields[i]);
+            }
+            for (int field : fields) {
+                if (!leading.remove(field)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return fields.length == 1 && isSortedOn(plan, fields[0]);
+    }
+
+    /**
+     * Returns the quantified names of the fields that the result of joining
+     * in the given order is sorted on, given the join operators that
+     * instantiateJoin picks.  Base tables are taken to be in no order, and
+     * the right input of each join to be its base table, filtered.
+     */
+    private Set<String> sortOrder(Vector<LogicalJoinNode> plan, HashMap<String, TableStats> stats,
+                                  HashMap<String, Double> filterSelectivities) {
+        // the order of the subplan each table is in so far; the tables of
+        // one subplan share the same set
+        HashMap<String, Set<String>> orders = new HashMap<String, Set<String>>();
+        Set<String> order = new HashSet<String>();
+        for (LogicalJoinNode lj : plan) {
+            Set<String> left = orders.get(lj.t1Alias);
+            Set<String> right = orders.get(lj.t2Alias);
+            order = new HashSet<String>();
+            if (!(lj instanceof LogicalSubplanJoinNode)
+                    && useSortMerge(lj.p, left != null && left.contains(lj.f1QuantifiedName),
+                                    stats.get(Database.getCatalog().getTableName(p.getTableId(lj.t2Alias))).estimateTableCardinality(
+                                            filterSelectivities.get(lj.t2Alias)))) {
+                order.add(lj.f1QuantifiedName);
+                if (lj.p == Predicate.Op.EQUALS) {
+                    order.add(lj.f2QuantifiedName);
+                }
+            }
+            for (Map.Entry<String, Set<String>> e : orders.entrySet()) {
+                if (e.getValue() == left || e.getValue() == right) {
+                    e.setValue(order);
+                }
+            }
+            orders.put(lj.t1Alias, order);
+            if (lj.t2Alias != null) {
+                orders.put(lj.t2Alias, order);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Estimated cost of sorting card tuples: a comparison per tuple for each
+     * halving of the input, plus, if the input does not fit in an OrderBy's
+     * memory, writing it out as sorted runs and again for each merge pass
+     * needed to get down to one merge.
+     */
+    private static double sortCost(int card) {
+        double cost = card <= 1 ? 0 : card * (Math.log(card) / Math.log(2));
+        int passes = 0;
+        for (long runs = (card + (long) OrderBy.getMaxSortTuples() - 1) / OrderBy.getMaxSortTuples();
+             runs > 1; runs = (runs + OrderBy.MERGE_FAN_IN - 1) / OrderBy.MERGE_FAN_IN) {
+            passes++;
+        }
+        return cost + passes * card * SPILL_COST_PER_TUPLE;
+    }
+
     /**
      * Estimate the cost of a join.
      * <p/>
@@ -105,16 +247,50 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, false, false);
+    }
+
+    /**
+     * Estimate the cost of a join whose inputs may already be sorted on their
+     * join fields; see {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     *
+     * @param sorted1 true if the left-hand side is in ascending order of its
+     *                join field
+     * @param sorted2 true if the right-hand side is in ascending order of
+     *                its join field
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+                                   double cost1, double cost2, boolean sorted1, boolean sorted2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 4.
             return card1 + cost1 + cost2;
+        } else if (useSortMerge(j.p, sorted1, card2)) {
+        	// SortMergeJoin: one scan of each input, a sort of each input
+        	// that is not in order yet, and one pass over both to merge them;
+        	// a range join first copies the whole right input into memory
+        	return cost1 + cost2 + (sorted1 ? 0 : sortCost(card1))
+        			+ (sorted2 ? 0 : sortCost(card2)) + card1 + card2
+        			+ (SortMergeJoin.isRange(j.p) ? card2 : 0);
+        } else if (j.p == Predicate.Op.EQUALS) {
+        	// HashEquiJoin: one scan of each input, and every tuple is hashed
+        	// once, into the table or to probe it
+        	double cost = cost1 + cost2 + card1 + card2;
+        	// if neither input fits in the hash table, each partitioning pass
+        	// writes both inputs to temporary files, reads them back and
+        	// hashes them again
+        	int passes = 0;
+        	for (double build = Math.min(card1, card2);
+        	     build > HashEquiJoin.getMaxTableTuples() && passes < HashEquiJoin.MAX_PASSES;
+        	     build /= HashEquiJoin.PARTITIONS) {
+        		passes++;
+        	}
+        	return cost + passes * (card1 + card2) * (SPILL_COST_PER_TUPLE + 1);
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-        	return cost1 + card1 * cost2;
+        	// block nested loops: one scan of the inner per block of outer
+        	// tuples, and the predicate applied to every pair
+        	double blocks = Math.max(1, Math.ceil((double) card1 / Join.getBlockTuples()));
+        	return cost1 + blocks * cost2 + (double) card1 * card2;
         }
     }
 
@@ -245,6 +421,10 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
+    	if (joins.isEmpty()) {
+    		// a single table: nothing to order
+    		return joins;
+    	}
     	Catalog catalog = Database.getCatalog();
     	LogicalJoinNode node = null;
     	Iterator<Set<LogicalJoinNode>> subset_iter = null;
@@ -414,12 +594,18 @@ public class JoinOptimizer {
             }
         }
 
+        // a subplan that ends in a merge join may already be sorted on the
+        // field this join needs
+        Set<String> prevOrder = sortOrder(prevBest, stats, filterSelectivities);
+        boolean t1sorted = prevOrder.contains(j.f1QuantifiedName);
+        boolean t2sorted = prevOrder.contains(j.f2QuantifiedName);
+
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t1sorted, t2sorted);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
 
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t2sorted, t1sorted);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -2,8 +2,10 @@ package simpledb;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 public class LockManager {
 	
@@ -20,21 +22,23 @@ public class LockManager {
 		}
 	}
 	
-	// nodes in the wait list
+	// nodes in the wait list; the waiting thread blocks on its own node
+	// until updateLock grants it, so a release wakes exactly the
+	// transactions that were granted
 	static class LockNode {
 		public final TransactionId tid;
 		public final PageId pid;
-		public boolean typeIsX;
+		public final boolean typeIsX;
+		private boolean granted;
+		private boolean cancelled;
 		
 		//constructor
 		public LockNode(TransactionId tid, PageId pid, boolean requestedX) {
 			this.tid = tid;
 			this.pid = pid;
+			this.typeIsX = requestedX;
 		}
 		
-		
-		
-		
 		// Returns the TransactionId
 		public TransactionId getTransactionId() {
 			return this.tid;
@@ -44,6 +48,30 @@ public class LockManager {
 			return this.pid;
 		}
 		
+		// called with the LockManager held, once the lock is granted to this node
+		synchronized void grant() {
+			granted = true;
+			notifyAll();
+		}
+		
+		// called with the LockManager held, when the request is withdrawn or
+		// the transaction is chosen as a deadlock victim
+		synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+		
+		synchronized boolean isGranted() {
+			return granted;
+		}
+		
+		// blocks until granted or cancelled; returns true if the lock was granted
+		synchronized boolean await() throws InterruptedException {
+			while (!granted && !cancelled) {
+				wait();
+			}
+			return granted;
+		}
 	}
 	//Ideas: create a lock for the lock manager - txns must get this lock to acquire/
 	//release page locks, as soon as they acquire/release a page lock, they release
@@ -57,7 +85,10 @@ public class LockManager {
 	private HashMap<PageId, LockEntry> lockTable; 
 	// maps to a linked list of all txns grants a lock on a page
 	
-	private LinkedList<TransactionId> abort_list;
+	// the waits-for graph: the queued requests of each blocked transaction.
+	// A transaction waits for the holders of each lock it is queued on and
+	// for the conflicting requests queued ahead of it
+	private HashMap<TransactionId, List<LockNode>> waitsFor;
 	
 	public LockManager(int numPages) {
 		// make the size of the lock table equal to the number of pages in the bufferpool
@@ -66,254 +97,284 @@ public class LockManager {
 		// for the lock for that PageId.  The head of the LinkedList is the transaction
 		// currently holding the node
 		this.lockTable = new HashMap<PageId, LockEntry>(numPages);
-		this.abort_list = new LinkedList<TransactionId>();
+		this.waitsFor = new HashMap<TransactionId, List<LockNode>>();
 	}
     
+	// called when pid leaves the buffer pool; locks outlive the frame, so
+	// the entry is only dropped once nobody holds or waits for it
 	public synchronized void removePage(PageId pid) {
-		lockTable.remove(pid);
-		//DO I NEED TO ABORT TRANSACTIONS THAT ARE USING THIS PAGE?
+		LockEntry lock = lockTable.get(pid);
+		if (lock != null && lock.grantedT.isEmpty() && lock.waiting.isEmpty()) {
+			lockTable.remove(pid);
+		}
 	}
     
     // this is the only method called by a transaction to request the lock for a page
     public void acquirePageLock(TransactionId t, PageId p, boolean requestedX) throws TransactionAbortedException {
-    	// get lock for LockManager
-    	//acquireLockManagerLock();
-    	boolean lockHeld = false;
-    	synchronized(this) {
-	    	// now has lock for lock manager
-	    	lockHeld = requestLock(t,p, requestedX);
-	    	//System.out.println("Thread " + t.getId() + "got Lock? " + lockHeld+ " Page " + p.pageNumber());
-	    	// request has been entered
-    	}
-    	//releaseLockManagerLock();
-    	if (!lockHeld) {
+    	LockNode waiter = requestLock(t, p, requestedX);
+    	if (waiter != null) {
     		// waiting for lock
-    		waitForLock(t,p, requestedX);
+    		waitForLock(t, p, waiter);
     	}
     	// txn has lock
     }
     
     // used by a txn to request a lock for a particular page
-    // returns true if the txn now holds the lock for that page, and false if
-    // is waiting for that lock
-    private synchronized boolean  requestLock(TransactionId t, PageId p, boolean requestedX) throws TransactionAbortedException {
+    // returns null if the txn now holds the lock for that page, or the
+    // node it is waiting on in the lock's queue
+    private synchronized LockNode requestLock(TransactionId t, PageId p, boolean requestedX) throws TransactionAbortedException {
     	LockEntry lock = lockTable.get(p);
-    	boolean gotLock = false;
-    	if (abort_list != null) {
-    		if (abort_list.contains(t)) {
-    			abort_list.remove(t);
-    			throw new TransactionAbortedException();
-    		}
-    	}
     	if (lock == null) {
-    		//System.out.println("at 0 Thread " +t.getId() + " Page " + p.toString() + "requestedX" + requestedX);
     		lock = new LockEntry(p);
-    		lock.grantedT.addLast(t);
-    		lock.typeIsX = requestedX;
     		lockTable.put(p, lock);
-    		return true;
     	}
-    	LockNode txn = new LockNode(t, p, requestedX);
-    	if (lock.grantedT.contains(t)){
+    	LockNode txn = findWaiting(t, lock);
+    	if (txn != null) {
+    		// txn is already waiting for this lock
+    		return txn;
+    	}
+    	if (lock.grantedT.contains(t)) {
     		//txn has a lock
-    		if (lock.typeIsX) {
-				//already has exclusive lock
-    			//System.out.println("at 1 Thread " +t.getId() + " Page " + p.toString() + "requestedX" + requestedX);
-    			lockTable.put(p, lock);
-				return true;
-			} else if (requestedX) {
-				//has shared, but requested exclusive --> UPGRADE
-				if (lock.grantedT.size() == 1) {
-					// only this txn has a lock right now
-					//System.out.println("at 2 Thread " +t.getId() + " Page " + p.toString() + "requestedX" + requestedX);
-					lock.typeIsX = true;
-					lockTable.put(p, lock);
-					return true;
-				} else {
-					// other transactions also have locks currently
-					//System.out.println("at 3 Thread " +t.getId() + " Page " + p.toString() + "requestedX" + requestedX);
-					lock.waiting.addFirst(txn);
-					lockTable.put(p, lock);
-					return false;
-				}
-			} else {
-				// has at least shared, requested shared
-				//System.out.println("at 4 Thread " +t.getId() + " Page " + p.toString() + "requestedX" + requestedX);
-				lockTable.put(p, lock);
-				return true;
-			}
-    	} else if (!lock.waiting.isEmpty()) {
-    		//check if this txn is already waiting for the lock
-    		if (updateWaiting(txn, lock, false)) {
-    			// txn is already waiting -- updates request type as well
-    			//System.out.println("at 5 Thread " +t.getId() + " Page " + p.toString() + "requestedX" + requestedX);
-    			return false;
-    		} else {
-    			//this txn is not waiting, not granted, and waiting is not empty
-    			//System.out.println("at 6 Thread " +t.getId() + " Page " + p.toString() + "requestedX" + requestedX);
-    			gotLock = false;
-    		} 
-		} else if (lock.grantedT.isEmpty()) {
-    		// no txns waiting, lock is free
-			//System.out.println("at 7 Thread " +t.getId() + " Page " + p.toString() + "requestedX" + requestedX);
-			gotLock = true;
-    	} else if(lock.waiting.isEmpty()) {
-    		//another txn is holding the hold, but the waiting list is empty
-    		if(!lock.typeIsX && !requestedX){
-    			//System.out.println("at 8 Thread " +t.getId() + " Page " + p.toString() + "requestedX" + requestedX);
-    			gotLock = true;
-    		} else {
-    			//System.out.println(lock.grantedT.getFirst());
-    			// either the txn holding or txn requesting has a exclusive lock
-    			//System.out.println("at 9 Thread " +t.getId() + " Page " + p.toString() + "requestedX" + requestedX);
-    			gotLock = false;
+    		if (lock.typeIsX || !requestedX) {
+    			// already has exclusive lock, or has at least shared and requested shared
+    			return null;
     		}
+    		//has shared, but requested exclusive --> UPGRADE
+    		if (lock.grantedT.size() == 1) {
+    			// only this txn has a lock right now
+    			lock.typeIsX = true;
+    			return null;
+    		}
+    		// other transactions also have locks currently; wait at the
+    		// head of the queue for them to leave
+    		txn = new LockNode(t, p, true);
+    		lock.waiting.addFirst(txn);
+    		return enqueued(txn);
     	}
-    	
-    	if (gotLock) {
+    	if (lock.waiting.isEmpty() && (lock.grantedT.isEmpty() || (!lock.typeIsX && !requestedX))) {
+    		// lock is free, or shared with nobody queued ahead of us
     		lock.grantedT.addLast(t);
     		lock.typeIsX = requestedX;
-    		lockTable.put(p, lock);
-    		return true;
+    		return null;
     	}
+    	txn = new LockNode(t, p, requestedX);
     	lock.waiting.addLast(txn);
-    	lockTable.put(p, lock);
+    	return enqueued(txn);
+    }
+    
+    // records a newly queued request in the waits-for graph and breaks any
+    // deadlock it closed.  The graph was acyclic before, so every cycle runs
+    // through the requester; victims are aborted until none is left
+    private LockNode enqueued(LockNode node) {
+    	List<LockNode> nodes = waitsFor.get(node.tid);
+    	if (nodes == null) {
+    		nodes = new ArrayList<LockNode>(1);
+    		waitsFor.put(node.tid, nodes);
+    	}
+    	nodes.add(node);
+    	List<TransactionId> cycle;
+    	while (!node.cancelled && (cycle = findCycle(node.tid)) != null) {
+    		abortWaiter(youngest(cycle));
+    	}
+    	return node;
+    }
+    
+    // the transactions that the request is waiting for
+    private List<TransactionId> blockers(LockNode node) {
+    	List<TransactionId> blockers = new ArrayList<TransactionId>();
+    	LockEntry lock = lockTable.get(node.pid);
+    	if (lock == null) {
+    		return blockers;
+    	}
+    	if (node.typeIsX || lock.typeIsX) {
+    		for (TransactionId holder : lock.grantedT) {
+    			if (!holder.equals(node.tid)) {
+    				blockers.add(holder);
+    			}
+    		}
+    	}
+    	for (LockNode ahead : lock.waiting) {
+    		if (ahead == node) {
+    			break;
+    		}
+    		if ((node.typeIsX || ahead.typeIsX) && !ahead.tid.equals(node.tid)) {
+    			blockers.add(ahead.tid);
+    		}
+    	}
+    	return blockers;
+    }
+    
+    // returns the transactions on a waits-for cycle through t, or null
+    private List<TransactionId> findCycle(TransactionId t) {
+    	LinkedList<TransactionId> path = new LinkedList<TransactionId>();
+    	path.add(t);
+    	if (findPath(t, t, path, new HashSet<TransactionId>())) {
+    		return path;
+    	}
+    	return null;
+    }
+    
+    // depth-first search for a waits-for path from 'from' back to target,
+    // which is left on path when found
+    private boolean findPath(TransactionId from, TransactionId target,
+    		LinkedList<TransactionId> path, HashSet<TransactionId> visited) {
+    	List<LockNode> nodes = waitsFor.get(from);
+    	if (nodes == null) {
+    		return false;
+    	}
+    	for (LockNode node : nodes) {
+    		for (TransactionId next : blockers(node)) {
+    			if (next.equals(target)) {
+    				return true;
+    			}
+    			if (visited.add(next)) {
+    				path.addLast(next);
+    				if (findPath(next, target, path, visited)) {
+    					return true;
+    				}
+    				path.removeLast();
+    			}
+    		}
+    	}
     	return false;
-    	
     }
     
+    // the deadlock victim: the transaction that started last, which has
+    // likely done the least work
+    private static TransactionId youngest(List<TransactionId> cycle) {
+    	TransactionId victim = cycle.get(0);
+    	for (TransactionId t : cycle) {
+    		if (t.getId() > victim.getId()) {
+    			victim = t;
+    		}
+    	}
+    	return victim;
+    }
     
-    public synchronized LockEntry updateLock(LockEntry lock) {
-    	// give the lock to the next node
-    	BufferPool bp = Database.getBufferPool();
-    	LockNode node = lock.waiting.removeFirst();
-    	//System.out.println("given to Thread "+ node.tid.getId());
-    	lock.grantedT.add(node.tid);
-    	synchronized (bp) {
-    		if (bp.tid_time == null) {
-    			//System.out.println("tid_time is null");
-    		} else if (bp.tid_time.get(node.tid) == null) {
-    			//System.out.println("tid_time doesnt contain node.tid");
+    // withdraws all of t's queued requests; the threads waiting on them
+    // wake up and abort the transaction
+    private void abortWaiter(TransactionId t) {
+    	List<LockNode> nodes = waitsFor.remove(t);
+    	if (nodes == null) {
+    		return;
+    	}
+    	for (LockNode node : nodes) {
+    		LockEntry lock = lockTable.get(node.pid);
+    		node.cancel();
+    		if (lock != null && lock.waiting.remove(node)) {
+    			updateLock(lock);
     		}
-    		//if (bp.tid_time.containsKey(node.tid)) {
-    		//	bp.tid_time.put(node.tid, (bp.tid_time.remove(node.tid) + bp.TIMEOUT));
-    		//}
+    	}
+    }
+    
+    // removes a request that is leaving the queue from the waits-for graph
+    private void dequeued(LockNode node) {
+    	List<LockNode> nodes = waitsFor.get(node.tid);
+    	if (nodes != null) {
+    		nodes.remove(node);
+    		if (nodes.isEmpty()) {
+    			waitsFor.remove(node.tid);
     		}
-    	lock.typeIsX = node.typeIsX;
-    	if (lock.typeIsX) {
-    		//exclusive given
-    		return lock;
-    	} else {
-    		//shared, check for other shared locks at top of waiting list
-    		while (!lock.waiting.isEmpty()) {
-    			node = lock.waiting.removeFirst();
-    			if (!node.typeIsX) {
-    				//shared
-    				lock.grantedT.add(node.tid);
-    				//synchronized (bp) {
-    		    		//bp.tid_time.put(node.tid, bp.tid_time.remove(node.tid) + bp.TIMEOUT);
-    		    	//}
-    				//System.out.println("and given to Thread "+ node.tid.getId());
-    			} else {
-    				//exclusive, put back on waiting list
-    				lock.waiting.addFirst(node);
+    	}
+    }
+    
+    
+    // grants the lock to the nodes at the head of the waiting list for as
+    // long as they are compatible with the holders, and wakes each of them
+    public synchronized LockEntry updateLock(LockEntry lock) {
+    	while (!lock.waiting.isEmpty()) {
+    		LockNode node = lock.waiting.getFirst();
+    		boolean upgrade = lock.grantedT.contains(node.tid);
+    		if (node.typeIsX) {
+    			if (!lock.grantedT.isEmpty() && !(upgrade && lock.grantedT.size() == 1)) {
     				return lock;
     			}
-    			
+    			lock.waiting.removeFirst();
+    			if (!upgrade) {
+    				lock.grantedT.add(node.tid);
+    			}
+    			lock.typeIsX = true;
+    			dequeued(node);
+    			node.grant();
+    			//exclusive given, nobody else can share it
+    			return lock;
+    		}
+    		if (!lock.grantedT.isEmpty() && lock.typeIsX) {
+    			return lock;
+    		}
+    		//shared, keep granting shared requests at the top of the waiting list
+    		lock.waiting.removeFirst();
+    		if (!upgrade) {
+    			lock.grantedT.add(node.tid);
     		}
-    		return lock;
+    		lock.typeIsX = false;
+    		dequeued(node);
+    		node.grant();
     	}
+    	return lock;
     }
 
     
     
     // used to determine if a transaction t holds the lock for page p
-    public boolean holdsLock(TransactionId t, PageId p, boolean checkX) {
-    	//acquireLockManagerLock();
-    	boolean hasLock = false;
-    	synchronized (this) {
-	    	// has lock for Lock Manager
-	    	LockEntry lock = lockTable.get(p);
-	    	if (lock != null) {
-		    	if ((lock.grantedT.contains(t)) && ((lock.typeIsX) || (checkX == lock.typeIsX))) {
-		    		hasLock = true;
-		    		//System.out.println("Thread "+ t.getId() + "got lock from waitlist for page " + p.toString());
-		    	}
-	    	}
-    	}
-    	//releaseLockManagerLock();
-		return hasLock;
+    public synchronized boolean holdsLock(TransactionId t, PageId p, boolean checkX) {
+    	LockEntry lock = lockTable.get(p);
+    	return (lock != null) && lock.grantedT.contains(t) && (lock.typeIsX || (checkX == lock.typeIsX));
     }
     
-    //method to make txn wait until it receives the lock for the page
-    private void waitForLock(TransactionId t, PageId p, boolean requestedX) throws TransactionAbortedException {
-    	BufferPool bp = Database.getBufferPool();
-    	
-    	while (holdsLock(t,p, requestedX) == false) {
-    		synchronized(bp) {
-    			if (!bp.tid_time.containsKey(t)) {
-    				//transaction already aborted
-    				
-    			}
-        		if (System.currentTimeMillis() > bp.tid_time.get(t) + bp.TIMEOUT) {
-        			//System.out.println("aborted Thread " +t.getId());
-        			throw new TransactionAbortedException();
-        		}
-        	}
-    		try {
-    			Thread.sleep(500);
-    			} catch (InterruptedException ignored) {}
+    //method to make txn wait until it is granted the lock for the page
+    private void waitForLock(TransactionId t, PageId p, LockNode waiter) throws TransactionAbortedException {
+    	boolean granted = false;
+    	try {
+    		granted = waiter.await();
+    	} catch (InterruptedException ignored) { }
+    	if (granted) {
+    		return;
+    	}
+    	synchronized (this) {
+    		if (waiter.isGranted()) {
+    			// granted between the interrupt and here
+    			return;
+    		}
+    		LockEntry lock = lockTable.get(p);
+    		if (lock != null && lock.waiting.remove(waiter)) {
+    			// our request may have been blocking compatible ones behind it
+    			dequeued(waiter);
+    			updateLock(lock);
+    		}
     	}
+    	throw new TransactionAbortedException();
     }
     
     // method to release the lock for a particular page
-    public void releasePageLock(TransactionId t, PageId p) {
-    	//acquireLockManagerLock();
-    	synchronized(this) {
-	    	// has lock for LockManager
-	    	LockEntry lock = lockTable.get(p);
-	    	if (lock!= null) {
-	    	lock.grantedT.remove(t);
-	    	if (lock.grantedT.isEmpty()) {
-	    		//System.out.println("granted is empty");
-	    	}
-	    	updateWaiting(new LockNode(t,p,false),lock, true);
-	    	lock = lockTable.get(p);
-	    	if (lock.grantedT.isEmpty() && (!lock.waiting.isEmpty())) {
-	    		//System.out.println("giving to lock to next waiting");
-	    		lock = updateLock(lock);
-	    	}
-	    	lockTable.put(p, lock);
-	    	}
+    public synchronized void releasePageLock(TransactionId t, PageId p) {
+    	LockEntry lock = lockTable.get(p);
+    	if (lock == null) {
+    		return;
+    	}
+    	while (lock.grantedT.remove(t)) { }
+    	// a transaction giving up the page also withdraws any queued request
+    	LockNode node = findWaiting(t, lock);
+    	if (node != null) {
+    		lock.waiting.remove(node);
+    		dequeued(node);
+    		node.cancel();
+    	}
+    	updateLock(lock);
+    	if (lock.grantedT.isEmpty() && lock.waiting.isEmpty()) {
+    		lockTable.remove(p);
     	}
-    	//releaseLockManagerLock();
     }
-    
-   
 
-    // checks if the LockNode is already waiting, if so, it updates the node to reflect 
-    // the lock type requested and returns true, else returns false
-    private synchronized boolean updateWaiting(LockNode txn, LockEntry lock, boolean abort) {
-    	for (int i = 0; i < lock.waiting.size(); i++){
-    		LockNode node = lock.waiting.get(i);
-    		if (node.getTransactionId().equals(txn.getTransactionId())) {
-    			if (!abort) {
-    				lock.typeIsX = (node.typeIsX || txn.typeIsX);
-					//node.typeIsX = (node.typeIsX || txn.typeIsX);
-					lock.waiting.add(i, node);
-					lockTable.put(txn.pid, lock);
-		    		return true;
-    			} else {
-    				//abort
-    				lock.waiting.remove(node);
-    				lockTable.put(txn.pid, lock);
-    				return true;
-    			}
+    // returns t's node in the lock's waiting list, or null if t is not waiting
+    private LockNode findWaiting(TransactionId t, LockEntry lock) {
+    	for (LockNode node : lock.waiting) {
+    		if (node.getTransactionId().equals(t)) {
+    			return node;
     		}
     	}
-    	return false;
+    	return null;
     }
     
     
-}	
-	
+}
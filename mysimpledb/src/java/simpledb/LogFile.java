@@ -15,23 +15,21 @@ import java.lang.reflect.*;
  <p>
 
  Many of the methods here are synchronized (to prevent concurrent log
- writes from happening); many of the methods in BufferPool are also
- synchronized (for similar reasons.)  Problem is that BufferPool writes
- log records (on page flushed) and the log file flushes BufferPool
- pages (on checkpoints and recovery.)  This can lead to deadlock.  For
- that reason, any LogFile operation that needs to access the BufferPool
- must not be declared synchronized and must begin with a block like:
+ writes from happening).  The BufferPool has no lock of its own: each of
+ its partitions has a latch, and the BufferPool writes log records (on
+ page flushes) holding the LogFile's monitor before the latch of the
+ page's partition.  A LogFile operation that reads or writes BufferPool
+ pages (checkpoints, rollback and recovery) takes the same order, its
+ own monitor first, so the two cannot deadlock.
 
  <p>
- <pre>
- synchronized (Database.getBufferPool()) {
- synchronized (this) {
-
- ..
-
- }
- }
- </pre>
+ Holding the monitor excludes every flush of a dirty page and every log
+ record, but not page traffic as such: while a checkpoint or rollback
+ runs, transactions read pages, pages are evicted and the background
+ writer writes committed pages, each under its page's partition latch.
+ That is safe because the background writer and eviction only ever
+ write a page's committed state, and the pages a rollback restores are
+ locked by the transaction being rolled back.
  */
 
 /**
@@ -71,6 +69,11 @@ import java.lang.reflect.*;
  * as a long integer transaction id for each active transaction.
  * <p/>
  * </ul>
+ * <p/>
+ * Commits are forced in groups.  A commit appends its record and then
+ * waits for a force of the log that covers it; one of the waiting commits
+ * forces the log for all of them, so that many commits share one fsync
+ * (see {@link #setGroupCommitMillis}).
  *
  * @author mhay, adapted from Madden
  */
@@ -89,6 +92,34 @@ public class LogFile {
 
     private Set<Long> activeTids = new HashSet<Long>();
 
+    /**
+     * Default number of milliseconds a commit waits for others to join its
+     * force of the log: none, since commits arriving during a force already
+     * share the next one, and a disk that forces faster than the window
+     * would only be kept idle.
+     */
+    public static final int DEFAULT_GROUP_COMMIT_MILLIS = 0;
+
+    /**
+     * Number of waiting commits that has a force of the log start without
+     * waiting out the rest of the group commit window.
+     */
+    public static final int GROUP_COMMIT_SIZE = 32;
+
+    private static int groupCommitMillis = DEFAULT_GROUP_COMMIT_MILLIS;
+
+    // guards the group commit state below; taken after the LogFile monitor,
+    // never before it
+    private final Object forceLock = new Object();
+    // the offset the log is known to be forced up to
+    private long forcedTo;
+    // set while a commit forces the log for the others waiting
+    private boolean forcing;
+    // the commits whose records have been appended, waiting for a force
+    private int waiting;
+    // the number of forces of the log
+    private int forces;
+
     /**
      * Constructor.
      * Initialize and back the log file with the specified file.
@@ -119,6 +150,28 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    /**
+     * Sets how long a commit forcing the log waits for other running
+     * transactions to append their commit records and share the force, or
+     * turns the wait off if 0.  The force starts early if GROUP_COMMIT_SIZE
+     * commits are waiting.  Commits that arrive while a force is under way
+     * share the next one whatever the window.
+     */
+    public static void setGroupCommitMillis(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("cannot wait " + millis + " ms for a group commit");
+        }
+        groupCommitMillis = millis;
+    }
+
+    public static void resetGroupCommitMillis() {
+        groupCommitMillis = DEFAULT_GROUP_COMMIT_MILLIS;
+    }
+
+    public static int getGroupCommitMillis() {
+        return groupCommitMillis;
+    }
+
     void preAppend() throws IOException {
         // we're about to append a log record. if we weren't sure whether the
         // DB wants to do recovery, we're sure now -- it didn't. So truncate
@@ -172,20 +225,121 @@ public class LogFile {
     /**
      * Write a commit record to disk for the specified tid,
      * and force the log to disk.
+     * <p/>
+     * The record is appended under the log's monitor, which is released
+     * while the commit waits for a force covering the record, so that other
+     * commits can append theirs and share the force.
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        //should we verify that this is a live transaction?
-        checkActive(tid, true);
-        preAppend();
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        boolean others;
+        synchronized (this) {
+            //should we verify that this is a live transaction?
+            checkActive(tid, true);
+            preAppend();
+
+            Long recordStart = raf.getFilePointer();
+            raf.writeInt(LogType.COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(recordStart);
+            end = raf.getFilePointer();
+            others = activeTids.size() > 1;
+        }
+        awaitForce(end, others);
+        synchronized (this) {
+            activeTids.remove(tid.getId());
+        }
+    }
 
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(recordStart);
-        force();
-        activeTids.remove(tid.getId());
+    /**
+     * Waits until the log is forced up to the given offset.  If no force is
+     * under way the caller forces the log itself, for every commit waiting,
+     * after giving other running transactions the group commit window to
+     * join it.
+     *
+     * @param end    the offset just past the caller's commit record
+     * @param others whether other transactions were running when the
+     *               record was appended, and might commit too
+     */
+    private void awaitForce(long end, boolean others) throws IOException {
+        boolean leads = false;
+        boolean interrupted = false;
+        synchronized (forceLock) {
+            waiting++;
+            // the group being gathered may be full now
+            forceLock.notifyAll();
+            try {
+                while (forcedTo < end && forcing) {
+                    forceLock.wait();
+                }
+                if (forcedTo < end) {
+                    forcing = true;
+                    leads = true;
+                    long deadline = System.currentTimeMillis() + groupCommitMillis;
+                    long left = groupCommitMillis;
+                    while (others && waiting < GROUP_COMMIT_SIZE && left > 0) {
+                        forceLock.wait(left);
+                        left = deadline - System.currentTimeMillis();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // force without waiting any longer
+                interrupted = true;
+            }
+            waiting--;
+        }
+        try {
+            if (leads || forcedTo() < end) {
+                forceAppended();
+            }
+        } finally {
+            if (leads) {
+                synchronized (forceLock) {
+                    forcing = false;
+                    forceLock.notifyAll();
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of times the log has been forced to disk since it
+     * was opened
+     */
+    public int getForceCount() {
+        synchronized (forceLock) {
+            return forces;
+        }
+    }
+
+    private long forcedTo() {
+        synchronized (forceLock) {
+            return forcedTo;
+        }
+    }
+
+    /**
+     * Forces everything appended to the log so far, without holding the
+     * log's monitor during the force, and wakes the commits it covers.
+     */
+    private void forceAppended() throws IOException {
+        long target;
+        synchronized (this) {
+            target = raf.getFilePointer();
+        }
+        raf.getChannel().force(true);
+        synchronized (forceLock) {
+            forces++;
+            if (target > forcedTo) {
+                forcedTo = target;
+            }
+            forceLock.notifyAll();
+        }
     }
 
     /**
@@ -195,19 +349,15 @@ public class LogFile {
      * @param tid The aborting transaction.
      */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized (this) {
-                //should we verify that this is a live transaction?
-                checkActive(tid, true);
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                logFileRecovery.rollback(tid);
-            }
+        // the monitor keeps flushes from logging or writing the pages being
+        // restored; tid's locks keep other transactions off them
+        synchronized (this) {
+            //should we verify that this is a live transaction?
+            checkActive(tid, true);
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            logFileRecovery.rollback(tid);
         }
     }
 
@@ -379,32 +529,31 @@ public class LogFile {
      * Checkpoint the log and write a checkpoint record.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                preAppend();
-                long startCpOffset, endCpOffset;
-
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(LogType.CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(activeTids.size());
-                for (Long key : activeTids) {
-                    raf.writeLong(key);
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(startCpOffset);
+        // the monitor keeps other records from between the flush and the
+        // checkpoint record; flushAllPages takes page latches inside it
+        synchronized (this) {
+            preAppend();
+            long startCpOffset, endCpOffset;
+
+            force();
+            Database.getBufferPool().flushAllPages();
+            startCpOffset = raf.getFilePointer();
+            raf.writeInt(LogType.CHECKPOINT_RECORD);
+            raf.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            raf.writeInt(activeTids.size());
+            for (Long key : activeTids) {
+                raf.writeLong(key);
             }
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            endCpOffset = raf.getFilePointer();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.seek(endCpOffset);
+            raf.writeLong(startCpOffset);
         }
 
 
@@ -440,17 +589,16 @@ public class LogFile {
      * updates of uncommitted transactions are not installed.
      */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                raf.seek(raf.length());      // go to end of log file
-                logFileRecovery.recover();
-            }
+        // runs before any transaction starts
+        synchronized (this) {
+            recoveryUndecided = false;
+            raf.seek(raf.length());      // go to end of log file
+            logFileRecovery.recover();
         }
     }
 
     public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        forceAppended();
     }
 
 }
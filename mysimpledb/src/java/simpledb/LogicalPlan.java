@@ -21,8 +21,38 @@ import java.util.NoSuchElementException;
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
  * best implementations for joins.
+ * <p/>
+ * With a degree of parallelism above one (see {@link #setParallelism}),
+ * the scans of large tables are split into that many parts run in parallel
+ * by {@link Exchange} operators, each claiming morsels of the table's pages
+ * as it goes (see {@link PageMorsels}), and so is the rest of the plan as far as
+ * it can be: filters and joins work on each part, and grouped aggregates
+ * on parts repartitioned on the first group field.
  */
 public class LogicalPlan {
+    /**
+     * System property setting the degree of parallelism of query plans
+     * (e.g. -Dsimpledb.parallelism=4); plans run on one thread if it is not
+     * set.
+     */
+    public final static String PARALLELISM_PROPERTY = "simpledb.parallelism";
+
+    /**
+     * Default minimum number of pages of a table for its scan to be split.
+     */
+    public static final int DEFAULT_MIN_PARALLEL_PAGES = 64;
+
+    /**
+     * Largest estimated number of tuples of a join input that is broadcast
+     * to every part of the other input: each part keeps all of a broadcast
+     * in memory.
+     */
+    public static final int MAX_BROADCAST_TUPLES = 1 << 14;
+
+    private static int parallelism = defaultParallelism();
+    private static int minParallelPages = DEFAULT_MIN_PARALLEL_PAGES;
+
+
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
@@ -30,12 +60,13 @@ public class LogicalPlan {
     private HashMap<String, Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAsc = new Vector<Boolean>();
+    private int limit = -1;
     private String query;
 //    private Query owner;
 
@@ -202,27 +233,43 @@ public class LogicalPlan {
 
     /**
      * Add an aggregate over the field with the specified grouping to
-     * the query.  SimpleDb only supports a single aggregate
-     * expression and GROUP BY field.
+     * the query.  If called more than once, all the aggregates are computed
+     * together, grouped by all the GROUP BY fields.
      *
      * @param op     the aggregation operator
      * @param afield the field to aggregate over
-     * @param gfield the field to group by
+     * @param gfield a field to group by, or null
      * @throws ParsingException
      */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield = disambiguateName(afield);
         if (gfield != null)
-            gfield = disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equals(op) && aggFields.elementAt(i).equals(afield))
+                return;
+        }
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
         hasAgg = true;
     }
 
     /**
-     * Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-     * a single ORDER BY field.
+     * Add a GROUP BY field to the query.  If called more than once, the
+     * groups are keyed by all the fields, in the order they were added.
+     *
+     * @param gfield the field to group by
+     * @throws ParsingException
+     */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield = disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /**
+     * Add an ORDER BY expression in the specified order on the specified field.  If called more than
+     * once, each field breaks ties in the fields added before it.
      *
      * @param field the field to order by
      * @param asc   true if should be ordered in ascending order, false for descending order
@@ -230,9 +277,29 @@ public class LogicalPlan {
      */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field = disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.addElement(field);
+        oByAsc.addElement(asc);
+    }
+
+    /**
+     * Add a LIMIT to the query, so that only the first n tuples of its
+     * result are returned.
+     *
+     * @param n the number of tuples to return
+     * @throws ParsingException if n is negative
+     */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0) {
+            throw new ParsingException("LIMIT must not be negative");
+        }
+        limit = n;
+    }
+
+    /**
+     * @return the LIMIT of the query, or -1 if it has none
+     */
+    public int getLimit() {
+        return limit;
     }
 
     /**
@@ -279,6 +346,137 @@ public class LogicalPlan {
 
     }
 
+    /**
+     * The degree of parallelism set with PARALLELISM_PROPERTY, or 1 if the
+     * property is not set.
+     */
+    static int defaultParallelism() {
+        String dop = System.getProperty(PARALLELISM_PROPERTY);
+        if (dop == null) {
+            return 1;
+        }
+        return Math.max(1, Integer.parseInt(dop.trim()));
+    }
+
+    /**
+     * @return the number of parts the plans made from now on are split into
+     */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the minimum number of pages of a table for the plans made
+     * from now on to split its scan
+     */
+    public static int getMinParallelPages() {
+        return minParallelPages;
+    }
+
+    /**
+     * Sets the degree of parallelism of the plans made from now on.
+     *
+     * @param parts    the number of parts a plan is split into; 1 keeps
+     *                 plans on one thread
+     * @param minPages the minimum number of pages of a table for its scan to
+     *                 be split
+     */
+    public static void setParallelism(int parts, int minPages) {
+        if (parts < 1) {
+            throw new IllegalArgumentException("a plan needs at least one part");
+        }
+        parallelism = parts;
+        minParallelPages = minPages;
+    }
+
+    public static void resetParallelism() {
+        parallelism = defaultParallelism();
+        minParallelPages = DEFAULT_MIN_PARALLEL_PAGES;
+    }
+
+    /**
+     * Returns a scan of a table, split into a Gather of scans sharing the
+     * morsels of the table's pages if it is large enough.
+     */
+    private static DbIterator scan(TransactionId t, int tableId, String alias) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (parallelism == 1 || !(file instanceof HeapFile)
+                || ((HeapFile) file).numPages() < minParallelPages) {
+            return new SeqScan(t, tableId, alias);
+        }
+        PageMorsels morsels = new PageMorsels((HeapFile) file, parallelism);
+        DbIterator[] parts = new DbIterator[parallelism];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new SeqScan(t, tableId, alias, morsels);
+        }
+        return new Gather(parts);
+    }
+
+    /**
+     * Returns a filter of a subplan; a Gather of parts is filtered part by
+     * part.
+     */
+    private static DbIterator filter(Predicate p, DbIterator subplan) {
+        if (!(subplan instanceof Gather)) {
+            return new Filter(p, subplan);
+        }
+        DbIterator[] parts = ((Gather) subplan).getChildren();
+        DbIterator[] filtered = new DbIterator[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            filtered[i] = new Filter(p, parts[i]);
+        }
+        return new Gather(filtered);
+    }
+
+    /**
+     * Returns a join of two subplans, either of which may be a Gather of
+     * parts.  Two split subplans joined on equality are repartitioned on the
+     * join fields and joined part by part.  Otherwise the parts of a split
+     * subplan are each joined to the whole of the other, broadcast to every
+     * part, if the other is estimated to be small; if neither side can be
+     * broadcast the join is not split, and reads the whole of each input.
+     *
+     * @param card1 the estimated cardinality of plan1
+     * @param card2 the estimated cardinality of plan2
+     */
+    private static DbIterator join(LogicalJoinNode lj, DbIterator plan1, DbIterator plan2,
+                                   int card1, int card2) throws ParsingException {
+        boolean split1 = plan1 instanceof Gather;
+        boolean split2 = plan2 instanceof Gather && !(lj instanceof LogicalSubplanJoinNode);
+        DbIterator[] parts1, parts2;
+        // the right input of each part's join: all of plan2 if broadcast
+        int partCard2 = card2;
+        if (split1 && split2 && lj.p == Predicate.Op.EQUALS) {
+            DbIterator[] children1 = ((Gather) plan1).getChildren();
+            DbIterator[] children2 = ((Gather) plan2).getChildren();
+            try {
+                parts1 = Repartition.of(children1,
+                        plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName), parallelism);
+                parts2 = Repartition.of(children2,
+                        plan2.getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName), parallelism);
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown field in join " + lj);
+            }
+            partCard2 = card2 / parts2.length;
+        } else if (split1 && card2 <= MAX_BROADCAST_TUPLES) {
+            parts1 = ((Gather) plan1).getChildren();
+            parts2 = Broadcast.of(split2 ? ((Gather) plan2).getChildren() : new DbIterator[]{plan2},
+                    parts1.length);
+        } else if (split2 && card1 <= MAX_BROADCAST_TUPLES) {
+            parts2 = ((Gather) plan2).getChildren();
+            partCard2 = card2 / parts2.length;
+            parts1 = Broadcast.of(split1 ? ((Gather) plan1).getChildren() : new DbIterator[]{plan1},
+                    parts2.length);
+        } else {
+            return JoinOptimizer.instantiateJoin(lj, plan1, plan2, card2);
+        }
+        DbIterator[] joins = new DbIterator[parts1.length];
+        for (int i = 0; i < joins.length; i++) {
+            joins[i] = JoinOptimizer.instantiateJoin(lj, parts1[i], parts2[i], partCard2);
+        }
+        return new Gather(joins);
+    }
+
     /**
      * Convert the aggregate operator name s into an Aggregator.op operation.
      *
@@ -317,9 +515,9 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbIterator ss = null;
             try {
-                ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                ss = scan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -359,7 +557,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            subplanMap.put(lf.tableAlias, filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -373,6 +571,15 @@ public class LogicalPlan {
 
         joins = jo.orderJoins(statsMap, filterSelectivities, explain);
 
+        // the estimated cardinality of each subplan, which the choice of
+        // join operators depends on
+        HashMap<String, Integer> cardMap = new HashMap<String, Integer>();
+        for (String alias : subplanMap.keySet()) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(alias)));
+            cardMap.put(alias, s == null ? Integer.MAX_VALUE
+                    : s.estimateTableCardinality(filterSelectivities.get(alias)));
+        }
+
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -406,9 +613,12 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
+            int card1 = cardMap.get(t1name);
+            int card2 = isSubqueryJoin ? Integer.MAX_VALUE : cardMap.get(t2name);
             DbIterator j;
-            j = jo.instantiateJoin(lj, plan1, plan2);
+            j = join(lj, plan1, plan2, card1, card2);
             subplanMap.put(t1name, j);
+            cardMap.put(t1name, jo.estimateJoinCardinality(lj, card1, card2, false, false, statsMap));
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -433,35 +643,68 @@ public class LogicalPlan {
 
         DbIterator node = (DbIterator) (subplanMap.entrySet().iterator().next().getValue());
 
+        // resolve the aggregates and GROUP BY fields; the output of the
+        // aggregate is the GROUP BY fields followed by the aggregates
+        TupleDesc childTd = node.getTupleDesc();
+        int[] gIndexes = new int[groupByFields.size()];
+        for (int i = 0; i < gIndexes.length; i++) {
+            try {
+                gIndexes[i] = childTd.fieldNameToIndex(groupByFields.elementAt(i));
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown field " + groupByFields.elementAt(i) + " in GROUP BY statement");
+            }
+        }
+        int[] aIndexes = new int[aggOps.size()];
+        Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
+        for (int i = 0; i < aIndexes.length; i++) {
+            try {
+                aIndexes[i] = childTd.fieldNameToIndex(aggFields.elementAt(i));
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown field " + aggFields.elementAt(i) + " in SELECT list");
+            }
+            ops[i] = getAggOp(aggOps.elementAt(i));
+        }
+
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
         ArrayList<Type> outTypes = new ArrayList<Type>();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField != null ? 1 : 0);
                 TupleDesc td = node.getTupleDesc();
-//                int  id;
+                int id;
                 try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
+                    id = td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
                     throw new ParsingException("Unknown field " + si.fname + " in SELECT list");
                 }
+                Aggregator.Op op = getAggOp(si.aggOp);
+                int a = 0;
+                while (a < aIndexes.length && (aIndexes[a] != id || ops[a] != op)) {
+                    a++;
+                }
+                if (a == aIndexes.length) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                }
+                outFields.add(gIndexes.length + a);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                if (groupByField == null) {
-                    throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
-                }
-                outFields.add(0);
                 TupleDesc td = node.getTupleDesc();
                 int id;
                 try {
-                    id = td.fieldNameToIndex(groupByField);
+                    id = td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " + groupByField + " in GROUP BY statement");
+                    throw new ParsingException("Unknown field " + si.fname + " in SELECT list");
+                }
+                int g = 0;
+                while (g < gIndexes.length && gIndexes[g] != id) {
+                    g++;
                 }
+                if (g == gIndexes.length) {
+                    throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
+                }
+                outFields.add(g);
                 outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
                 TupleDesc td = node.getTupleDesc();
@@ -484,23 +727,54 @@ public class LogicalPlan {
         }
 
         if (hasAgg) {
-            TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            DbIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                        td.fieldNameToIndex(aggField),
-                        groupByField == null ? Aggregator.NO_GROUPING : td.fieldNameToIndex(groupByField),
-                        getAggOp(aggOp));
-            } catch (NoSuchElementException e) {
-                throw new simpledb.ParsingException(e);
+                // input that comes grouped can be aggregated a group at a time
+                if (gIndexes.length > 0 && JoinOptimizer.isGroupedOn(node, gIndexes)) {
+                    aggNode = new StreamAggregate(node, aIndexes, gIndexes, ops);
+                } else if (gIndexes.length > 0 && node instanceof Gather) {
+                    // the tuples of a group all go to the same part, so
+                    // each part can be aggregated on its own
+                    DbIterator[] parts = Repartition.of(((Gather) node).getChildren(),
+                            gIndexes[0], parallelism);
+                    DbIterator[] aggs = new DbIterator[parts.length];
+                    for (int i = 0; i < parts.length; i++) {
+                        aggs[i] = new Aggregate(parts[i], aIndexes, gIndexes, ops);
+                    }
+                    aggNode = new Gather(aggs);
+                } else {
+                    aggNode = new Aggregate(node, aIndexes, gIndexes, ops);
+                }
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                try {
+                    oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.elementAt(i) + " in ORDER BY");
+                }
+                asc[i] = oByAsc.elementAt(i);
+            }
+            // a merge join may have left the tuples in this order already
+            if (oByIndexes.length == 1 && asc[0] && JoinOptimizer.isSortedOn(node, oByIndexes[0])) {
+                if (limit >= 0) {
+                    node = new Limit(limit, node);
+                }
+            } else if (limit >= 0) {
+                // only the first tuples are wanted, so keep just those
+                node = new TopN(oByIndexes, asc, limit, node);
+            } else {
+                node = new OrderBy(oByIndexes, asc, node);
+            }
+        } else if (limit >= 0) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
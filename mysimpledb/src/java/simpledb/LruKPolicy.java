@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum).  The victim is the page
+ * whose K-th most recent reference is oldest; pages referenced fewer than K
+ * times count as infinitely old and go first, least recently used among them
+ * first.  A page touched once by a sequential scan therefore cannot push out
+ * a page that point lookups keep coming back to.
+ * <p/>
+ * Reference histories of evicted pages are retained for a while, so a page
+ * that is re-read soon after eviction keeps its earlier references.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    /**
+     * The last K reference times of one page, most recent first.  Times come
+     * from a logical clock starting at 1, so 0 means "no such reference".
+     */
+    static class History {
+        final PageId pid;
+        final long[] times;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void reference(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+        }
+
+        long kthReference() {
+            return times[times.length - 1];
+        }
+
+        long lastReference() {
+            return times[0];
+        }
+    }
+
+    // oldest K-th reference first; ties (pages with < K references) by last reference
+    private static final Comparator<History> BACKWARD_K_DISTANCE = new Comparator<History>() {
+        public int compare(History a, History b) {
+            if (a.kthReference() != b.kthReference()) {
+                return a.kthReference() < b.kthReference() ? -1 : 1;
+            }
+            if (a.lastReference() != b.lastReference()) {
+                return a.lastReference() < b.lastReference() ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    private final int k;
+    private final int retainedHistory;
+    private long clock;
+    private final HashMap<PageId, History> resident;
+    private final TreeSet<History> byDistance;
+    private final LinkedHashMap<PageId, History> retired;
+
+    /**
+     * @param numPages the number of frames in the buffer pool; this many
+     *                 evicted pages keep their reference history
+     * @param k        the number of references tracked per page
+     */
+    public LruKPolicy(int numPages, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("LRU-K needs k >= 1");
+        }
+        this.k = k;
+        this.retainedHistory = numPages;
+        this.clock = 0;
+        this.resident = new HashMap<PageId, History>(numPages);
+        this.byDistance = new TreeSet<History>(BACKWARD_K_DISTANCE);
+        this.retired = new LinkedHashMap<PageId, History>() {
+            protected boolean removeEldestEntry(Map.Entry<PageId, History> eldest) {
+                return size() > retainedHistory;
+            }
+        };
+    }
+
+    public void pageLoaded(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null) {
+            h = retired.remove(pid);
+            if (h == null) {
+                h = new History(pid, k);
+            }
+            resident.put(pid, h);
+        } else {
+            byDistance.remove(h);
+        }
+        h.reference(++clock);
+        byDistance.add(h);
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h != null) {
+            // reposition under the new reference time
+            byDistance.remove(h);
+            h.reference(++clock);
+            byDistance.add(h);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        History h = resident.remove(pid);
+        if (h != null) {
+            byDistance.remove(h);
+            retired.put(pid, h);
+        }
+    }
+
+    public PageId chooseVictim(Map<PageId, Page> frames) {
+        for (History h : byDistance) {
+            Page page = frames.get(h.pid);
+            if (page != null && page.isDirty() == null) {
+                return h.pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,44 @@
+package simpledb;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Least recently used replacement.  Resident pages are kept in a
+ * LinkedHashSet ordered from least to most recently used, so both a hit and
+ * an eviction are O(1) unless the oldest pages are dirty.
+ */
+public class LruPolicy implements ReplacementPolicy {
+
+    // head is the least recently used page, tail the most recently used
+    private final LinkedHashSet<PageId> order;
+
+    public LruPolicy() {
+        this.order = new LinkedHashSet<PageId>();
+    }
+
+    public void pageLoaded(PageId pid) {
+        order.add(pid);
+    }
+
+    public void pageAccessed(PageId pid) {
+        // move to the most recently used end
+        if (order.remove(pid)) {
+            order.add(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        order.remove(pid);
+    }
+
+    public PageId chooseVictim(Map<PageId, Page> frames) {
+        for (PageId pid : order) {
+            Page page = frames.get(pid);
+            if (page != null && page.isDirty() == null) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -5,9 +5,10 @@ import java.util.NoSuchElementException;
 /**
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
- * <code>open</code> and <code>readNext</code>.
+ * <code>open</code> and <code>readNext</code>.  Batches of tuples are collected
+ * from <code>next</code> unless a subclass overrides <code>nextBatch</code>.
  */
-public abstract class Operator implements DbIterator {
+public abstract class Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -33,6 +34,17 @@ public abstract class Operator implements DbIterator {
         return result;
     }
 
+    /**
+     * Returns the next tuples of the operator.  This implementation collects
+     * them from {@link #next}; operators that can work on a batch at a time
+     * override it.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null)
+            batch = new TupleBatch(getTupleDesc());
+        return batch.fill(this);
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
@@ -51,10 +63,12 @@ public abstract class Operator implements DbIterator {
     public void close() {
         // Ensures that a future call to next() will fail
         next = null;
+        batch = null;
         this.open = false;
     }
 
     private Tuple next = null;
+    private transient TupleBatch batch = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
 
@@ -30,6 +30,9 @@ public class OperatorCardinality {
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
+        } else if (o instanceof Consumer) {
+            return updateConsumerCardinality((Consumer) o, tableAliasToId,
+                    tableStats);
         } else {
             DbIterator[] children = o.getChildren();
             int childC = 1;
@@ -42,14 +45,39 @@ public class OperatorCardinality {
                 } else if (children[0] instanceof SeqScan) {
                     childC = tableStats.get(
                             ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                            .estimateTableCardinality(1.0 / ((SeqScan) children[0]).getPartitions());
                 }
             }
+            if (o instanceof TopN) {
+                childC = Math.min(childC, ((TopN) o).getLimit());
+            } else if (o instanceof Limit) {
+                childC = Math.min(childC, ((Limit) o).getLimit());
+            }
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
     }
 
+    private static boolean updateConsumerCardinality(Consumer c,
+                                                     Map<String, Integer> tableAliasToId,
+                                                     Map<String, TableStats> tableStats) {
+        // the producers between them return all the tuples of the exchange
+        boolean hasJoinPK = false;
+        int producerC = 0;
+        for (DbIterator child : c.getChildren()) {
+            if (child instanceof Operator) {
+                hasJoinPK |= updateOperatorCardinality((Operator) child,
+                        tableAliasToId, tableStats);
+                producerC += ((Operator) child).getEstimatedCardinality();
+            } else if (child instanceof SeqScan) {
+                producerC += tableStats.get(((SeqScan) child).getTableName())
+                        .estimateTableCardinality(1.0 / ((SeqScan) child).getPartitions());
+            }
+        }
+        c.setEstimatedCardinality(c.estimateCardinality(producerC));
+        return hasJoinPK;
+    }
+
     private static boolean updateFilterCardinality(Filter f,
                                                    Map<String, Integer> tableAliasToId,
                                                    Map<String, TableStats> tableStats) {
@@ -78,7 +106,7 @@ public class OperatorCardinality {
             } else if (child instanceof SeqScan) {
                 f.setEstimatedCardinality((int) (tableStats.get(
                         ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+                        .estimateTableCardinality(1.0 / ((SeqScan) child).getPartitions()) * selectivity) + 1);
                 return false;
             }
         }
@@ -120,7 +148,7 @@ public class OperatorCardinality {
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
             child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+                    .getTableName()).estimateTableCardinality(1.0 / ((SeqScan) child1).getPartitions()));
         }
 
         if (child2 instanceof Operator) {
@@ -132,7 +160,7 @@ public class OperatorCardinality {
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
             child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+                    .getTableName()).estimateTableCardinality(1.0 / ((SeqScan) child2).getPartitions()));
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -177,7 +205,7 @@ public class OperatorCardinality {
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
             child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+                    .getTableName()).estimateTableCardinality(1.0 / ((SeqScan) child1).getPartitions()));
         }
 
         if (child2 instanceof Operator) {
@@ -189,7 +217,7 @@ public class OperatorCardinality {
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
             child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+                    .getTableName()).estimateTableCardinality(1.0 / ((SeqScan) child2).getPartitions()));
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -219,7 +247,7 @@ public class OperatorCardinality {
 
         if (child instanceof SeqScan) {
             childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+                    .estimateTableCardinality(1.0 / ((SeqScan) child).getPartitions()));
         }
 
         String[] tmp = a.groupFieldName().split("[.]");
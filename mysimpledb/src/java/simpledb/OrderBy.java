@@ -1,20 +1,118 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p/>
+ * The child's tuples are sorted in memory as long as they fit in a budget of
+ * tuples (see {@link #setMaxSortTuples}).  A bigger input is sorted
+ * externally: each budget's worth of tuples is sorted and written to a
+ * temporary heap file as a sorted run, and fetchNext merges the runs, holding
+ * only the current page of each.  If there are more than
+ * {@link #MERGE_FAN_IN} runs, groups of them are first merged into longer
+ * runs until few enough remain.  Tuples with equal sort keys come out in the
+ * order the child returned them.
+ * <p/>
+ * The tuples can be sorted on several fields (see {@link SortOrder}).  Each
+ * tuple's sort fields are encoded into a normalized key when it is read, and
+ * the sort and the merge compare those keys rather than the fields.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Default maximum number of tuples an OrderBy holds in memory.
+     */
+    public static final int DEFAULT_MAX_SORT_TUPLES = 1 << 20;
+
+    private static int maxSortTuples = DEFAULT_MAX_SORT_TUPLES;
+
+    /**
+     * Maximum number of runs merged at once.
+     */
+    public static final int MERGE_FAN_IN = 64;
+
+    /**
+     * A tuple with its normalized sort key.
+     */
+    private static class Keyed {
+        final Tuple tuple;
+        final long[] key;
+
+        Keyed(Tuple tuple, long[] key) {
+            this.tuple = tuple;
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Keyed> BY_KEY = new Comparator<Keyed>() {
+        public int compare(Keyed k1, Keyed k2) {
+            return SortOrder.compareKeys(k1.key, k2.key);
+        }
+    };
+
+    /**
+     * A sorted run being merged, positioned on its smallest unreturned tuple.
+     */
+    private static class Run {
+        final TempHeapFile file;
+        // position of the run in creation order, to keep the sort stable
+        final int seq;
+        DbFileIterator it;
+        Tuple head;
+        long[] headKey;
+
+        Run(TempHeapFile file, int seq) {
+            this.file = file;
+            this.seq = seq;
+        }
+
+        void open(SortOrder order) throws DbException, TransactionAbortedException {
+            it = file.iterator(null);
+            it.open();
+            advance(order);
+        }
+
+        void advance(SortOrder order) throws DbException, TransactionAbortedException {
+            head = it.hasNext() ? it.next() : null;
+            headKey = head == null ? null : order.key(head);
+        }
+
+        void close() {
+            if (it != null) {
+                it.close();
+                it = null;
+            }
+            head = null;
+            headKey = null;
+        }
+    }
+
+    private static final Comparator<Run> BY_HEAD = new Comparator<Run>() {
+        public int compare(Run r1, Run r2) {
+            int c = SortOrder.compareKeys(r1.headKey, r2.headKey);
+            return c != 0 ? c : r1.seq - r2.seq;
+        }
+    };
+
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private final SortOrder order;
+    // maximum number of tuples sorted in memory
+    private final int budget;
+
+    // tuples read since the last run was written; once sorted in memory,
+    // the whole input, returned from position pos on
+    private transient ArrayList<Keyed> childTups;
+    private transient int pos;
+
+    // sorted runs on disk, or null if the input was sorted in memory
+    private transient ArrayList<Run> runs;
+    // runs with tuples left, ordered by their head tuples
+    private transient PriorityQueue<Run> merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -24,23 +122,99 @@ public class OrderBy extends Operator {
      * @param child        the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(orderbyField, asc, child, maxSortTuples);
+    }
+
+    /**
+     * Creates a new OrderBy node that holds at most maxSortTuples tuples in
+     * memory, instead of the current default.
+     *
+     * @param orderbyField  the field to which the sort is applied.
+     * @param asc           true if the sort order is ascending.
+     * @param child         the tuples to sort.
+     * @param maxSortTuples the maximum number of tuples sorted in memory.
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, int maxSortTuples) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child, maxSortTuples);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields.
+     *
+     * @param orderbyFields the fields to which the sort is applied, most
+     *                      significant first.
+     * @param asc           for each field, true if it is sorted ascending.
+     * @param child         the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        this(orderbyFields, asc, child, maxSortTuples);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields and holds at
+     * most maxSortTuples tuples in memory.
+     *
+     * @param orderbyFields the fields to which the sort is applied, most
+     *                      significant first.
+     * @param asc           for each field, true if it is sorted ascending.
+     * @param child         the tuples to sort.
+     * @param maxSortTuples the maximum number of tuples sorted in memory.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child, int maxSortTuples) {
+        if (maxSortTuples < 1) {
+            throw new IllegalArgumentException("sort budget must be at least one tuple");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.order = new SortOrder(orderbyFields, asc);
+        this.budget = maxSortTuples;
     }
 
+    /**
+     * @return the maximum number of tuples an OrderBy sorts in memory
+     */
+    public static int getMaxSortTuples() {
+        return maxSortTuples;
+    }
+
+    /**
+     * Sets the maximum number of tuples sorted in memory by OrderBy nodes
+     * created from now on.
+     */
+    public static void setMaxSortTuples(int tuples) {
+        if (tuples < 1) {
+            throw new IllegalArgumentException("sort budget must be at least one tuple");
+        }
+        maxSortTuples = tuples;
+    }
+
+    public static void resetMaxSortTuples() {
+        maxSortTuples = DEFAULT_MAX_SORT_TUPLES;
+    }
+
+    /**
+     * @return true if the first sort field is sorted ascending
+     */
     public boolean isASC() {
-        return this.asc;
+        return order.getAscending()[0];
     }
 
+    /**
+     * @return the first sort field
+     */
     public int getOrderByField() {
-        return this.orderByField;
+        return order.getFields()[0];
     }
 
     public String getOrderFieldName() {
-        return this.orderByFieldName;
+        return td.getFieldName(getOrderByField());
+    }
+
+    /**
+     * @return the sort fields and their directions
+     */
+    public SortOrder getSortOrder() {
+        return order;
     }
 
     public TupleDesc getTupleDesc() {
@@ -50,21 +224,140 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        childTups = new ArrayList<Keyed>();
+        // load the tuples in a collection, and sort it; if they do not all
+        // fit, write it out as a run and start the next one
+        while (child.hasNext()) {
+            if (childTups.size() == budget) {
+                writeRun();
+            }
+            Tuple t = child.next();
+            childTups.add(new Keyed(t, order.key(t)));
+        }
+        if (runs == null) {
+            Collections.sort(childTups, BY_KEY);
+            pos = 0;
+        } else {
+            writeRun();
+            childTups = null;
+            while (runs.size() > MERGE_FAN_IN) {
+                mergePass();
+            }
+            startMerge();
+        }
         super.open();
     }
 
+    /**
+     * Sorts the buffered tuples and writes them to a new run.
+     */
+    private void writeRun() throws DbException {
+        if (runs == null) {
+            runs = new ArrayList<Run>();
+        }
+        Collections.sort(childTups, BY_KEY);
+        TempHeapFile file = newRunFile();
+        runs.add(new Run(file, runs.size()));
+        for (Keyed k : childTups) {
+            append(file, k.tuple);
+        }
+        childTups.clear();
+    }
+
+    /**
+     * Merges the runs in groups of MERGE_FAN_IN, each into one longer run.
+     */
+    private void mergePass() throws DbException, TransactionAbortedException {
+        ArrayList<Run> merged = new ArrayList<Run>();
+        for (int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+            List<Run> group = runs.subList(i, Math.min(i + MERGE_FAN_IN, runs.size()));
+            TempHeapFile file = newRunFile();
+            merged.add(new Run(file, merged.size()));
+            PriorityQueue<Run> queue = openRuns(group);
+            while (!queue.isEmpty()) {
+                Run r = queue.poll();
+                append(file, r.head);
+                r.advance(order);
+                if (r.head != null) {
+                    queue.add(r);
+                }
+            }
+            for (Run r : group) {
+                r.close();
+                r.file.delete();
+            }
+        }
+        runs = merged;
+    }
+
+    /**
+     * Opens the runs and queues up those that are not empty.
+     */
+    private PriorityQueue<Run> openRuns(List<Run> group)
+            throws DbException, TransactionAbortedException {
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, group.size()), BY_HEAD);
+        for (Run r : group) {
+            r.open(order);
+            if (r.head != null) {
+                queue.add(r);
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Positions the final merge at the first tuple of every run.
+     */
+    private void startMerge() throws DbException, TransactionAbortedException {
+        for (Run r : runs) {
+            r.close();
+        }
+        merge = openRuns(runs);
+    }
+
+    private TempHeapFile newRunFile() throws DbException {
+        try {
+            return new TempHeapFile(td);
+        } catch (IOException e) {
+            throw new DbException("Couldn't create sort run: " + e.getMessage());
+        }
+    }
+
+    private static void append(TempHeapFile file, Tuple t) throws DbException {
+        try {
+            file.append(t);
+        } catch (IOException e) {
+            throw new DbException("Couldn't write sort run: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes and deletes the runs, if any.
+     */
+    private void discardRuns() {
+        if (runs != null) {
+            for (Run r : runs) {
+                r.close();
+                r.file.delete();
+            }
+            runs = null;
+        }
+        merge = null;
+    }
+
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        childTups = null;
+        discardRuns();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (runs != null) {
+            startMerge();
+        } else {
+            pos = 0;
+        }
     }
 
     /**
@@ -76,8 +369,20 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+        if (merge != null) {
+            Run r = merge.poll();
+            if (r == null) {
+                return null;
+            }
+            Tuple t = r.head;
+            r.advance(order);
+            if (r.head != null) {
+                merge.add(r);
+            }
+            return t;
+        }
+        if (childTups != null && pos < childTups.size()) {
+            return childTups.get(pos++).tuple;
         } else
             return null;
     }
@@ -93,25 +398,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-
-}
@@ -0,0 +1,94 @@
+package simpledb;
+
+/**
+ * PageMorsels hands out the pages of a heap file to several scans of it,
+ * run in parallel, a morsel of consecutive pages at a time: each scan claims
+ * a new morsel whenever it has read the last, so a scan that gets ahead
+ * simply reads more of the file, instead of the others waiting for a slow
+ * scan to finish a fixed share of the pages.
+ * <p/>
+ * The scans sharing the morsels are opened and rewound together.  Each
+ * opening or rewinding starts a new round of the file's pages, handed out
+ * again from the first page; a scan still claiming in an earlier round gets
+ * no more pages.
+ */
+public class PageMorsels {
+
+    /**
+     * Default number of pages in a morsel.
+     */
+    public static final int DEFAULT_MORSEL_PAGES = 8;
+
+    private final HeapFile file;
+    private final int scans;
+    private final int morselPages;
+
+    // the round being handed out, the number of pages of the file when it
+    // started, and the next page to hand out
+    private int round;
+    private int pages;
+    private int next;
+
+    /**
+     * Constructor.
+     *
+     * @param file        the file whose pages are handed out
+     * @param scans       the number of scans that share the pages
+     * @param morselPages the number of pages in a morsel
+     */
+    public PageMorsels(HeapFile file, int scans, int morselPages) {
+        if (scans < 1 || morselPages < 1) {
+            throw new IllegalArgumentException("morsels need at least one scan and one page");
+        }
+        this.file = file;
+        this.scans = scans;
+        this.morselPages = morselPages;
+    }
+
+    public PageMorsels(HeapFile file, int scans) {
+        this(file, scans, DEFAULT_MORSEL_PAGES);
+    }
+
+    public HeapFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of scans that share the pages
+     */
+    public int getScans() {
+        return scans;
+    }
+
+    /**
+     * Claims the next morsel of a round of the file's pages.
+     *
+     * @param round the round of the scan claiming the morsel, one more than
+     *              the last if the scan has just been opened or rewound
+     * @return the first page of the morsel, or -1 if all the pages of the
+     * round have been handed out
+     */
+    synchronized int claim(int round) {
+        if (round > this.round) {
+            this.round = round;
+            this.pages = file.numPages();
+            this.next = 0;
+        } else if (round < this.round) {
+            return -1;
+        }
+        if (next >= pages) {
+            return -1;
+        }
+        int first = next;
+        next = Math.min(pages, next + morselPages);
+        return first;
+    }
+
+    /**
+     * @return one past the last page of the morsel starting at the given
+     * page
+     */
+    synchronized int end(int first) {
+        return Math.min(pages, first + morselPages);
+    }
+}
@@ -95,6 +95,98 @@ public class Predicate implements Serializable {
     	return t.getField(field_num).compare(op, operand);
     }
 
+    /**
+     * Applies the predicate to each row of a batch.  An int field compared
+     * to an int operand is read straight from the batch's values of the
+     * field, in one loop for the whole batch.
+     *
+     * @param batch the rows to compare
+     * @param rows  receives, in order, the index in the values of the
+     *              batch's fields (see {@link TupleBatch#selection}) of
+     *              each row for which the comparison is true
+     * @return the number of rows for which the comparison is true
+     */
+    public int filter(TupleBatch batch, int[] rows) {
+        int n = 0;
+        int size = batch.size();
+        int[] sel = batch.selection();
+        if (batch.getTupleDesc().getFieldType(field_num) != Type.INT_TYPE
+                || !(operand instanceof IntField)) {
+            for (int i = 0; i < size; i++) {
+                if (batch.getField(field_num, i).compare(op, operand)) {
+                    rows[n++] = sel == null ? i : sel[i];
+                }
+            }
+            return n;
+        }
+        if (sel == null) {
+            return filter(batch.ints(field_num), size, rows);
+        }
+        // compare the selected values gathered into rows, then map the
+        // passing ones back
+        int[] v = batch.ints(field_num);
+        int[] gathered = new int[size];
+        for (int i = 0; i < size; i++) {
+            gathered[i] = v[sel[i]];
+        }
+        n = filter(gathered, size, rows);
+        for (int i = 0; i < n; i++) {
+            rows[i] = sel[rows[i]];
+        }
+        return n;
+    }
+
+    /**
+     * Compares the first size values to the int operand.
+     *
+     * @return the number of values for which the comparison is true, whose
+     * indexes are put in rows
+     */
+    private int filter(int[] v, int size, int[] rows) {
+        int n = 0;
+        int c = ((IntField) operand).getValue();
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += v[r] == c ? 1 : 0;
+                }
+                break;
+            case NOT_EQUALS:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += v[r] != c ? 1 : 0;
+                }
+                break;
+            case GREATER_THAN:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += v[r] > c ? 1 : 0;
+                }
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += v[r] >= c ? 1 : 0;
+                }
+                break;
+            case LESS_THAN:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += v[r] < c ? 1 : 0;
+                }
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += v[r] <= c ? 1 : 0;
+                }
+                break;
+        }
+        return n;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
@@ -11,6 +11,8 @@ public class Project extends Operator {
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private int[] fieldIds;
+    private transient BatchIterator batches;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -36,6 +38,10 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        fieldIds = new int[fieldAr.length];
+        for (int i = 0; i < fieldIds.length; i++) {
+            fieldIds[i] = fieldList.get(i);
+        }
     }
 
     public TupleDesc getTupleDesc() {
@@ -45,12 +51,14 @@ public class Project extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
+        batches = BatchAdapter.of(child);
         super.open();
     }
 
     public void close() {
         super.close();
         child.close();
+        batches = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -77,6 +85,15 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Returns the projected fields of the child's next batch, which are
+     * shared with it rather than copied.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch in = batches.nextBatch();
+        return in == null ? null : in.project(td, fieldIds);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[]{this.child};
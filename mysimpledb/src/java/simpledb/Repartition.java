@@ -0,0 +1,263 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Repartition is the exchange that splits the tuples of several subplans,
+ * run in parallel, among its consumers on a hash of a field, so that the
+ * tuples with equal values of the field all go to the same consumer: each
+ * consumer can then join or group its part of the tuples on its own.
+ * <p/>
+ * A consumer can be rewound on its own, as when the parts of a join choose
+ * different sides to read again, while the others are still reading: it
+ * keeps the batches it has taken and takes them again, and the producers
+ * run only once.  Up to a budget of tuples are kept in memory and the rest
+ * in a temporary file.
+ */
+public class Repartition extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default maximum number of tuples a consumer keeps in memory to be
+     * taken again once rewound.
+     */
+    public static final int DEFAULT_MAX_KEPT_TUPLES = 1 << 16;
+
+    private static int maxKeptTuples = DEFAULT_MAX_KEPT_TUPLES;
+
+    /**
+     * Copies the tuples of each producer into a batch of its own for each
+     * channel, which is sent once it fills up.
+     */
+    private static class Splitter extends Producers {
+        private final int field;
+        // the batch each producer is filling for each channel
+        private final TupleBatch[][] out;
+
+        Splitter(DbIterator[] children, int field, int consumers) {
+            super(children, consumers, false);
+            this.field = field;
+            this.out = new TupleBatch[children.length][consumers];
+        }
+
+        void send(int producer, TupleBatch batch) {
+            TupleBatch[] o = out[producer];
+            boolean ints = batch.getTupleDesc().getFieldType(field) == Type.INT_TYPE;
+            for (int r = 0; r < batch.size(); r++) {
+                int h = ints ? batch.getInt(field, r) : batch.getField(field, r).hashCode();
+                int c = partition(h, channels.length);
+                if (o[c] == null) {
+                    o[c] = new TupleBatch(batch.getTupleDesc());
+                }
+                o[c].add(batch, r);
+                if (o[c].isFull()) {
+                    channels[c].put(o[c]);
+                    o[c] = null;
+                }
+            }
+        }
+
+        void begin(int producer) {
+            Arrays.fill(out[producer], null);
+        }
+
+        void flush(int producer) {
+            TupleBatch[] o = out[producer];
+            for (int c = 0; c < o.length; c++) {
+                if (o[c] != null && o[c].size() > 0) {
+                    channels[c].put(o[c]);
+                }
+                o[c] = null;
+            }
+        }
+    }
+
+    private final int field;
+    // maximum number of tuples kept in memory
+    private final int budget;
+
+    // the batches taken from the channel, in order, and the number of
+    // tuples in them; once they fill the budget the rest are kept in
+    // overflow instead
+    private transient ArrayList<TupleBatch> kept;
+    private transient int keptTuples;
+    private transient TempHeapFile overflow;
+    // while the kept tuples are being taken again: the next kept batch and
+    // the reader of overflow, once it is reached
+    private transient boolean replaying;
+    private transient int replayed;
+    private transient DbFileIterator overflowReader;
+
+    private Repartition(Producers producers, int index, int field, int budget) {
+        super(producers, index);
+        this.field = field;
+        this.budget = budget;
+    }
+
+    /**
+     * @return the maximum number of tuples a consumer keeps in memory
+     */
+    public static int getMaxKeptTuples() {
+        return maxKeptTuples;
+    }
+
+    /**
+     * Sets the maximum number of tuples each consumer of the repartitions
+     * created from now on keeps in memory.
+     */
+    public static void setMaxKeptTuples(int tuples) {
+        if (tuples < 0) {
+            throw new IllegalArgumentException("kept tuple budget cannot be negative");
+        }
+        maxKeptTuples = tuples;
+    }
+
+    public static void resetMaxKeptTuples() {
+        maxKeptTuples = DEFAULT_MAX_KEPT_TUPLES;
+    }
+
+    /**
+     * Creates the consumers of a repartitioning.
+     *
+     * @param children   the subplans to run in parallel, which return tuples
+     *                   of the same TupleDesc
+     * @param field      the field the tuples are split on
+     * @param partitions the number of consumers
+     * @return the consumers; consumer i returns the tuples whose field hashes
+     * to partition i (see {@link #partition})
+     */
+    public static Repartition[] of(DbIterator[] children, int field, int partitions) {
+        Producers producers = new Splitter(children, field, partitions);
+        Repartition[] out = new Repartition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            out[i] = new Repartition(producers, i, field, maxKeptTuples);
+        }
+        return out;
+    }
+
+    /**
+     * Returns the partition of a field's hash code.  The hash is mixed first,
+     * so that the hash tables that each consumer's tuples go on to see a good
+     * spread of hash codes.
+     */
+    static int partition(int hashCode, int partitions) {
+        long h = (hashCode * 0x9E3779B97F4A7C15L) >>> 32;
+        return (int) (h % partitions);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        discardKept();
+        kept = new ArrayList<TupleBatch>();
+        super.open();
+    }
+
+    TupleBatch take() throws DbException, TransactionAbortedException {
+        if (replaying) {
+            TupleBatch batch = replay();
+            if (batch != null) {
+                return batch;
+            }
+            replaying = false;
+        }
+        TupleBatch batch = super.take();
+        if (batch != null) {
+            keep(batch);
+        }
+        return batch;
+    }
+
+    /**
+     * Rewinds this consumer alone: the batches it has taken are taken
+     * again, and then the rest from the channel.
+     */
+    void restart() throws DbException {
+        closeOverflowReader();
+        replaying = true;
+        replayed = 0;
+    }
+
+    public void close() {
+        super.close();
+        discardKept();
+    }
+
+    // adds a batch taken from the channel to the kept ones
+    private void keep(TupleBatch batch) throws DbException {
+        if (overflow == null && keptTuples + batch.size() <= budget) {
+            kept.add(batch);
+            keptTuples += batch.size();
+            return;
+        }
+        try {
+            if (overflow == null) {
+                overflow = new TempHeapFile(batch.getTupleDesc());
+            }
+            for (int r = 0; r < batch.size(); r++) {
+                overflow.append(batch.getTuple(r));
+            }
+        } catch (IOException e) {
+            throw new DbException("Couldn't write spill file: " + e.getMessage());
+        }
+    }
+
+    // returns the next kept batch, or null once they have all been taken
+    private TupleBatch replay() throws DbException, TransactionAbortedException {
+        if (replayed < kept.size()) {
+            return kept.get(replayed++);
+        }
+        if (overflow == null) {
+            return null;
+        }
+        if (overflowReader == null) {
+            overflowReader = overflow.iterator(null);
+            overflowReader.open();
+        }
+        TupleBatch batch = new TupleBatch(getTupleDesc());
+        while (!batch.isFull() && overflowReader.hasNext()) {
+            batch.add(overflowReader.next());
+        }
+        if (batch.size() > 0) {
+            return batch;
+        }
+        closeOverflowReader();
+        return null;
+    }
+
+    private void closeOverflowReader() {
+        if (overflowReader != null) {
+            overflowReader.close();
+            overflowReader = null;
+        }
+    }
+
+    // drops the kept batches and deletes the overflow file
+    private void discardKept() {
+        closeOverflowReader();
+        if (overflow != null) {
+            overflow.delete();
+            overflow = null;
+        }
+        kept = null;
+        keptTuples = 0;
+        replaying = false;
+    }
+
+    /**
+     * @return the field the tuples are split on
+     */
+    public int getPartitionField() {
+        return field;
+    }
+
+    public String getName() {
+        return "Repartition(" + getTupleDesc().getFieldName(field) + ","
+                + getChildren().length + "->" + producers.channels.length + ")";
+    }
+
+    int estimateCardinality(int producerCardinality) {
+        return producerCardinality / producers.channels.length;
+    }
+}
@@ -0,0 +1,65 @@
+package simpledb;
+
+import java.util.Map;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs a free frame.  The BufferPool reports every page it loads, every
+ * hit, and every page it drops; the policy only keeps whatever bookkeeping it
+ * needs to name a victim.
+ * <p/>
+ * Policies never evict dirty pages (NO STEAL): chooseVictim must only return
+ * a page whose {@link Page#isDirty()} is null.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * The policies a BufferPool can be constructed with.
+     */
+    public enum Kind {
+        LRU, CLOCK, LRU_K, TWO_Q;
+
+        /**
+         * Create a new, empty policy of this kind for a pool of numPages frames.
+         */
+        public ReplacementPolicy create(int numPages) {
+            switch (this) {
+                case CLOCK:
+                    return new ClockPolicy(numPages);
+                case LRU_K:
+                    return new LruKPolicy(numPages, LruKPolicy.DEFAULT_K);
+                case TWO_Q:
+                    return new TwoQueuePolicy(numPages);
+                default:
+                    return new LruPolicy();
+            }
+        }
+    }
+
+    /**
+     * A page was read from disk into a free frame.
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * A resident page was requested again (a buffer pool hit).
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * A page left the buffer pool, either as the chosen victim or because it
+     * was discarded.
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Pick the page to evict.  The victim stays tracked until the BufferPool
+     * calls {@link #pageRemoved}.
+     *
+     * @param frames the resident pages, used to check whether a candidate is dirty
+     * @return the id of a clean resident page, or null if every page is dirty
+     */
+    public PageId chooseVictim(Map<PageId, Page> frames);
+}
@@ -7,7 +7,7 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -26,8 +26,18 @@ public class SeqScan implements DbIterator {
      */
     private final String tableAlias;
     
+    /**
+     * the morsels of the table's pages this scan shares with others, or
+     * null if it reads all of them
+     */
+    private final PageMorsels morsels;
+    
     private DbFileIterator it;
     
+    private transient TupleBatch batch;
+    // the index of each field, to give a page's batch this scan's TupleDesc
+    private transient int[] allFields;
+    
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -45,9 +55,34 @@ public class SeqScan implements DbIterator {
         this.tid = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.morsels = null;
         this.it =  Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
     }
 
+    /**
+     * Creates a sequential scan of the morsels of a heap file's pages that
+     * it claims from those shared with other scans, for scanning a table in
+     * parallel: between them, the scans return every tuple of the table.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan.
+     * @param tableAlias the alias of this table (needed by the parser)
+     * @param morsels    the morsels of the table's pages, shared by the scans
+     * @throws IllegalArgumentException if the morsels are not those of the
+     *                                  table's file
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, PageMorsels morsels) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file != morsels.getFile()) {
+            throw new IllegalArgumentException("morsels of another table");
+        }
+        this.tid = tid;
+        this.tableId = tableid;
+        this.tableAlias = tableAlias;
+        this.morsels = morsels;
+        this.it = morsels.getFile().iterator(tid, morsels);
+    }
+
     /**
      * @return return the table name of the table the operator scans. This should
      * be the actual name of the table in the catalog of the database
@@ -63,6 +98,22 @@ public class SeqScan implements DbIterator {
         return this.tableAlias;
     }
 
+    /**
+     * @return the morsels of the table's pages this scan shares with
+     * others, or null if it reads all of them
+     */
+    public PageMorsels getMorsels() {
+        return morsels;
+    }
+
+    /**
+     * @return the number of scans the table's pages are shared among, 1 if
+     * this scan reads the whole table
+     */
+    public int getPartitions() {
+        return morsels == null ? 1 : morsels.getScans();
+    }
+
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
@@ -111,8 +162,32 @@ public class SeqScan implements DbIterator {
         return it.next();
     }
 
+    /**
+     * Returns the next tuples of the table.  The tuples of a heap file are
+     * taken straight from its pages: a full page's tuples are returned
+     * without being copied, and others are copied into a batch.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null) {
+            batch = new TupleBatch(getTupleDesc());
+            allFields = new int[batch.getTupleDesc().numFields()];
+            for (int i = 0; i < allFields.length; i++) {
+                allFields[i] = i;
+            }
+        }
+        if (!(it instanceof HeapFile.HeapFileIterator)) {
+            return batch.fill(this);
+        }
+        TupleBatch next = ((HeapFile.HeapFileIterator) it).nextBatch(batch);
+        if (next == null || next == batch) {
+            return next;
+        }
+        return next.project(batch.getTupleDesc(), allFields);
+    }
+
     public void close() {
         it.close();
+        batch = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
@@ -0,0 +1,290 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two inputs that both come sorted in
+ * ascending order of their join fields, by merging them.  It supports the
+ * equality predicate and the four range predicates.
+ * <p/>
+ * For an equality predicate both inputs are streamed; only the run of right
+ * tuples that share the current key is held in memory.  For a range
+ * predicate each left tuple matches a prefix or a suffix of the right input,
+ * and the boundary only moves one way as the left keys grow, so the right
+ * input is read into memory once and each left tuple is paired with its
+ * slice of it without applying the predicate pair by pair.  Range joins are
+ * only planned as merges when the right input is estimated to hold at most
+ * {@link #getMaxRangeTuples} tuples; larger ones use a block nested loop
+ * {@link Join}.
+ * <p/>
+ * The output comes in ascending order of the left join field, and for an
+ * equality predicate of the right join field too.  The children are not
+ * sorted here: a child that is not already in order should be put under an
+ * OrderBy, as {@link JoinOptimizer#instantiateJoin} does.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default largest right input, in tuples, that a range join is planned
+     * to hold in memory.
+     */
+    public static final int DEFAULT_MAX_RANGE_TUPLES = 1 << 16;
+
+    private static int maxRangeTuples = DEFAULT_MAX_RANGE_TUPLES;
+
+    private final JoinPredicate pred;
+    private DbIterator[] children;
+    private TupleDesc td;
+
+    // the left tuple being joined, and the right tuples it is paired with:
+    // those in slice from pos up to end are still to be returned
+    private transient Tuple left;
+    private transient List<Tuple> slice;
+    private transient int pos;
+    private transient int end;
+
+    // equality: the run of right tuples whose join field equals runKey, and
+    // the first right tuple after the run
+    private transient ArrayList<Tuple> run;
+    private transient Field runKey;
+    private transient Tuple nextRight;
+
+    // range: the whole right input, and the boundary between the right
+    // tuples that match the current left tuple and those that do not
+    private transient ArrayList<Tuple> right;
+    private transient int bound;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p      The predicate to use to join the children
+     * @param child1 Iterator for the left(outer) relation to join, in
+     *               ascending order of its join field
+     * @param child2 Iterator for the right(inner) relation to join, in
+     *               ascending order of its join field
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!canMerge(p.getOperator())) {
+            throw new IllegalArgumentException("SortMergeJoin does not support " + p.getOperator());
+        }
+        this.pred = p;
+        setChildren(new DbIterator[]{child1, child2});
+    }
+
+    /**
+     * @return the largest right input, in tuples, that a range join is
+     * planned to hold in memory
+     */
+    public static int getMaxRangeTuples() {
+        return maxRangeTuples;
+    }
+
+    /**
+     * Sets the largest right input that range joins planned from now on
+     * hold in memory.
+     */
+    public static void setMaxRangeTuples(int tuples) {
+        if (tuples < 1) {
+            throw new IllegalArgumentException("range join budget must be at least one tuple");
+        }
+        maxRangeTuples = tuples;
+    }
+
+    public static void resetMaxRangeTuples() {
+        maxRangeTuples = DEFAULT_MAX_RANGE_TUPLES;
+    }
+
+    /**
+     * @return true if a SortMergeJoin can evaluate the given predicate
+     */
+    public static boolean canMerge(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || isRange(op);
+    }
+
+    static boolean isRange(Predicate.Op op) {
+        return op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+                || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the field name of join field1. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField1Name() {
+        return children[0].getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    /**
+     * @return the field name of join field2. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField2Name() {
+        return children[1].getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return true if the output of this join is in ascending order of the
+     * given field of its TupleDesc
+     */
+    public boolean isSortedOn(int field) {
+        return field == pred.getField1() || (pred.getOperator() == Predicate.Op.EQUALS
+                && field == children[0].getTupleDesc().numFields() + pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        children[0].open();
+        children[1].open();
+        if (isRange(pred.getOperator())) {
+            right = new ArrayList<Tuple>();
+            while (children[1].hasNext()) {
+                right.add(children[1].next());
+            }
+        }
+        reset();
+        super.open();
+    }
+
+    /**
+     * Clears the merge state, ready to start again from the first left tuple.
+     */
+    private void reset() throws DbException, TransactionAbortedException {
+        left = null;
+        slice = null;
+        pos = 0;
+        end = 0;
+        run = new ArrayList<Tuple>();
+        runKey = null;
+        nextRight = null;
+        bound = 0;
+        if (!isRange(pred.getOperator())) {
+            nextRight = readRight();
+        }
+    }
+
+    public void close() {
+        children[0].close();
+        children[1].close();
+        left = null;
+        slice = null;
+        run = null;
+        runKey = null;
+        nextRight = null;
+        right = null;
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        children[0].rewind();
+        if (!isRange(pred.getOperator())) {
+            children[1].rewind();
+        }
+        reset();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples returned are the concatenation of joining
+     * tuples from the left and right relation, as for {@link Join}.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (left == null || pos >= end) {
+            if (!children[0].hasNext()) {
+                return null;
+            }
+            left = children[0].next();
+            if (isRange(pred.getOperator())) {
+                sliceRange();
+            } else {
+                sliceRun();
+            }
+        }
+        return concat(left, slice.get(pos++));
+    }
+
+    /**
+     * Points the slice at the run of right tuples equal to the left tuple,
+     * moving on to a new run if its key is past the current one.
+     */
+    private void sliceRun() throws DbException, TransactionAbortedException {
+        Field key = left.getField(pred.getField1());
+        if (runKey == null || key.compare(Predicate.Op.GREATER_THAN, runKey)) {
+            run.clear();
+            while (nextRight != null
+                    && key.compare(Predicate.Op.GREATER_THAN, nextRight.getField(pred.getField2()))) {
+                nextRight = readRight();
+            }
+            while (nextRight != null
+                    && key.compare(Predicate.Op.EQUALS, nextRight.getField(pred.getField2()))) {
+                run.add(nextRight);
+                nextRight = readRight();
+            }
+            runKey = key;
+        }
+        slice = run;
+        pos = 0;
+        end = run.size();
+    }
+
+    /**
+     * Points the slice at the right tuples that satisfy the range predicate
+     * with the left tuple.  For < and <= those are the ones from the
+     * boundary on, for > and >= the ones before it.
+     */
+    private void sliceRange() {
+        Predicate.Op op = pred.getOperator();
+        slice = right;
+        if (op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ) {
+            while (bound < right.size() && !pred.filter(left, right.get(bound))) {
+                bound++;
+            }
+            pos = bound;
+            end = right.size();
+        } else {
+            while (bound < right.size() && pred.filter(left, right.get(bound))) {
+                bound++;
+            }
+            pos = 0;
+            end = bound;
+        }
+    }
+
+    private Tuple readRight() throws DbException, TransactionAbortedException {
+        return children[1].hasNext() ? children[1].next() : null;
+    }
+
+    private Tuple concat(Tuple t1, Tuple t2) {
+        Tuple tNew = new Tuple(td);
+        System.arraycopy(t1.fields, 0, tNew.fields, 0, t1.fields.length);
+        System.arraycopy(t2.fields, 0, tNew.fields, t1.fields.length, t2.fields.length);
+        return tNew;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        if (children.length == 2) {
+            this.children = children;
+            this.td = TupleDesc.merge(children[0].getTupleDesc(), children[1].getTupleDesc());
+        }
+    }
+
+}
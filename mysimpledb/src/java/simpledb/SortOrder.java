@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * SortOrder describes an ORDER BY: a list of fields, each sorted ascending or
+ * descending, the later ones breaking ties in the earlier ones.
+ * <p/>
+ * Comparing tuples field by field goes through Field.compare, a virtual call
+ * and a switch on the operator for every field of every comparison.  Instead,
+ * a sort encodes each tuple's sort fields once, with {@link #key}, into a
+ * normalized key: a string of bytes, packed big-endian into longs, that
+ * orders as the tuples do when compared as unsigned words by
+ * {@link #compareKeys}.
+ * <ul>
+ * <li>An int is its four bytes with the sign bit flipped.</li>
+ * <li>A string is its chars as two bytes each, then two zero chars.  A zero
+ * char in the string is written as a zero char and a one, so that a string
+ * sorts before any longer string it is a prefix of.</li>
+ * <li>A descending field has all its bytes inverted.</li>
+ * </ul>
+ * Each field's encoding is prefix-free, so the fields of a key can simply be
+ * concatenated, and equal keys mean equal sort fields.
+ */
+public class SortOrder implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] fields;
+    private final boolean[] asc;
+
+    // bytes of the key being encoded; grown as needed
+    private byte[] buf = new byte[64];
+    private int len;
+
+    /**
+     * Creates a sort order on a single field.
+     *
+     * @param field the field to sort on
+     * @param asc   true if the sort order is ascending
+     */
+    public SortOrder(int field, boolean asc) {
+        this(new int[]{field}, new boolean[]{asc});
+    }
+
+    /**
+     * Creates a sort order on several fields.
+     *
+     * @param fields the fields to sort on, most significant first
+     * @param asc    for each field, true if it is sorted ascending
+     */
+    public SortOrder(int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length) {
+            throw new IllegalArgumentException("need one direction for each of at least one sort field");
+        }
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+    }
+
+    /**
+     * @return the fields sorted on, most significant first
+     */
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    /**
+     * @return for each field, true if it is sorted ascending
+     */
+    public boolean[] getAscending() {
+        return asc.clone();
+    }
+
+    /**
+     * Returns the normalized key of the tuple's sort fields.  Not thread
+     * safe: the key is built in a buffer owned by this SortOrder.
+     */
+    public long[] key(Tuple t) {
+        len = 0;
+        for (int i = 0; i < fields.length; i++) {
+            int start = len;
+            Field f = t.getField(fields[i]);
+            if (f instanceof IntField) {
+                int v = ((IntField) f).getValue() ^ Integer.MIN_VALUE;
+                put((byte) (v >>> 24));
+                put((byte) (v >>> 16));
+                put((byte) (v >>> 8));
+                put((byte) v);
+            } else {
+                String s = ((StringField) f).getValue();
+                for (int j = 0; j < s.length(); j++) {
+                    char c = s.charAt(j);
+                    put((byte) (c >>> 8));
+                    put((byte) c);
+                    if (c == 0) {
+                        put((byte) 0);
+                        put((byte) 1);
+                    }
+                }
+                put((byte) 0);
+                put((byte) 0);
+                put((byte) 0);
+                put((byte) 0);
+            }
+            if (!asc[i]) {
+                for (int j = start; j < len; j++) {
+                    buf[j] = (byte) ~buf[j];
+                }
+            }
+        }
+        long[] key = new long[(len + 7) >>> 3];
+        for (int j = 0; j < len; j++) {
+            key[j >>> 3] |= (buf[j] & 0xFFL) << (56 - ((j & 7) << 3));
+        }
+        return key;
+    }
+
+    private void put(byte b) {
+        if (len == buf.length) {
+            byte[] bigger = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, bigger, 0, len);
+            buf = bigger;
+        }
+        buf[len++] = b;
+    }
+
+    /**
+     * Compares two normalized keys.
+     *
+     * @return a negative number, zero or a positive number as the first key
+     * sorts before, with or after the second
+     */
+    public static int compareKeys(long[] k1, long[] k2) {
+        int n = Math.min(k1.length, k2.length);
+        for (int i = 0; i < n; i++) {
+            if (k1[i] != k2[i]) {
+                return (k1[i] ^ Long.MIN_VALUE) < (k2[i] ^ Long.MIN_VALUE) ? -1 : 1;
+            }
+        }
+        return k1.length - k2.length;
+    }
+}
@@ -0,0 +1,135 @@
+package simpledb;
+
+/**
+ * StreamAggregate is an Aggregate over a child whose tuples come grouped:
+ * all the tuples of a group are next to each other, as they are when the
+ * child is sorted on the group by fields.  Instead of collecting every group
+ * before returning any, it aggregates one group at a time and returns it as
+ * soon as a tuple of the next group shows up, so it holds a single group in
+ * memory and its first result is ready after the first group has been read.
+ * <p/>
+ * The results come out in the order of the groups in the child, and are
+ * the same tuples as those of an {@link Aggregate} with the same arguments.
+ * The child is not checked: if it is not grouped, a group that is split
+ * into several runs is returned once for each run.
+ */
+public class StreamAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gfields;
+
+    // the group by fields of the group being aggregated
+    private transient Field[] key;
+
+    /**
+     * Constructor.
+     *
+     * @param child  The DbIterator that is feeding us tuples, grouped on the
+     *               group by field.
+     * @param afield The column over which we are computing an aggregate.
+     * @param gfield The column over which we are grouping the result, or -1 if
+     *               there is no grouping
+     * @param aop    The aggregation operator to use
+     */
+    public StreamAggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, new int[]{afield},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield},
+                new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for several aggregates, grouped by several columns.
+     *
+     * @param child   The DbIterator that is feeding us tuples, grouped on the
+     *                group by fields.
+     * @param afields The column over which each aggregate is computed.
+     * @param gfields The columns over which we are grouping the result, most
+     *                significant first; empty if there is no grouping
+     * @param aops    The aggregation operator of each aggregate
+     */
+    public StreamAggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        super(child, afields, gfields, aops);
+        this.gfields = gfields.clone();
+    }
+
+    /**
+     * Returns the result of the next group: reads the child's tuples until
+     * one falls in a different group than the ones before it, which starts
+     * the group after.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        DbIterator child = getChildren()[0];
+        Aggregator agg = aggregator();
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (agg.numGroups() > 0 && !inGroup(t)) {
+                Tuple result = result(agg);
+                startGroup(t);
+                agg.mergeTupleIntoGroup(t);
+                return result;
+            }
+            if (agg.numGroups() == 0) {
+                startGroup(t);
+            }
+            agg.mergeTupleIntoGroup(t);
+        }
+        if (agg.numGroups() > 0) {
+            return result(agg);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the tuple has the group by fields of the group being
+     * aggregated
+     */
+    private boolean inGroup(Tuple t) {
+        for (int i = 0; i < gfields.length; i++) {
+            if (!t.getField(gfields[i]).equals(key[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the group by fields of the tuple as those of the group being
+     * aggregated.
+     */
+    private void startGroup(Tuple t) {
+        if (key == null) {
+            key = new Field[gfields.length];
+        }
+        for (int i = 0; i < gfields.length; i++) {
+            key[i] = t.getField(gfields[i]);
+        }
+    }
+
+    /**
+     * Returns the result of the one group in the aggregator and empties it.
+     */
+    private static Tuple result(Aggregator agg) throws DbException, TransactionAbortedException {
+        DbIterator it = agg.iterator();
+        it.open();
+        Tuple result = it.next();
+        it.close();
+        agg.clear();
+        return result;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        aggregator().clear();
+        getChildren()[0].rewind();
+    }
+
+    /**
+     * @return true if the results come out in ascending order of the given
+     * output field, which they do for the first group by field if the child
+     * is in ascending order of it
+     */
+    public boolean isSortedOn(int field) {
+        return field == 0 && gfields.length > 0
+                && JoinOptimizer.isSortedOn(getChildren()[0], gfields[0]);
+    }
+}
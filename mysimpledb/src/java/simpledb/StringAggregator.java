@@ -12,8 +12,9 @@ public class StringAggregator implements Aggregator {
     private int gbfield;
     private Type gbfieldtype;
     private int afield;
-    // a map of groupVal -> AggregateFields
-    private HashMap<String, AggregateFields> groups;
+    // a map of groupVal -> AggregateFields, with a null groupVal if there is
+    // no grouping
+    private HashMap<Field, AggregateFields> groups;
     
     /**
      * Aggregate constructor
@@ -32,7 +33,7 @@ public class StringAggregator implements Aggregator {
         this.gbfield = gbfield;
         this.afield = afield;
         this.gbfieldtype = gbfieldtype;
-        this.groups = new HashMap<String, AggregateFields>();
+        this.groups = new HashMap<Field, AggregateFields>();
     }
     
     /**
@@ -41,17 +42,54 @@ public class StringAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        String groupVal = "";
-        if (gbfield != NO_GROUPING) {
-            groupVal = tup.getField(gbfield).toString();
+        group(gbfield == NO_GROUPING ? null : tup.getField(gbfield)).count++;
+    }
+    
+    /**
+     * Merge the rows of a batch into the aggregate, counting the rows of a
+     * batch without grouping all at once
+     */
+    public void mergeBatchIntoGroups(TupleBatch batch) {
+        if (gbfield == NO_GROUPING) {
+            group(null).count += batch.size();
+            return;
+        }
+        for (int r = 0; r < batch.size(); r++) {
+            group(batch.getField(gbfield, r)).count++;
         }
+    }
+    
+    /**
+     * Merge a partial aggregate, as returned by {@link #partials}, into its
+     * group
+     *
+     * @param partial the group value, if grouping, followed by the count of
+     *                the group
+     */
+    public void mergePartialIntoGroup(Tuple partial) {
+        AggregateFields agg = group(gbfield == NO_GROUPING ? null : partial.getField(0));
+        agg.count += ((IntField) partial.getField(gbfield == NO_GROUPING ? 0 : 1)).getValue();
+    }
+    
+    /**
+     * @return the accumulated values of the group with the given value,
+     * adding a new group if there is none
+     */
+    private AggregateFields group(Field groupVal) {
         AggregateFields agg = groups.get(groupVal);
-        if (agg == null)
-            agg = new AggregateFields(groupVal);
-        
-        agg.count++;
-        
-        groups.put(groupVal, agg);
+        if (agg == null) {
+            agg = new AggregateFields();
+            groups.put(groupVal, agg);
+        }
+        return agg;
+    }
+    
+    public int numGroups() {
+        return groups.size();
+    }
+    
+    public void clear() {
+        groups.clear();
     }
     
     /**
@@ -63,52 +101,83 @@ public class StringAggregator implements Aggregator {
      * aggregate specified in the constructor.
      */
     public DbIterator iterator() {
-        LinkedList<Tuple> result = new LinkedList<Tuple>();
-        int aggField = 1;
-        TupleDesc td;
+        return new GroupIterator();
+    }
+    
+    /**
+     * Create a DbIterator over the partial aggregates of the groups.  The
+     * only aggregate is COUNT, whose partial aggregate is its result.
+     *
+     * @return a DbIterator whose tuples are the group value, if grouping,
+     * followed by the count of the group
+     */
+    public DbIterator partials() {
+        return new GroupIterator();
+    }
+    
+    /**
+     * Iterates over the groups, building the result tuple of each as it is
+     * returned.
+     */
+    private class GroupIterator implements DbIterator {
         
-        if (gbfield == NO_GROUPING) {
-            td = new TupleDesc(new Type[]{Type.INT_TYPE});
-            aggField = 0;
-        } else {
-            td = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
+        private static final long serialVersionUID = 1L;
+        
+        private final TupleDesc td;
+        // the remaining groups; null when closed
+        private transient Iterator<Map.Entry<Field, AggregateFields>> entries;
+        
+        GroupIterator() {
+            if (gbfield == NO_GROUPING)
+                td = new TupleDesc(new Type[]{Type.INT_TYPE});
+            else
+                td = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
+        }
+        
+        public void open() {
+            entries = groups.entrySet().iterator();
         }
         
-        // iterate over groups and create summary tuples
-        for (String groupVal : groups.keySet()) {
-            AggregateFields agg = groups.get(groupVal);
+        public boolean hasNext() {
+            return entries != null && entries.hasNext();
+        }
+        
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No more groups.");
+            Map.Entry<Field, AggregateFields> e = entries.next();
             Tuple tup = new Tuple(td);
-            
+            int aggField = 0;
             if (gbfield != NO_GROUPING) {
-                if (gbfieldtype == Type.INT_TYPE)
-                    tup.setField(0, new IntField(new Integer(groupVal)));
-                else tup.setField(0, new StringField(groupVal, Type.STRING_LEN));
+                tup.setField(0, e.getKey());
+                aggField = 1;
             }
             
             switch (what) {
                 case COUNT:
-                    tup.setField(aggField, new IntField(agg.count));
+                    tup.setField(aggField, new IntField(e.getValue().count));
                     break;
             }
-            
-            result.add(tup);
+            return tup;
+        }
+        
+        public void rewind() {
+            open();
         }
         
-        DbIterator retVal = null;
-        retVal = new TupleIterator(td, Collections.unmodifiableList(result));
-        return retVal;
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+        
+        public void close() {
+            entries = null;
+        }
     }
     
     /**
      * A helper struct to store accumulated aggregate values.
      */
-    private class AggregateFields {
-        public String groupVal;
+    private static class AggregateFields {
         public int count;
-        
-        public AggregateFields(String groupVal) {
-            this.groupVal = groupVal;
-            count = 0;
-        }
     }
 }
\ No newline at end of file
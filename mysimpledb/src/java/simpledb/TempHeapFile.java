@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * TempHeapFile is a HeapFile in a temporary file, used by operators to spill
+ * tuples that do not fit in their memory budget.  Tuples are appended a page
+ * at a time and read back in the order they were appended.
+ * <p/>
+ * Both go directly to the file rather than through the BufferPool: the file
+ * is private to the operator that created it, so its pages need no locks,
+ * are never logged and would only crowd the pool.  The file is registered in
+ * the Catalog, where HeapPage looks up its TupleDesc, until it is deleted.
+ */
+public class TempHeapFile extends HeapFile {
+
+    // page being filled by append; written out when full or when the file
+    // is read
+    private HeapPage page;
+
+    // number of tuples appended
+    private int num_tuples;
+
+    /**
+     * Creates an empty temporary heap file for tuples with the given schema.
+     */
+    public TempHeapFile(TupleDesc td) throws IOException {
+        super(File.createTempFile("simpledb-spill", ".dat"), td);
+        this.f.deleteOnExit();
+        Database.getCatalog().addTable(this);
+    }
+
+    /**
+     * @return the number of tuples appended to this file
+     */
+    public int numTuples() {
+        return num_tuples;
+    }
+
+    /**
+     * Appends a copy of the tuple to the file; the tuple itself is left
+     * untouched.
+     */
+    public void append(Tuple t) throws IOException, DbException {
+        if (page == null) {
+            page = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());
+        }
+        Tuple copy = new Tuple(td);
+        System.arraycopy(t.fields, 0, copy.fields, 0, copy.fields.length);
+        page.insertTuple(copy);
+        num_tuples++;
+        if (page.getNumEmptySlots() == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes out the partly filled last page, if any.
+     */
+    private void flush() throws IOException {
+        if (page != null) {
+            writePage(page);
+            page = null;
+        }
+    }
+
+    /**
+     * Closes the file, removes it from the Catalog and deletes it.
+     */
+    public void delete() {
+        page = null;
+        Database.getCatalog().removeTable(getId());
+        try {
+            close();
+        } catch (IOException e) {
+            // the file is going away anyway
+        }
+        f.delete();
+    }
+
+    /**
+     * Returns an iterator over the tuples appended so far, in order.  The
+     * transaction id is ignored, since the file's pages are not locked.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new TempFileIterator();
+    }
+
+    /**
+     * Reads the pages of the file in order, straight from disk.
+     */
+    class TempFileIterator implements DbFileIterator {
+
+        // next page to read
+        private int pgNo;
+
+        // tuples of the page last read; null when closed
+        private Iterator<Tuple> tuples;
+
+        public void open() throws DbException {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new DbException("Couldn't write spill file: " + e.getMessage());
+            }
+            pgNo = 0;
+            tuples = Collections.<Tuple>emptyList().iterator();
+        }
+
+        public boolean hasNext() {
+            if (tuples == null) {
+                return false;
+            }
+            while (!tuples.hasNext() && pgNo < numPages()) {
+                tuples = ((HeapPage) readPage(new HeapPageId(getId(), pgNo++))).iterator();
+            }
+            return tuples.hasNext();
+        }
+
+        public Tuple next() throws NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more tuples in spill file.");
+            }
+            return tuples.next();
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public void close() {
+            tuples = null;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n: it returns the
+ * first n tuples of its child in the order OrderBy would return them.
+ * <p/>
+ * Only the best n tuples seen so far are kept, in a heap whose head is the
+ * worst of them, so a new tuple either replaces the head or is dropped at
+ * once.  Memory is O(n) and time O(m log n) for an input of m tuples,
+ * against O(m) and O(m log m) for a full sort.  Tuples with equal sort keys
+ * come out in the order the child returned them, as for OrderBy.  Tuples
+ * are compared on their normalized sort keys (see {@link SortOrder}).
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A kept tuple, with its sort key and its position in the child's output.
+     */
+    private static class Entry {
+        final Tuple tuple;
+        final long[] key;
+        final long seq;
+
+        Entry(Tuple tuple, long[] key, long seq) {
+            this.tuple = tuple;
+            this.key = key;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Orders entries from worst to best: the later of two equal tuples is the
+     * worse, since it would come out after the other.
+     */
+    private static final Comparator<Entry> WORST_FIRST = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            int c = SortOrder.compareKeys(e2.key, e1.key);
+            return c != 0 ? c : (e1.seq > e2.seq ? -1 : e1.seq < e2.seq ? 1 : 0);
+        }
+    };
+
+    private DbIterator child;
+    private final TupleDesc td;
+    private final SortOrder order;
+    private final int limit;
+
+    // the result, in order
+    private transient ArrayList<Tuple> top;
+    private transient Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField the field to which the sort is applied.
+     * @param asc          true if the sort order is ascending.
+     * @param limit        the number of tuples to return.
+     * @param child        the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, DbIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, limit, child);
+    }
+
+    /**
+     * Creates a new TopN node that sorts on several fields.
+     *
+     * @param orderbyFields the fields to which the sort is applied, most
+     *                      significant first.
+     * @param asc           for each field, true if it is sorted ascending.
+     * @param limit         the number of tuples to return.
+     * @param child         the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, DbIterator child) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.order = new SortOrder(orderbyFields, asc);
+        this.limit = limit;
+    }
+
+    /**
+     * @return true if the first sort field is sorted ascending
+     */
+    public boolean isASC() {
+        return order.getAscending()[0];
+    }
+
+    /**
+     * @return the first sort field
+     */
+    public int getOrderByField() {
+        return order.getFields()[0];
+    }
+
+    public String getOrderFieldName() {
+        return td.getFieldName(getOrderByField());
+    }
+
+    /**
+     * @return the sort fields and their directions
+     */
+    public SortOrder getSortOrder() {
+        return order;
+    }
+
+    /**
+     * @return the maximum number of tuples returned
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, limit), WORST_FIRST);
+        long seq = 0;
+        while (limit > 0 && child.hasNext()) {
+            Tuple t = child.next();
+            long[] key = order.key(t);
+            if (heap.size() < limit) {
+                heap.add(new Entry(t, key, seq));
+            } else if (SortOrder.compareKeys(key, heap.peek().key) < 0) {
+                // the new tuple is strictly better than the worst kept one;
+                // an equal one would come after it, so it is dropped
+                heap.poll();
+                heap.add(new Entry(t, key, seq));
+            }
+            seq++;
+        }
+        Tuple[] sorted = new Tuple[heap.size()];
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            sorted[i] = heap.poll().tuple;
+        }
+        top = new ArrayList<Tuple>(Arrays.asList(sorted));
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        top = null;
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the kept tuples in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     * tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        } else
+            return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
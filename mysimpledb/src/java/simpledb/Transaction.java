@@ -55,8 +55,9 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                // Database.getBufferPool().flushPages(tid); // no longer force
+                //log the dirty pages of this transaction ahead of its commit
+                //record; the buffer pool writes the pages themselves later
+                Database.getBufferPool().logDirtyPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -0,0 +1,307 @@
+package simpledb;
+
+/**
+ * TupleBatch holds up to {@link #CAPACITY} rows of a TupleDesc column by
+ * column, for operators that pass tuples along a batch at a time (see
+ * {@link BatchIterator}).  The values of an int field are kept in an int
+ * array, so operators can loop over them without a Tuple or an IntField per
+ * row; the values of other fields are kept as Fields.
+ * <p/>
+ * The rows of a batch may be a selection of the rows its values are kept
+ * for, as when a filter passes on the rows of a batch that satisfy its
+ * predicate without copying them: row i of the batch is then the one at
+ * index {@link #selection}[i] of the values.
+ * <p/>
+ * A batch returned by an iterator belongs to it: the caller may read it
+ * until its next call to the iterator, but not modify it.
+ */
+public class TupleBatch {
+
+    /**
+     * Maximum number of rows in a batch.
+     */
+    public static final int CAPACITY = 1024;
+
+    private final TupleDesc td;
+    // the values of each int field, null for the other fields
+    private final int[][] ints;
+    // the values of each other field, null for the int fields
+    private final Field[][] fields;
+    // the RecordId of each row, null if it has none
+    private final RecordId[] rids;
+    // the index in the values above of each row, or null if row i is at
+    // index i
+    private final int[] sel;
+    private int size;
+
+    /**
+     * Creates an empty batch of tuples of the given TupleDesc.
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, CAPACITY);
+    }
+
+    /**
+     * Creates an empty batch of at most capacity rows, for other uses than
+     * passing tuples between iterators.
+     */
+    TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        int n = td.numFields();
+        this.ints = new int[n][];
+        this.fields = new Field[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[capacity];
+            } else {
+                fields[i] = new Field[capacity];
+            }
+        }
+        this.rids = new RecordId[capacity];
+        this.sel = null;
+    }
+
+    private TupleBatch(TupleDesc td, int[][] ints, Field[][] fields, RecordId[] rids,
+                       int[] sel, int size) {
+        this.td = td;
+        this.ints = ints;
+        this.fields = fields;
+        this.rids = rids;
+        this.sel = sel;
+        this.size = size;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of rows in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == rids.length;
+    }
+
+    /**
+     * @return the maximum number of rows in the batch
+     */
+    int capacity() {
+        return rids.length;
+    }
+
+    /**
+     * Removes all rows from the batch.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the index in the values of the batch's fields of each row, or
+     * null if each row is at its own index
+     */
+    int[] selection() {
+        return sel;
+    }
+
+    /**
+     * @return the index in the values of the batch's fields of a row
+     */
+    private int index(int row) {
+        return sel == null ? row : sel[row];
+    }
+
+    /**
+     * @return the value of an int field of a row
+     */
+    public int getInt(int field, int row) {
+        return ints[field][index(row)];
+    }
+
+    /**
+     * @return the values of an int field, those of the rows of the batch
+     * being at the indexes given by {@link #selection}
+     */
+    int[] ints(int field) {
+        return ints[field];
+    }
+
+    /**
+     * @return the value of a field of a row
+     */
+    public Field getField(int field, int row) {
+        if (ints[field] != null) {
+            return new IntField(ints[field][index(row)]);
+        }
+        return fields[field][index(row)];
+    }
+
+    /**
+     * @return the RecordId of a row, or null if it has none
+     */
+    public RecordId getRecordId(int row) {
+        return rids[index(row)];
+    }
+
+    /**
+     * @return a row of the batch as a Tuple
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < t.fields.length; i++) {
+            t.fields[i] = getField(i, row);
+        }
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+
+    /**
+     * Appends a tuple to the batch, which must not be full or a selection.
+     */
+    public void add(Tuple t) {
+        int row = addRow();
+        setFields(row, 0, t);
+        rids[row] = t.getRecordId();
+    }
+
+    /**
+     * Appends a row with no RecordId, whose fields are to be set.
+     *
+     * @return the index of the new row
+     */
+    int addRow() {
+        rids[size] = null;
+        return size++;
+    }
+
+    /**
+     * Sets the fields of a row from the given field on to those of a tuple.
+     */
+    void setFields(int row, int offset, Tuple t) {
+        Field[] values = t.fields;
+        for (int i = 0; i < values.length; i++) {
+            int f = offset + i;
+            if (ints[f] != null) {
+                ints[f][row] = ((IntField) values[i]).getValue();
+            } else {
+                fields[f][row] = values[i];
+            }
+        }
+    }
+
+    /**
+     * Sets the fields of a row from the given field on to those of a row of
+     * another batch.
+     */
+    void setFields(int row, int offset, TupleBatch from, int fromRow) {
+        fromRow = from.index(fromRow);
+        int n = from.td.numFields();
+        for (int i = 0; i < n; i++) {
+            int f = offset + i;
+            if (ints[f] != null) {
+                ints[f][row] = from.ints[i][fromRow];
+            } else {
+                fields[f][row] = from.fields[i][fromRow];
+            }
+        }
+    }
+
+    /**
+     * Appends a row of another batch with the same fields.
+     */
+    void add(TupleBatch from, int fromRow) {
+        int row = addRow();
+        setFields(row, 0, from, fromRow);
+        rids[row] = from.getRecordId(fromRow);
+    }
+
+    /**
+     * Appends consecutive rows of another batch with the same fields.
+     *
+     * @param from  the batch to copy rows from
+     * @param start the index of the first row to copy
+     * @param n     the number of rows to copy
+     */
+    void addRange(TupleBatch from, int start, int n) {
+        int[] fsel = from.sel;
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                int[] src = from.ints[i];
+                int[] dst = ints[i];
+                if (fsel == null) {
+                    System.arraycopy(src, start, dst, size, n);
+                } else {
+                    for (int r = 0; r < n; r++) {
+                        dst[size + r] = src[fsel[start + r]];
+                    }
+                }
+            } else {
+                Field[] src = from.fields[i];
+                Field[] dst = fields[i];
+                if (fsel == null) {
+                    System.arraycopy(src, start, dst, size, n);
+                } else {
+                    for (int r = 0; r < n; r++) {
+                        dst[size + r] = src[fsel[start + r]];
+                    }
+                }
+            }
+        }
+        if (fsel == null) {
+            System.arraycopy(from.rids, start, rids, size, n);
+        } else {
+            for (int r = 0; r < n; r++) {
+                rids[size + r] = from.rids[fsel[start + r]];
+            }
+        }
+        size += n;
+    }
+
+    /**
+     * Returns a batch of the given fields of this one's rows.  It shares this
+     * batch's values rather than copying them, so it is only good as long as
+     * this one is.
+     *
+     * @param td       the TupleDesc of the projected rows
+     * @param fieldIds the index in this batch of each field of td
+     */
+    TupleBatch project(TupleDesc td, int[] fieldIds) {
+        int[][] pints = new int[fieldIds.length][];
+        Field[][] pfields = new Field[fieldIds.length][];
+        for (int i = 0; i < fieldIds.length; i++) {
+            pints[i] = ints[fieldIds[i]];
+            pfields[i] = fields[fieldIds[i]];
+        }
+        return new TupleBatch(td, pints, pfields, rids, sel, size);
+    }
+
+    /**
+     * Returns a selection of this batch's rows, which shares this batch's
+     * values and is only good as long as this batch is.
+     *
+     * @param indexes the index in the values of this batch of each selected
+     *                row, as given by {@link #selection} for this batch's
+     *                own rows
+     * @param n       the number of selected rows
+     */
+    TupleBatch select(int[] indexes, int n) {
+        return new TupleBatch(td, ints, fields, rids, indexes, n);
+    }
+
+    /**
+     * Refills the batch with as many of an iterator's tuples as fit.
+     *
+     * @return this batch, or null if the iterator had no more tuples
+     */
+    TupleBatch fill(DbIterator it) throws DbException, TransactionAbortedException {
+        size = 0;
+        while (size < rids.length && it.hasNext()) {
+            add(it.next());
+        }
+        return size > 0 ? this : null;
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * 2Q replacement (Johnson and Shasha).  A page read for the first time goes
+ * into a FIFO queue, A1in; hits there do not promote it.  When a page leaves
+ * A1in its id is remembered in a ghost queue, A1out, and if it is read again
+ * while still remembered it is loaded into the LRU-managed main queue, Am.
+ * Pages that a sequential scan touches once cycle through A1in and never
+ * displace the hot pages in Am.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    /**
+     * Fraction of the frames reserved for A1in, as in the 2Q paper.
+     */
+    public static final double IN_FRACTION = 0.25;
+
+    /**
+     * Size of the A1out ghost queue as a fraction of the frames.
+     */
+    public static final double OUT_FRACTION = 0.5;
+
+    private final int maxIn;
+    private final int maxOut;
+    // all three queues are ordered oldest first
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    /**
+     * @param numPages the number of frames in the buffer pool
+     */
+    public TwoQueuePolicy(int numPages) {
+        this.maxIn = Math.max(1, (int) (numPages * IN_FRACTION));
+        this.maxOut = Math.max(1, (int) (numPages * OUT_FRACTION));
+        this.a1in = new LinkedHashSet<PageId>();
+        this.a1out = new LinkedHashSet<PageId>();
+        this.am = new LinkedHashSet<PageId>();
+    }
+
+    public void pageLoaded(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            // re-read while remembered: the page is hot
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > maxOut) {
+                a1out.remove(a1out.iterator().next());
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public PageId chooseVictim(Map<PageId, Page> frames) {
+        // reclaim from A1in while it is over its share, otherwise from Am;
+        // fall back to the other queue if every page in the first is dirty
+        PageId victim;
+        if (a1in.size() > maxIn || am.isEmpty()) {
+            victim = firstClean(a1in, frames);
+            if (victim == null) {
+                victim = firstClean(am, frames);
+            }
+        } else {
+            victim = firstClean(am, frames);
+            if (victim == null) {
+                victim = firstClean(a1in, frames);
+            }
+        }
+        return victim;
+    }
+
+    private static PageId firstClean(LinkedHashSet<PageId> queue, Map<PageId, Page> frames) {
+        for (PageId pid : queue) {
+            Page page = frames.get(pid);
+            if (page != null && page.isDirty() == null) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
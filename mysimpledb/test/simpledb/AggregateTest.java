@@ -4,6 +4,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -186,6 +190,97 @@ public class AggregateTest extends SimpleDbTestBase {
         TestUtil.matchAllTuples(min, op);
     }
 
+    /**
+     * Returns the output of an iterator as a sorted list of strings.
+     */
+    private static ArrayList<String> collect(DbIterator it) throws Exception {
+        ArrayList<String> out = new ArrayList<String>();
+        while (it.hasNext()) {
+            out.add(it.next().toString());
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * Aggregates that spill their groups, and split the spilled partitions
+     * again, give the same groups as aggregates that fit in memory, also
+     * after a rewind
+     */
+    @Test
+    public void spillGroups() throws Exception {
+        Random r = new Random(17);
+        int rows = 3000;
+        int[] ints = new int[rows * 2];
+        Object[] strings = new Object[rows * 2];
+        for (int i = 0; i < rows; i++) {
+            ints[i * 2] = r.nextInt(500) - 250;
+            ints[i * 2 + 1] = r.nextInt(2000) - 1000;
+            strings[i * 2] = "g" + ints[i * 2];
+            strings[i * 2 + 1] = "v" + ints[i * 2 + 1];
+        }
+        Aggregator.Op[] ops = {Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.COUNT, Aggregator.Op.SUM_COUNT};
+        for (Aggregator.Op aop : ops) {
+            for (int budget : new int[]{1, 7, 100}) {
+                Aggregate expected = new Aggregate(TestUtil.createTupleList(width1, ints),
+                        1, 0, aop, 1000);
+                expected.open();
+                ArrayList<String> groups = collect(expected);
+                assertTrue(groups.size() > 400);
+
+                Aggregate op = new Aggregate(TestUtil.createTupleList(width1, ints),
+                        1, 0, aop, budget);
+                op.open();
+                assertEquals(aop + " " + budget, groups, collect(op));
+                op.rewind();
+                assertEquals(aop + " " + budget, groups, collect(op));
+                op.close();
+            }
+        }
+
+        Aggregate expected = new Aggregate(TestUtil.createTupleList(width1, strings),
+                1, 0, Aggregator.Op.COUNT, 1000);
+        expected.open();
+        Aggregate op = new Aggregate(TestUtil.createTupleList(width1, strings),
+                1, 0, Aggregator.Op.COUNT, 7);
+        op.open();
+        assertEquals(collect(expected), collect(op));
+        op.close();
+    }
+
+    /**
+     * Several aggregates grouped on two fields come out after the group
+     * fields, and spilling them does not change them
+     */
+    @Test
+    public void severalAggregates() throws Exception {
+        Random r = new Random(5);
+        int rows = 2000;
+        int[] data = new int[rows * 3];
+        for (int i = 0; i < rows * 3; i += 3) {
+            data[i] = r.nextInt(30);
+            data[i + 1] = r.nextInt(20);
+            data[i + 2] = r.nextInt(1000);
+        }
+        int[] afields = {2, 2, 2};
+        int[] gfields = {1, 0};
+        Aggregator.Op[] aops = {Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX};
+
+        Aggregate expected = new Aggregate(TestUtil.createTupleList(3, data),
+                afields, gfields, aops, 1000);
+        TupleDesc td = expected.getTupleDesc();
+        assertEquals(5, td.numFields());
+        expected.open();
+        ArrayList<String> groups = collect(expected);
+
+        Aggregate op = new Aggregate(TestUtil.createTupleList(3, data),
+                afields, gfields, aops, 10);
+        op.open();
+        assertEquals(groups, collect(op));
+        op.close();
+    }
+
     /**
      * JUnit suite target
      */
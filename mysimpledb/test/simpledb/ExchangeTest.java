@@ -0,0 +1,301 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+    int width1 = 2;
+
+    /**
+     * Returns the tuples of an open iterator as a sorted list of strings.
+     */
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> out = new ArrayList<String>();
+        while (it.hasNext()) {
+            out.add(it.next().toString());
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * Returns children of random tuples, between them holding rows tuples.
+     */
+    private DbIterator[] children(long seed, int count, int rows, int values) {
+        Random r = new Random(seed);
+        DbIterator[] children = new DbIterator[count];
+        for (int c = 0; c < count; c++) {
+            int[] data = new int[(rows / count) * width1];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = r.nextInt(values);
+            }
+            children[c] = TestUtil.createTupleList(width1, data);
+        }
+        return children;
+    }
+
+    /**
+     * Returns the tuples of all the children, read one after another.
+     */
+    private static ArrayList<String> expected(DbIterator[] children) throws Exception {
+        ArrayList<String> out = new ArrayList<String>();
+        for (DbIterator child : children) {
+            child.open();
+            out.addAll(rows(child));
+            child.rewind();
+            child.close();
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * A gather returns the tuples of all its children, again after a rewind
+     */
+    @Test(timeout = 20000)
+    public void gather() throws Exception {
+        DbIterator[] children = children(1, 4, 20000, 1000);
+        ArrayList<String> expected = expected(children);
+        Gather gather = new Gather(children);
+        assertEquals(children[0].getTupleDesc(), gather.getTupleDesc());
+        gather.open();
+        assertEquals(expected, rows(gather));
+        gather.rewind();
+        assertEquals(expected, rows(gather));
+        gather.close();
+    }
+
+    /**
+     * A repartition sends each tuple to one consumer, the same one for all
+     * the tuples with the same value of the field
+     */
+    @Test(timeout = 20000)
+    public void repartition() throws Exception {
+        DbIterator[] children = children(2, 3, 9000, 500);
+        ArrayList<String> expected = expected(children);
+        Repartition[] parts = Repartition.of(children, 0, 4);
+        // the consumers of a repartition are read in parallel, each counting
+        // the tuples of each value it gets
+        DbIterator[] counts = new DbIterator[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            counts[i] = new Aggregate(parts[i], 1, 0, Aggregator.Op.COUNT);
+        }
+        Gather gather = new Gather(counts);
+        gather.open();
+        HashSet<Integer> keys = new HashSet<Integer>();
+        int total = 0;
+        while (gather.hasNext()) {
+            Tuple t = gather.next();
+            assertTrue(keys.add(((IntField) t.getField(0)).getValue()));
+            total += ((IntField) t.getField(1)).getValue();
+        }
+        assertEquals(expected.size(), total);
+
+        // and again after a rewind of every consumer
+        gather.rewind();
+        ArrayList<String> first = new ArrayList<String>();
+        while (gather.hasNext()) {
+            first.add(gather.next().toString());
+        }
+        assertEquals(keys.size(), first.size());
+        gather.close();
+    }
+
+    /**
+     * Each consumer of a broadcast returns all the tuples, and does so again
+     * after a rewind
+     */
+    @Test(timeout = 20000)
+    public void broadcast() throws Exception {
+        DbIterator[] children = children(3, 2, 3000, 100);
+        ArrayList<String> expected = expected(children);
+        Broadcast[] copies = Broadcast.of(children, 3);
+        for (Broadcast copy : copies) {
+            copy.open();
+        }
+        for (Broadcast copy : copies) {
+            assertEquals(expected, rows(copy));
+            copy.rewind();
+        }
+        for (Broadcast copy : copies) {
+            assertEquals(expected, rows(copy));
+            copy.close();
+        }
+    }
+
+    /**
+     * The batches of a consumer hold its tuples
+     */
+    @Test(timeout = 20000)
+    public void batches() throws Exception {
+        DbIterator[] children = children(4, 3, 6000, 1000);
+        ArrayList<String> expected = expected(children);
+        Gather gather = new Gather(children);
+        gather.open();
+        ArrayList<String> actual = new ArrayList<String>();
+        TupleBatch batch;
+        while ((batch = gather.nextBatch()) != null) {
+            assertTrue(batch.size() > 0 && batch.size() <= TupleBatch.CAPACITY);
+            for (int r = 0; r < batch.size(); r++) {
+                actual.add(batch.getTuple(r).toString());
+            }
+        }
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        gather.close();
+    }
+
+    /**
+     * An exception thrown by a producer is thrown by the consumer
+     */
+    @Test(timeout = 20000)
+    public void producerFails() throws Exception {
+        DbIterator[] children = children(5, 2, 2000, 10);
+        final TupleDesc td = children[0].getTupleDesc();
+        children[1] = new Operator() {
+            private static final long serialVersionUID = 1L;
+
+            protected Tuple fetchNext() throws DbException {
+                throw new DbException("producer failed");
+            }
+
+            public void rewind() {
+            }
+
+            public DbIterator[] getChildren() {
+                return new DbIterator[0];
+            }
+
+            public void setChildren(DbIterator[] children) {
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+        };
+        Gather gather = new Gather(children);
+        gather.open();
+        try {
+            while (gather.hasNext()) {
+                gather.next();
+            }
+            fail("expected the producer's exception");
+        } catch (DbException e) {
+            assertEquals("producer failed", e.getMessage());
+        }
+        gather.close();
+    }
+
+    /**
+     * A consumer closed before its producers are done stops them, along
+     * with the exchanges they read
+     */
+    @Test(timeout = 20000)
+    public void closeEarly() throws Exception {
+        Repartition[] parts = Repartition.of(children(6, 2, 40000, 1000), 0, 2);
+        Gather gather = new Gather(parts);
+        gather.open();
+        assertNotNull(gather.next());
+        gather.close();
+    }
+
+    /**
+     * The joins and aggregates of the parts of repartitions, read in
+     * parallel, each spill to temporary files of their own at the same time,
+     * and between them return what a single join or aggregate does
+     */
+    @Test(timeout = 60000)
+    public void spillingParts() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin join = new HashEquiJoin(p, new Gather(children(7, 2, 4000, 2000)),
+                new Gather(children(8, 2, 4000, 2000)));
+        join.open();
+        ArrayList<String> expected = rows(join);
+        join.close();
+        Repartition[] left = Repartition.of(children(7, 2, 4000, 2000), 0, 4);
+        Repartition[] right = Repartition.of(children(8, 2, 4000, 2000), 0, 4);
+        DbIterator[] joins = new DbIterator[left.length];
+        for (int i = 0; i < joins.length; i++) {
+            // about a thousand tuples a side for a table of 50
+            joins[i] = new HashEquiJoin(p, left[i], right[i], 50);
+        }
+        Gather gather = new Gather(joins);
+        gather.open();
+        assertEquals(expected, rows(gather));
+        gather.close();
+
+        Aggregate count = new Aggregate(new Gather(children(9, 2, 8000, 2000)), 1, 0, Aggregator.Op.COUNT);
+        count.open();
+        expected = rows(count);
+        count.close();
+        Repartition[] parts = Repartition.of(children(9, 2, 8000, 2000), 0, 4);
+        DbIterator[] counts = new DbIterator[parts.length];
+        for (int i = 0; i < counts.length; i++) {
+            // about 500 groups a part for 20 in memory
+            counts[i] = new Aggregate(parts[i], 1, 0, Aggregator.Op.COUNT, 20);
+        }
+        gather = new Gather(counts);
+        gather.open();
+        assertEquals(expected, rows(gather));
+        gather.close();
+    }
+
+    /**
+     * The parts of a repartitioned join can each be rewound on their own,
+     * as by the nested loop joins that read them block by block, while the
+     * others are in the middle of their tuples, whether the consumers keep
+     * their tuples in memory or in files
+     */
+    @Test(timeout = 60000)
+    public void rewindOnePart() throws Exception {
+        JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        JoinPredicate outer = new JoinPredicate(0, Predicate.Op.EQUALS, 2);
+        Join join = new Join(outer, children(12, 1, 3000, 4000)[0],
+                new HashEquiJoin(eq, new Gather(children(10, 2, 8000, 4000)),
+                        new Gather(children(11, 2, 8000, 4000))), 1000);
+        join.open();
+        ArrayList<String> expected = rows(join);
+        join.close();
+        assertTrue(expected.size() > 0);
+
+        for (int kept : new int[]{Repartition.DEFAULT_MAX_KEPT_TUPLES, 1000}) {
+            Repartition.setMaxKeptTuples(kept);
+            try {
+                Broadcast[] blocks = Broadcast.of(children(12, 1, 3000, 4000), 2);
+                Repartition[] left = Repartition.of(children(10, 2, 8000, 4000), 0, 2);
+                Repartition[] right = Repartition.of(children(11, 2, 8000, 4000), 0, 2);
+                DbIterator[] joins = new DbIterator[2];
+                for (int i = 0; i < joins.length; i++) {
+                    joins[i] = new Join(outer, blocks[i], new HashEquiJoin(eq, left[i], right[i]), 1000);
+                }
+                Gather gather = new Gather(joins);
+                gather.open();
+                assertEquals(expected, rows(gather));
+                gather.close();
+            } finally {
+                Repartition.resetMaxKeptTuples();
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
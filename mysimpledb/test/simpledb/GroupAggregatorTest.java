@@ -0,0 +1,189 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupAggregatorTest extends SimpleDbTestBase {
+
+    int width1 = 3;
+
+    /**
+     * Returns the groups of an aggregator as a sorted list of strings.
+     */
+    private static ArrayList<String> collect(Aggregator agg) throws Exception {
+        ArrayList<String> out = new ArrayList<String>();
+        DbIterator it = agg.iterator();
+        it.open();
+        while (it.hasNext()) {
+            out.add(it.next().toString());
+        }
+        it.close();
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * Merges all the tuples of an iterator into an aggregator.
+     */
+    private static void mergeAll(Aggregator agg, DbIterator tuples) throws Exception {
+        tuples.open();
+        while (tuples.hasNext()) {
+            agg.mergeTupleIntoGroup(tuples.next());
+        }
+        tuples.close();
+    }
+
+    /**
+     * Returns rows of three int fields: two group fields with a few values
+     * each and a value to aggregate.
+     */
+    private static int[] randomRows(Random r, int rows) {
+        int[] data = new int[rows * 3];
+        for (int i = 0; i < rows; i++) {
+            data[i * 3] = r.nextInt(5);
+            data[i * 3 + 1] = r.nextInt(7) - 3;
+            data[i * 3 + 2] = r.nextInt(1000) - 500;
+        }
+        return data;
+    }
+
+    /**
+     * Several aggregates over a composite key, in one pass
+     */
+    @Test
+    public void compositeKey() throws Exception {
+        DbIterator scan = TestUtil.createTupleList(width1,
+                new int[]{1, 1, 2,
+                        1, 2, 4,
+                        1, 1, 6,
+                        2, 1, 3,
+                        1, 2, 8});
+        TupleDesc td = scan.getTupleDesc();
+        GroupAggregator agg = new GroupAggregator(td, new int[]{0, 1}, new int[]{2, 2, 2, 2, 2},
+                new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.MAX,
+                        Aggregator.Op.COUNT, Aggregator.Op.SUM_COUNT});
+        mergeAll(agg, scan);
+
+        ArrayList<String> expected = new ArrayList<String>();
+        DbIterator it = TestUtil.createTupleList(8,
+                new int[]{1, 1, 8, 2, 6, 2, 8, 2,
+                        1, 2, 12, 4, 8, 2, 12, 2,
+                        2, 1, 3, 3, 3, 1, 3, 1});
+        it.open();
+        while (it.hasNext()) {
+            expected.add(it.next().toString());
+        }
+        Collections.sort(expected);
+        assertEquals(3, agg.numGroups());
+        assertEquals(expected, collect(agg));
+    }
+
+    /**
+     * Each aggregate of a GroupAggregator grouped on one int field gives the
+     * same groups as an IntegerAggregator computing it alone
+     */
+    @Test
+    public void matchesIntegerAggregator() throws Exception {
+        int[] data = randomRows(new Random(7), 2000);
+        Aggregator.Op[] ops = {Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.COUNT};
+        for (Aggregator.Op op : ops) {
+            DbIterator scan = TestUtil.createTupleList(width1, data);
+            GroupAggregator agg = new GroupAggregator(scan.getTupleDesc(), new int[]{1},
+                    new int[]{2}, new Aggregator.Op[]{op});
+            mergeAll(agg, scan);
+            IntegerAggregator single = new IntegerAggregator(1, Type.INT_TYPE, 2, op);
+            mergeAll(single, TestUtil.createTupleList(width1, data));
+            assertEquals(op.toString(), collect(single), collect(agg));
+        }
+    }
+
+    /**
+     * Merging the partial aggregates of one aggregator into another gives
+     * the groups of an aggregator that saw all the tuples
+     */
+    @Test
+    public void mergePartials() throws Exception {
+        Random r = new Random(11);
+        Aggregator.Op[] ops = {Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.COUNT};
+        int[] afields = {2, 2, 2, 2, 2};
+        for (int[] gbfields : new int[][]{{}, {0}, {0, 1}}) {
+            int[] first = randomRows(r, 500);
+            int[] second = randomRows(r, 500);
+            TupleDesc td = Utility.getTupleDesc(width1);
+
+            GroupAggregator whole = new GroupAggregator(td, gbfields, afields, ops);
+            mergeAll(whole, TestUtil.createTupleList(width1, first));
+            mergeAll(whole, TestUtil.createTupleList(width1, second));
+
+            GroupAggregator agg = new GroupAggregator(td, gbfields, afields, ops);
+            mergeAll(agg, TestUtil.createTupleList(width1, first));
+            GroupAggregator other = new GroupAggregator(td, gbfields, afields, ops);
+            mergeAll(other, TestUtil.createTupleList(width1, second));
+            DbIterator partials = other.partials();
+            partials.open();
+            while (partials.hasNext()) {
+                agg.mergePartialIntoGroup(partials.next());
+            }
+            assertEquals(collect(whole), collect(agg));
+
+            agg.clear();
+            assertEquals(0, agg.numGroups());
+            assertEquals(0, collect(agg).size());
+        }
+    }
+
+    /**
+     * String fields can be grouped on and counted
+     */
+    @Test
+    public void strings() throws Exception {
+        DbIterator scan = TestUtil.createTupleList(width1,
+                new Object[]{"a", 1, "x",
+                        "b", 1, "y",
+                        "a", 1, "z",
+                        "a", 2, "x"});
+        GroupAggregator agg = new GroupAggregator(scan.getTupleDesc(), new int[]{0, 1},
+                new int[]{2, 1}, new Aggregator.Op[]{Aggregator.Op.COUNT, Aggregator.Op.SUM});
+        mergeAll(agg, scan);
+
+        ArrayList<String> expected = new ArrayList<String>();
+        DbIterator it = TestUtil.createTupleList(4,
+                new Object[]{"a", 1, 2, 2,
+                        "b", 1, 1, 1,
+                        "a", 2, 1, 2});
+        it.open();
+        while (it.hasNext()) {
+            expected.add(it.next().toString());
+        }
+        Collections.sort(expected);
+        assertEquals(expected, collect(agg));
+    }
+
+    /**
+     * Aggregates other than COUNT over a string field are rejected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void sumOfStrings() throws Exception {
+        DbIterator scan = TestUtil.createTupleList(2, new Object[]{1, "a"});
+        new GroupAggregator(scan.getTupleDesc(), new int[]{0}, new int[]{0, 1},
+                new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.SUM});
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupAggregatorTest.class);
+    }
+}
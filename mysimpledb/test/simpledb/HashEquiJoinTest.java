@@ -0,0 +1,149 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    int width1 = 2;
+    int width2 = 3;
+    DbIterator scan1;
+    DbIterator scan2;
+    DbIterator eqJoin;
+
+    /**
+     * Initialize each unit test
+     */
+    @Before
+    public void createTupleLists() throws Exception {
+        this.scan1 = TestUtil.createTupleList(width1,
+                new int[]{1, 2,
+                        3, 4,
+                        5, 6,
+                        7, 8});
+        this.scan2 = TestUtil.createTupleList(width2,
+                new int[]{1, 2, 3,
+                        2, 3, 4,
+                        3, 4, 5,
+                        4, 5, 6,
+                        5, 6, 7});
+        this.eqJoin = TestUtil.createTupleList(width1 + width2,
+                new int[]{1, 2, 1, 2, 3,
+                        3, 4, 3, 4, 5,
+                        5, 6, 5, 6, 7});
+    }
+
+    /**
+     * Unit test for HashEquiJoin.getTupleDesc()
+     */
+    @Test
+    public void getTupleDesc() {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+        TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+        TupleDesc actual = op.getTupleDesc();
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Unit test for HashEquiJoin.rewind()
+     */
+    @Test
+    public void rewind() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+        op.open();
+        while (op.hasNext()) {
+            assertNotNull(op.next());
+        }
+        assertTrue(TestUtil.checkExhausted(op));
+        op.rewind();
+
+        TestUtil.matchAllTuples(eqJoin, op);
+    }
+
+    /**
+     * Unit test for HashEquiJoin.getNext() with the smaller input on the left
+     */
+    @Test
+    public void eqJoin() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+        op.open();
+        eqJoin.open();
+        TestUtil.matchAllTuples(eqJoin, op);
+    }
+
+    /**
+     * With the smaller input on the right the table is built on the right,
+     * but output tuples are still left fields followed by right fields.
+     */
+    @Test
+    public void eqJoinSmallerRight() throws Exception {
+        DbIterator big = TestUtil.createTupleList(width2,
+                new int[]{1, 2, 3,
+                        1, 4, 5,
+                        3, 4, 5,
+                        9, 9, 9,
+                        7, 6, 5,
+                        8, 8, 8});
+        DbIterator expected = TestUtil.createTupleList(width2 + width1,
+                new int[]{1, 2, 3, 1, 2,
+                        1, 4, 5, 1, 2,
+                        3, 4, 5, 3, 4,
+                        7, 6, 5, 7, 8});
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin op = new HashEquiJoin(pred, big, scan1);
+        op.open();
+        expected.open();
+        TestUtil.matchAllTuples(expected, op);
+    }
+
+    /**
+     * Rewinding a join that had to partition its inputs gives the same
+     * tuples again.
+     */
+    @Test
+    public void rewindAfterSpill() throws Exception {
+        int[] left = new int[40 * width1];
+        int[] right = new int[40 * width2];
+        int[] joined = new int[40 * (width1 + width2)];
+        for (int i = 0; i < 40; i++) {
+            left[i * width1] = i;
+            right[i * width2] = i;
+            joined[i * (width1 + width2)] = i;
+            joined[i * (width1 + width2) + width1] = i;
+        }
+        DbIterator expected = TestUtil.createTupleList(width1 + width2, joined);
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(width1, left),
+                TestUtil.createTupleList(width2, right), 4);
+        op.open();
+        int count = 0;
+        while (op.hasNext()) {
+            assertNotNull(op.next());
+            count++;
+        }
+        assertEquals(40, count);
+        op.rewind();
+
+        expected.open();
+        TestUtil.matchAllTuples(expected, op);
+        op.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
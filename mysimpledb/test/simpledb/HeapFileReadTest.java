@@ -124,6 +124,102 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A mapped HeapFile reads the same pages as a channel-backed one, and
+     * sees pages appended after the file was first mapped.
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapFile plain = SystemTestUtil.createRandomHeapFile(2, 520, null, null);
+        HeapFile mapped = new HeapFile(plain.getFile(), td, true);
+        Database.getCatalog().addTable(mapped, "mapped");
+        assertTrue(mapped.isMapped());
+        assertEquals(2, mapped.numPages());
+
+        for (int i = 0; i < 2; i++) {
+            HeapPageId pid = new HeapPageId(mapped.getId(), i);
+            assertArrayEquals(plain.readPage(pid).getPageData(), mapped.readPage(pid).getPageData());
+        }
+
+        HeapPage full = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), 0));
+        byte[] data = full.getPageData();
+        mapped.writePage(new HeapPage(new HeapPageId(mapped.getId(), 2), data));
+        assertEquals(3, mapped.numPages());
+        HeapPage appended = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), 2));
+        assertEquals(full.getNumEmptySlots(), appended.getNumEmptySlots());
+    }
+
+    /**
+     * A file that cannot be written can still be scanned, and is reopened
+     * after the table is dropped from the Catalog and added back.
+     */
+    @Test
+    public void readOnlyFile() throws Exception {
+        assertTrue(hf.getFile().setReadOnly());
+        HeapFile file = new HeapFile(hf.getFile(), td);
+        Database.getCatalog().addTable(file);
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(20, count);
+
+        Database.getCatalog().removeTable(file.getId());
+        Database.getCatalog().addTable(file);
+        assertEquals(hf.getId(), file.readPage(new HeapPageId(file.getId(), 0)).getId().getTableId());
+    }
+
+    /**
+     * Iterators sharing the morsels of a file's pages return each of the
+     * file's tuples once between them, and again once all are rewound.
+     */
+    @Test
+    public void iteratorMorsels() throws Exception {
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        assertTrue(file.numPages() > 3);
+        ArrayList<String> expected = new ArrayList<String>();
+        DbFileIterator all = file.iterator(tid);
+        all.open();
+        while (all.hasNext()) {
+            expected.add(all.next().toString());
+        }
+        all.close();
+        Collections.sort(expected);
+
+        PageMorsels morsels = new PageMorsels(file, 3, 1);
+        DbFileIterator[] its = new DbFileIterator[3];
+        for (int i = 0; i < its.length; i++) {
+            its[i] = file.iterator(tid, morsels);
+            its[i].open();
+        }
+        for (int round = 0; round < 2; round++) {
+            ArrayList<String> actual = new ArrayList<String>();
+            boolean more = true;
+            while (more) {
+                more = false;
+                // take turns, a few tuples at a time
+                for (DbFileIterator it : its) {
+                    for (int n = 0; n < 100 && it.hasNext(); n++) {
+                        actual.add(it.next().toString());
+                        more = true;
+                    }
+                }
+            }
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+            for (DbFileIterator it : its) {
+                it.rewind();
+            }
+        }
+        for (DbFileIterator it : its) {
+            it.close();
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -48,6 +48,45 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * A slot freed by a delete is reused by the next insert rather than the
+     * insert going to the last page or a new one.
+     */
+    @Test
+    public void insertReusesFreedSlot() throws Exception {
+        for (int i = 0; i < 1009; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+
+        HeapPageId first = new HeapPageId(empty.getId(), 0);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, first, Permissions.READ_WRITE);
+        Tuple victim = page.iterator().next();
+        empty.deleteTuple(tid, victim);
+
+        java.util.ArrayList<Page> modified = empty.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        assertEquals(first, modified.get(0).getId());
+        assertEquals(0, ((HeapPage) modified.get(0)).getNumEmptySlots());
+        assertEquals(3, empty.numPages());
+    }
+
+    /**
+     * A page found full by an insert that is then aborted takes inserts
+     * again once the abort has emptied it.
+     */
+    @Test
+    public void insertAfterAbortedFill() throws Exception {
+        for (int i = 0; i < 505; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        java.util.ArrayList<Page> modified = empty.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        assertEquals(new HeapPageId(empty.getId(), 0), modified.get(0).getId());
+    }
+
     /**
      * JUnit suite target
      */
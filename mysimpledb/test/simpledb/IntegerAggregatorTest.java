@@ -2,7 +2,9 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.HashMap;
 import java.util.NoSuchElementException;
+import java.util.Random;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -184,6 +186,44 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Many int groups, including extreme and colliding values, grow the
+     * group table and are all summed as by a HashMap
+     */
+    @Test
+    public void manyGroups() throws Exception {
+        Random r = new Random(42);
+        int rows = 20000;
+        int[] data = new int[rows * 2];
+        HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        int[] special = {0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 16, 2 << 16};
+        for (int i = 0; i < rows; i++) {
+            int key = i % 10 == 0 ? special[r.nextInt(special.length)] : r.nextInt(3000) - 1500;
+            int value = r.nextInt(100);
+            data[i * 2] = key;
+            data[i * 2 + 1] = value;
+            Integer old = expected.get(key);
+            expected.put(key, (old == null ? 0 : old) + value);
+        }
+        DbIterator tuples = TestUtil.createTupleList(width1, data);
+        tuples.open();
+        IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+        while (tuples.hasNext()) {
+            agg.mergeTupleIntoGroup(tuples.next());
+        }
+
+        DbIterator it = agg.iterator();
+        it.open();
+        int groups = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            assertEquals(expected.get(key).intValue(), ((IntField) t.getField(1)).getValue());
+            groups++;
+        }
+        assertEquals(expected.size(), groups);
+    }
+
     /**
      * JUnit suite target
      */
@@ -516,6 +516,40 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(result.get(result.size() - 1).t2Alias, "bigTable");
     }
 
+    /**
+     * Range joins whose right input fits in memory are merged, and the join
+     * above a merge join that needs the same order does not sort its output
+     * again; equality joins over unsorted inputs are hashed.  Range joins
+     * with a right input too large, or of unknown size, use nested loops.
+     */
+    @Test
+    public void instantiateMergeJoinTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode range = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.LESS_THAN);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(range, new SeqScan(tid, tableId1, "a"),
+                new SeqScan(tid, tableId1, "b")) instanceof Join);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(range, new SeqScan(tid, tableId1, "a"),
+                new SeqScan(tid, tableId1, "b"), SortMergeJoin.getMaxRangeTuples() + 1) instanceof Join);
+
+        DbIterator ab = JoinOptimizer.instantiateJoin(range,
+                new SeqScan(tid, tableId1, "a"), new SeqScan(tid, tableId1, "b"), 1000);
+        Assert.assertTrue(ab instanceof SortMergeJoin);
+        Assert.assertTrue(((SortMergeJoin) ab).getChildren()[0] instanceof OrderBy);
+        Assert.assertTrue(((SortMergeJoin) ab).getChildren()[1] instanceof OrderBy);
+
+        DbIterator abc = JoinOptimizer.instantiateJoin(
+                new LogicalJoinNode("a", "c", "c0", "c0", Predicate.Op.EQUALS),
+                ab, new SeqScan(tid, tableId2, "c"));
+        Assert.assertTrue(abc instanceof SortMergeJoin);
+        Assert.assertSame(ab, ((SortMergeJoin) abc).getChildren()[0]);
+        Assert.assertTrue(((SortMergeJoin) abc).getChildren()[1] instanceof OrderBy);
+
+        DbIterator bc = JoinOptimizer.instantiateJoin(
+                new LogicalJoinNode("b", "c", "c1", "c1", Predicate.Op.EQUALS),
+                new SeqScan(tid, tableId1, "b"), new SeqScan(tid, tableId2, "c"));
+        Assert.assertTrue(bc instanceof HashEquiJoin);
+    }
+
     /**
      * Test a join ordering with an inequality, to make sure the inequality gets
      * put as the innermost join
@@ -111,6 +111,51 @@ public class JoinTest extends SimpleDbTestBase {
         TestUtil.matchAllTuples(eqJoin, op);
     }
 
+    /**
+     * Blocks smaller than the outer input give the same tuples, and the
+     * inner child is scanned once per block
+     */
+    @Test
+    public void gtJoinBlocks() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+        gtJoin.open();
+        for (int blockTuples = 1; blockTuples <= 4; blockTuples++) {
+            final int[] rewinds = new int[1];
+            TupleIterator inner = TestUtil.createTupleList(width2,
+                    new int[]{1, 2, 3,
+                            2, 3, 4,
+                            3, 4, 5,
+                            4, 5, 6,
+                            5, 6, 7});
+            inner = new TupleIterator(inner.getTupleDesc(), inner.tuples) {
+                private static final long serialVersionUID = 1L;
+
+                public void rewind() {
+                    rewinds[0]++;
+                    super.rewind();
+                }
+            };
+            Join op = new Join(pred, TestUtil.createTupleList(width1,
+                    new int[]{1, 2,
+                            3, 4,
+                            5, 6,
+                            7, 8}), inner, blockTuples);
+            op.open();
+            int count = 0;
+            while (op.hasNext()) {
+                op.next();
+                count++;
+            }
+            assertEquals(11, count);
+            int blocks = (4 + blockTuples - 1) / blockTuples;
+            assertEquals(blocks - 1, rewinds[0]);
+
+            gtJoin.rewind();
+            TestUtil.matchAllTuples(gtJoin, op);
+            op.close();
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,171 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final PageId P0 = new HeapPageId(1, 0);
+    private static final PageId P1 = new HeapPageId(1, 1);
+
+    /**
+     * Requests a page lock and records when it was granted, releasing it
+     * again straight away if asked to.
+     */
+    private static class Waiter extends Thread {
+        private final LockManager lm;
+        private final TransactionId tid;
+        private final PageId pid;
+        private final boolean exclusive;
+        private final boolean release;
+        final AtomicLong grantedAt = new AtomicLong();
+        volatile Exception error;
+
+        Waiter(LockManager lm, TransactionId tid, PageId pid, boolean exclusive, boolean release) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.exclusive = exclusive;
+            this.release = release;
+        }
+
+        public void run() {
+            try {
+                lm.acquirePageLock(tid, pid, exclusive);
+                grantedAt.set(System.nanoTime());
+                if (release) {
+                    lm.releasePageLock(tid, pid);
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Starts a waiter and returns once it is blocked on the lock.
+     */
+    private static Waiter startBlockedWaiter(LockManager lm, TransactionId tid, PageId pid,
+                                             boolean exclusive, boolean release)
+            throws InterruptedException {
+        Waiter w = new Waiter(lm, tid, pid, exclusive, release);
+        w.start();
+        while (w.getState() != Thread.State.WAITING && w.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        return w;
+    }
+
+    /**
+     * Releasing a lock hands it to the blocked waiter straight away rather
+     * than on the waiter's next poll.
+     */
+    @Test
+    public void handoffLatency() throws Exception {
+        LockManager lm = new LockManager(1);
+        int rounds = 100;
+        long total = 0;
+        for (int i = 0; i < rounds; i++) {
+            TransactionId holder = new TransactionId();
+            lm.acquirePageLock(holder, P0, true);
+            Waiter w = startBlockedWaiter(lm, new TransactionId(), P0, true, true);
+
+            long released = System.nanoTime();
+            lm.releasePageLock(holder, P0);
+            w.join();
+            assertTrue(w.error == null);
+            total += w.grantedAt.get() - released;
+        }
+        long avgMicros = total / rounds / 1000;
+        assertTrue("handoff took " + avgMicros + " us", avgMicros < 50000);
+    }
+
+    /**
+     * A shared holder waiting to upgrade is woken once the other reader leaves.
+     */
+    @Test
+    public void upgradeAfterOtherReaderReleases() throws Exception {
+        LockManager lm = new LockManager(1);
+        TransactionId reader = new TransactionId();
+        TransactionId upgrader = new TransactionId();
+        lm.acquirePageLock(reader, P0, false);
+        lm.acquirePageLock(upgrader, P0, false);
+
+        Waiter w = startBlockedWaiter(lm, upgrader, P0, true, false);
+        assertFalse(lm.holdsLock(upgrader, P0, true));
+
+        lm.releasePageLock(reader, P0);
+        w.join();
+        assertTrue(w.error == null);
+        assertTrue(lm.holdsLock(upgrader, P0, true));
+    }
+
+    /**
+     * The request that closes a waits-for cycle aborts at once when its
+     * transaction is the youngest in the cycle.
+     */
+    @Test
+    public void deadlockAbortsYoungestRequester() throws Exception {
+        LockManager lm = new LockManager(2);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquirePageLock(older, P0, true);
+        lm.acquirePageLock(younger, P1, true);
+        Waiter w = startBlockedWaiter(lm, older, P1, true, false);
+
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquirePageLock(younger, P0, true);
+            fail("expected the younger transaction to be aborted");
+        } catch (TransactionAbortedException expected) {
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("detection took " + elapsed + " ms", elapsed < 1000);
+
+        // the older transaction gets its lock once the victim releases
+        lm.releasePageLock(younger, P1);
+        w.join();
+        assertTrue(w.error == null);
+        assertTrue(lm.holdsLock(older, P1, true));
+    }
+
+    /**
+     * When an older transaction closes the cycle, the younger one that was
+     * already waiting is woken up and aborted instead.
+     */
+    @Test
+    public void deadlockAbortsYoungestWaiter() throws Exception {
+        LockManager lm = new LockManager(2);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquirePageLock(younger, P0, true);
+        lm.acquirePageLock(older, P1, true);
+        Waiter victim = startBlockedWaiter(lm, younger, P1, true, false);
+        Waiter survivor = startBlockedWaiter(lm, older, P0, true, false);
+
+        victim.join();
+        assertTrue(victim.error instanceof TransactionAbortedException);
+        assertFalse(lm.holdsLock(older, P0, true));
+
+        lm.releasePageLock(younger, P0);
+        survivor.join();
+        assertTrue(survivor.error == null);
+        assertTrue(lm.holdsLock(older, P0, true));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
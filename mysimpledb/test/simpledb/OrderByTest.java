@@ -0,0 +1,224 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    int width = 2;
+    DbIterator scan;
+    DbIterator sorted;
+
+    /**
+     * Initialize each unit test
+     */
+    @Before
+    public void createTupleLists() throws Exception {
+        this.scan = TestUtil.createTupleList(width,
+                new int[]{3, 0,
+                        1, 1,
+                        2, 2,
+                        1, 3,
+                        0, 4});
+        this.sorted = TestUtil.createTupleList(width,
+                new int[]{0, 4,
+                        1, 1,
+                        1, 3,
+                        2, 2,
+                        3, 0});
+    }
+
+    /**
+     * Returns the data for rows tuples with random keys below maxValue in
+     * their first field, numbered in their second.
+     */
+    private static int[] randomList(Random r, int rows, int maxValue) {
+        int[] data = new int[rows * 2];
+        for (int i = 0; i < rows; i++) {
+            data[i * 2] = r.nextInt(maxValue);
+            data[i * 2 + 1] = i;
+        }
+        return data;
+    }
+
+    /**
+     * Returns the number of tables in the catalog, temporary files included.
+     */
+    private static int countTables() {
+        int n = 0;
+        Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Checks that op returns the tuples of data sorted on their first field,
+     * ties in their original order.
+     */
+    private static void checkSorted(int[] data, boolean asc, DbIterator op) throws Exception {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        int last = -1;
+        int lastSeq = -1;
+        while (op.hasNext()) {
+            Tuple t = op.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            int seq = ((IntField) t.getField(1)).getValue();
+            assertEquals(data[seq * 2], key);
+            if (!keys.isEmpty()) {
+                assertTrue("out of order", asc ? key >= last : key <= last);
+                assertTrue("unstable", key != last || seq > lastSeq);
+            }
+            keys.add(key);
+            last = key;
+            lastSeq = seq;
+        }
+        assertEquals(data.length / 2, keys.size());
+    }
+
+    /**
+     * Unit test for OrderBy.getTupleDesc()
+     */
+    @Test
+    public void getTupleDesc() {
+        OrderBy op = new OrderBy(0, true, scan);
+        TupleDesc expected = Utility.getTupleDesc(width);
+        TupleDesc actual = op.getTupleDesc();
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Unit test for OrderBy.rewind()
+     */
+    @Test
+    public void rewind() throws Exception {
+        OrderBy op = new OrderBy(0, true, scan);
+        op.open();
+        while (op.hasNext()) {
+            op.next();
+        }
+        assertTrue(TestUtil.checkExhausted(op));
+        op.rewind();
+
+        sorted.open();
+        TestUtil.compareDbIterators(sorted, op);
+        assertTrue(TestUtil.checkExhausted(op));
+    }
+
+    /**
+     * Ties keep the order of the child
+     */
+    @Test
+    public void sortInMemory() throws Exception {
+        OrderBy op = new OrderBy(0, true, scan);
+        op.open();
+        sorted.open();
+        TestUtil.compareDbIterators(sorted, op);
+        assertTrue(TestUtil.checkExhausted(op));
+    }
+
+    /**
+     * An input of 20 times the budget is sorted in runs, which are merged
+     * and deleted on close
+     */
+    @Test
+    public void sortSpills() throws Exception {
+        int[] data = randomList(new Random(42), 2000, 100);
+        int tables = countTables();
+        for (boolean asc : new boolean[]{true, false}) {
+            OrderBy op = new OrderBy(0, asc, TestUtil.createTupleList(width, data), 100);
+            op.open();
+            assertEquals(tables + 20, countTables());
+            checkSorted(data, asc, op);
+            op.close();
+            assertEquals(tables, countTables());
+        }
+    }
+
+    /**
+     * Too many runs to merge at once are first merged into longer runs
+     */
+    @Test
+    public void sortMergesInPasses() throws Exception {
+        int[] data = randomList(new Random(7), 2000, 50);
+        int tables = countTables();
+        OrderBy op = new OrderBy(0, false, TestUtil.createTupleList(width, data), 10);
+        op.open();
+        // 200 runs are merged 64 at a time
+        assertEquals(tables + 4, countTables());
+        checkSorted(data, false, op);
+        op.close();
+        assertEquals(tables, countTables());
+    }
+
+    /**
+     * Several sort fields in mixed directions, sorted in memory and in runs
+     */
+    @Test
+    public void sortOnSeveralFields() throws Exception {
+        Random r = new Random(11);
+        int rows = 1000;
+        int[] data = new int[rows * 3];
+        for (int i = 0; i < rows; i++) {
+            data[i * 3] = r.nextInt(5);
+            data[i * 3 + 1] = r.nextInt(5);
+            data[i * 3 + 2] = i;
+        }
+        for (int budget : new int[]{rows, 50}) {
+            OrderBy op = new OrderBy(new int[]{0, 1}, new boolean[]{true, false},
+                    TestUtil.createTupleList(3, data), budget);
+            op.open();
+            int n = 0;
+            int[] last = null;
+            while (op.hasNext()) {
+                Tuple t = op.next();
+                int[] cur = new int[3];
+                for (int i = 0; i < 3; i++) {
+                    cur[i] = ((IntField) t.getField(i)).getValue();
+                }
+                if (last != null) {
+                    assertTrue("out of order", last[0] < cur[0] || (last[0] == cur[0]
+                            && (last[1] > cur[1] || (last[1] == cur[1] && last[2] < cur[2]))));
+                }
+                last = cur;
+                n++;
+            }
+            assertEquals(rows, n);
+            op.close();
+        }
+    }
+
+    /**
+     * Rewinding a spilled sort replays the runs without reading the child
+     */
+    @Test
+    public void rewindAfterSpill() throws Exception {
+        int[] data = randomList(new Random(3), 500, 20);
+        OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(width, data), 64);
+        op.open();
+        checkSorted(data, true, op);
+        op.rewind();
+        checkSorted(data, true, op);
+        op.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
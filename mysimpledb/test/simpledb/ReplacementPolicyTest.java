@@ -0,0 +1,168 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    // frames in the simulated pool, and scan pages read between lookup bursts
+    private static final int POOL = 50;
+    private static final int SCAN_CHUNK = 45;
+
+    /**
+     * A page that only knows its id and whether it is dirty.
+     */
+    static class StubPage implements Page {
+        private final PageId pid;
+        private TransactionId dirtier;
+
+        StubPage(PageId pid) {
+            this.pid = pid;
+        }
+
+        public PageId getId() {
+            return pid;
+        }
+
+        public TransactionId isDirty() {
+            return dirtier;
+        }
+
+        public void markDirty(boolean dirty, TransactionId tid) {
+            dirtier = dirty ? tid : null;
+        }
+
+        public byte[] getPageData() {
+            return new byte[0];
+        }
+
+        public Page getBeforeImage() {
+            return this;
+        }
+
+        public void setBeforeImage() {
+        }
+    }
+
+    /**
+     * Replays a reference string against a policy the way BufferPool does,
+     * and returns the fraction of references that were hits.
+     */
+    private static double hitRatio(ReplacementPolicy.Kind kind, int numPages, int[] refs) {
+        ReplacementPolicy policy = kind.create(numPages);
+        HashMap<PageId, Page> frames = new HashMap<PageId, Page>();
+        int hits = 0;
+        for (int pgNo : refs) {
+            PageId pid = new HeapPageId(1, pgNo);
+            if (frames.containsKey(pid)) {
+                policy.pageAccessed(pid);
+                hits++;
+                continue;
+            }
+            if (frames.size() >= numPages) {
+                PageId victim = policy.chooseVictim(frames);
+                frames.remove(victim);
+                policy.pageRemoved(victim);
+            }
+            frames.put(pid, new StubPage(pid));
+            policy.pageLoaded(pid);
+        }
+        return ((double) hits) / refs.length;
+    }
+
+    /**
+     * A dimension table of 10 hot pages probed by point lookups while a
+     * 400 page fact table is scanned sequentially, several times over.
+     */
+    private static int[] scanAndLookupWorkload(int scanChunk) {
+        int scans = 5, hot = 10, scanPages = 400;
+        int chunks = scanPages / scanChunk;
+        int[] refs = new int[scans * chunks * (hot + scanChunk)];
+        int r = 0;
+        for (int scan = 0; scan < scans; scan++) {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                for (int i = 0; i < hot; i++) {
+                    refs[r++] = i;
+                }
+                for (int i = 0; i < scanChunk; i++) {
+                    refs[r++] = 1000 + chunk * scanChunk + i;
+                }
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Every policy skips dirty pages and gives up when all pages are dirty.
+     */
+    @Test
+    public void neverEvictsDirtyPages() {
+        TransactionId tid = new TransactionId();
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(3);
+            HashMap<PageId, Page> frames = new HashMap<PageId, Page>();
+            for (int i = 0; i < 3; i++) {
+                PageId pid = new HeapPageId(1, i);
+                frames.put(pid, new StubPage(pid));
+                policy.pageLoaded(pid);
+            }
+            frames.get(new HeapPageId(1, 0)).markDirty(true, tid);
+            frames.get(new HeapPageId(1, 1)).markDirty(true, tid);
+            assertEquals(kind.toString(), new HeapPageId(1, 2), policy.chooseVictim(frames));
+
+            frames.get(new HeapPageId(1, 2)).markDirty(true, tid);
+            assertNull(kind.toString(), policy.chooseVictim(frames));
+        }
+    }
+
+    /**
+     * LRU evicts the page that was used least recently.
+     */
+    @Test
+    public void lruOrder() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.LRU.create(3);
+        HashMap<PageId, Page> frames = new HashMap<PageId, Page>();
+        for (int i = 0; i < 3; i++) {
+            PageId pid = new HeapPageId(1, i);
+            frames.put(pid, new StubPage(pid));
+            policy.pageLoaded(pid);
+        }
+        policy.pageAccessed(new HeapPageId(1, 0));
+        assertEquals(new HeapPageId(1, 1), policy.chooseVictim(frames));
+        policy.pageRemoved(new HeapPageId(1, 1));
+        frames.remove(new HeapPageId(1, 1));
+        assertEquals(new HeapPageId(1, 2), policy.chooseVictim(frames));
+    }
+
+    /**
+     * Sequential scans should not flush the hot pages out of CLOCK, LRU-K
+     * or 2Q the way they do out of LRU.
+     */
+    @Test
+    public void scanResistance() {
+        int[] refs = scanAndLookupWorkload(SCAN_CHUNK);
+        double lru = hitRatio(ReplacementPolicy.Kind.LRU, POOL, refs);
+        double lruK = hitRatio(ReplacementPolicy.Kind.LRU_K, POOL, refs);
+        double twoQ = hitRatio(ReplacementPolicy.Kind.TWO_Q, POOL, refs);
+        double clock = hitRatio(ReplacementPolicy.Kind.CLOCK, POOL, refs);
+        assertTrue("LRU-K " + lruK + " vs LRU " + lru, lruK > lru);
+        assertTrue("2Q " + twoQ + " vs LRU " + lru, twoQ > lru);
+        assertTrue("CLOCK " + clock + " vs LRU " + lru, clock >= lru);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
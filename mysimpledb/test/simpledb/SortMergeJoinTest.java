@@ -0,0 +1,176 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    int width1 = 2;
+    int width2 = 3;
+    DbIterator scan1;
+    DbIterator scan2;
+    DbIterator eqJoin;
+
+    /**
+     * Initialize each unit test; both inputs are sorted on their first field
+     * and have duplicate keys
+     */
+    @Before
+    public void createTupleLists() throws Exception {
+        this.scan1 = TestUtil.createTupleList(width1,
+                new int[]{1, 2,
+                        3, 4,
+                        3, 5,
+                        7, 8});
+        this.scan2 = TestUtil.createTupleList(width2,
+                new int[]{1, 2, 3,
+                        2, 3, 4,
+                        3, 4, 5,
+                        3, 5, 6,
+                        5, 6, 7});
+        this.eqJoin = TestUtil.createTupleList(width1 + width2,
+                new int[]{1, 2, 1, 2, 3,
+                        3, 4, 3, 4, 5,
+                        3, 4, 3, 5, 6,
+                        3, 5, 3, 4, 5,
+                        3, 5, 3, 5, 6});
+    }
+
+    /**
+     * Returns the data for a sorted list of random single-digit keys, each
+     * with a second field numbering the tuples.
+     */
+    private static int[] randomSortedList(Random r, int rows) {
+        int[] keys = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            keys[i] = r.nextInt(10);
+        }
+        Arrays.sort(keys);
+        int[] data = new int[rows * 2];
+        for (int i = 0; i < rows; i++) {
+            data[i * 2] = keys[i];
+            data[i * 2 + 1] = i;
+        }
+        return data;
+    }
+
+    /**
+     * Returns the output of an iterator as a sorted list of strings.
+     */
+    private static ArrayList<String> collect(DbIterator it) throws Exception {
+        ArrayList<String> out = new ArrayList<String>();
+        it.open();
+        while (it.hasNext()) {
+            out.add(it.next().toString());
+        }
+        it.close();
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * Unit test for SortMergeJoin.getTupleDesc()
+     */
+    @Test
+    public void getTupleDesc() {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+        TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+        TupleDesc actual = op.getTupleDesc();
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Unit test for SortMergeJoin.rewind()
+     */
+    @Test
+    public void rewind() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+        op.open();
+        while (op.hasNext()) {
+            op.next();
+        }
+        assertTrue(TestUtil.checkExhausted(op));
+        op.rewind();
+
+        eqJoin.open();
+        TestUtil.compareDbIterators(eqJoin, op);
+        assertTrue(TestUtil.checkExhausted(op));
+    }
+
+    /**
+     * Equal keys on both sides are joined pairwise, in key order
+     */
+    @Test
+    public void eqJoin() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+        op.open();
+        eqJoin.open();
+        TestUtil.compareDbIterators(eqJoin, op);
+        assertTrue(TestUtil.checkExhausted(op));
+    }
+
+    /**
+     * Every predicate gives the same tuples as a nested loops join, and they
+     * come out in order of the left join field
+     */
+    @Test
+    public void matchesNestedLoops() throws Exception {
+        Random r = new Random(42);
+        Predicate.Op[] ops = {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ};
+        for (Predicate.Op op : ops) {
+            int[] left = randomSortedList(r, 60);
+            int[] right = randomSortedList(r, 50);
+            JoinPredicate pred = new JoinPredicate(0, op, 0);
+            ArrayList<String> expected = collect(new Join(pred,
+                    TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right)));
+
+            SortMergeJoin merge = new SortMergeJoin(pred,
+                    TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right));
+            ArrayList<String> actual = new ArrayList<String>();
+            merge.open();
+            int lastKey = Integer.MIN_VALUE;
+            while (merge.hasNext()) {
+                Tuple t = merge.next();
+                int key = ((IntField) t.getField(0)).getValue();
+                assertTrue(op + " output out of order", key >= lastKey);
+                lastKey = key;
+                actual.add(t.toString());
+            }
+            merge.close();
+            Collections.sort(actual);
+            assertEquals(op.toString(), expected, actual);
+        }
+    }
+
+    /**
+     * Predicates that cannot be merged are rejected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void notEqualsRejected() {
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan1, scan2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortOrderTest extends SimpleDbTestBase {
+
+    /**
+     * Compares two tuples field by field through Field.compare, the way the
+     * keys should order them.
+     */
+    private static int compareFields(int[] fields, boolean[] asc, Tuple t1, Tuple t2) {
+        for (int i = 0; i < fields.length; i++) {
+            Field f1 = t1.getField(fields[i]);
+            Field f2 = t2.getField(fields[i]);
+            if (!f1.compare(Predicate.Op.EQUALS, f2)) {
+                boolean less = f1.compare(Predicate.Op.LESS_THAN, f2);
+                return less == asc[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Checks that the keys of every pair of tuples compare as their fields do.
+     */
+    private static void checkKeys(int[] fields, boolean[] asc, Tuple[] tuples) {
+        SortOrder order = new SortOrder(fields, asc);
+        long[][] keys = new long[tuples.length][];
+        for (int i = 0; i < tuples.length; i++) {
+            keys[i] = order.key(tuples[i]);
+        }
+        for (int i = 0; i < tuples.length; i++) {
+            for (int j = 0; j < tuples.length; j++) {
+                assertEquals(tuples[i] + " vs " + tuples[j],
+                        Integer.signum(compareFields(fields, asc, tuples[i], tuples[j])),
+                        Integer.signum(SortOrder.compareKeys(keys[i], keys[j])));
+            }
+        }
+    }
+
+    private static Tuple tuple(TupleDesc td, Field... fields) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < fields.length; i++) {
+            t.setField(i, fields[i]);
+        }
+        return t;
+    }
+
+    /**
+     * Int keys order as the ints, including the extremes
+     */
+    @Test
+    public void intKeys() {
+        TupleDesc td = Utility.getTupleDesc(1);
+        int[] values = {Integer.MIN_VALUE, -70000, -1, 0, 1, 255, 256, 70000, Integer.MAX_VALUE};
+        Tuple[] tuples = new Tuple[values.length];
+        for (int i = 0; i < values.length; i++) {
+            tuples[i] = tuple(td, new IntField(values[i]));
+        }
+        checkKeys(new int[]{0}, new boolean[]{true}, tuples);
+        checkKeys(new int[]{0}, new boolean[]{false}, tuples);
+    }
+
+    /**
+     * String keys order as the strings, including prefixes, the empty string
+     * and zero chars
+     */
+    @Test
+    public void stringKeys() {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+        String[] values = {"", "a", "ab", "abc", "abd", "b", "a\u0000", "a\u0000b", "\u0000",
+                "\u00ff", "\u0100", "z"};
+        Tuple[] tuples = new Tuple[values.length * 2];
+        for (int i = 0; i < values.length; i++) {
+            tuples[i * 2] = tuple(td, new StringField(values[i], Type.STRING_LEN), new IntField(i));
+            tuples[i * 2 + 1] = tuple(td, new StringField(values[i], Type.STRING_LEN), new IntField(-i));
+        }
+        checkKeys(new int[]{0}, new boolean[]{true}, tuples);
+        checkKeys(new int[]{0}, new boolean[]{false}, tuples);
+        // the string's encoding must end before the int's, whatever they are
+        checkKeys(new int[]{0, 1}, new boolean[]{true, true}, tuples);
+        checkKeys(new int[]{0, 1}, new boolean[]{false, true}, tuples);
+        checkKeys(new int[]{1, 0}, new boolean[]{true, false}, tuples);
+    }
+
+    /**
+     * Keys on several int fields in mixed directions
+     */
+    @Test
+    public void multiFieldKeys() {
+        Random r = new Random(42);
+        TupleDesc td = Utility.getTupleDesc(3);
+        Tuple[] tuples = new Tuple[60];
+        for (int i = 0; i < tuples.length; i++) {
+            tuples[i] = tuple(td, new IntField(r.nextInt(3) - 1),
+                    new IntField(r.nextInt(5) - 2), new IntField(r.nextInt()));
+        }
+        checkKeys(new int[]{0, 1, 2}, new boolean[]{true, false, true}, tuples);
+        checkKeys(new int[]{1, 0}, new boolean[]{false, false}, tuples);
+        checkKeys(new int[]{2}, new boolean[]{true}, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortOrderTest.class);
+    }
+}
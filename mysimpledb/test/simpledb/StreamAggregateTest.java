@@ -0,0 +1,160 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StreamAggregateTest extends SimpleDbTestBase {
+
+    int width1 = 3;
+
+    /**
+     * Returns the output of an iterator as a list of strings, in order.
+     */
+    private static ArrayList<String> collect(DbIterator it) throws Exception {
+        ArrayList<String> out = new ArrayList<String>();
+        while (it.hasNext()) {
+            out.add(it.next().toString());
+        }
+        return out;
+    }
+
+    /**
+     * Returns random rows of three int fields, sorted on the first two.
+     */
+    private static DbIterator sortedRows(long seed, int rows) throws Exception {
+        Random r = new Random(seed);
+        int[] data = new int[rows * 3];
+        for (int i = 0; i < rows * 3; i += 3) {
+            data[i] = r.nextInt(10);
+            data[i + 1] = r.nextInt(4);
+            data[i + 2] = r.nextInt(100) - 50;
+        }
+        DbIterator sorted = new OrderBy(new int[]{0, 1}, new boolean[]{true, true},
+                TestUtil.createTupleList(3, data));
+        sorted.open();
+        int[] out = new int[rows * 3];
+        for (int i = 0; i < rows * 3; i += 3) {
+            Tuple t = sorted.next();
+            for (int j = 0; j < 3; j++) {
+                out[i + j] = ((IntField) t.getField(j)).getValue();
+            }
+        }
+        sorted.close();
+        return TestUtil.createTupleList(3, out);
+    }
+
+    /**
+     * Over grouped input the groups are those of an Aggregate, in the order
+     * of the input
+     */
+    @Test
+    public void matchesAggregate() throws Exception {
+        int[][] gfields = {{0}, {0, 1}, {1, 0}};
+        Aggregator.Op[] aops = {Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.AVG,
+                Aggregator.Op.COUNT};
+        int[] afields = {2, 2, 2, 2};
+        for (int[] g : gfields) {
+            Aggregate hash = new Aggregate(sortedRows(3, 300), afields, g, aops);
+            hash.open();
+            ArrayList<String> expected = collect(hash);
+            Collections.sort(expected);
+
+            StreamAggregate op = new StreamAggregate(sortedRows(3, 300), afields, g, aops);
+            assertEquals(hash.getTupleDesc(), op.getTupleDesc());
+            op.open();
+            ArrayList<String> actual = collect(op);
+            // the input is sorted on field 0, and so is the output if that
+            // is the first group field
+            int lastKey = Integer.MIN_VALUE;
+            for (String row : g[0] == 0 ? actual : new ArrayList<String>()) {
+                int key = Integer.parseInt(row.split("\t")[0]);
+                assertTrue(key >= lastKey);
+                lastKey = key;
+            }
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+        }
+    }
+
+    /**
+     * The first group is returned after reading only as far as the second
+     */
+    @Test
+    public void firstGroupEarly() throws Exception {
+        DbIterator child = TestUtil.createTupleList(2,
+                new int[]{1, 2,
+                        1, 4,
+                        3, 2,
+                        5, 7});
+        StreamAggregate op = new StreamAggregate(child, 1, 0, Aggregator.Op.SUM);
+        op.open();
+        Tuple first = op.next();
+        assertEquals(1, ((IntField) first.getField(0)).getValue());
+        assertEquals(6, ((IntField) first.getField(1)).getValue());
+        // the tuple of group 3 has been read, the one of group 5 has not
+        assertTrue(child.hasNext());
+        assertEquals(5, ((IntField) child.next().getField(0)).getValue());
+    }
+
+    /**
+     * Without grouping the whole input is one group
+     */
+    @Test
+    public void noGrouping() throws Exception {
+        StreamAggregate op = new StreamAggregate(TestUtil.createTupleList(2,
+                new int[]{1, 2, 3, 4, 1, 6}), 1, Aggregator.NO_GROUPING, Aggregator.Op.MAX);
+        op.open();
+        assertEquals(6, ((IntField) op.next().getField(0)).getValue());
+        assertFalse(op.hasNext());
+    }
+
+    /**
+     * Unit test for StreamAggregate.rewind()
+     */
+    @Test
+    public void rewind() throws Exception {
+        StreamAggregate op = new StreamAggregate(sortedRows(5, 100), 2, 0, Aggregator.Op.SUM);
+        op.open();
+        ArrayList<String> first = collect(op);
+        assertTrue(TestUtil.checkExhausted(op));
+        op.rewind();
+        assertEquals(first, collect(op));
+    }
+
+    /**
+     * Plans grouped on the leading fields of an OrderBy, or sorted on the one
+     * group field, are recognized as grouped
+     */
+    @Test
+    public void groupedPlans() throws Exception {
+        DbIterator scan = TestUtil.createTupleList(width1, new int[]{1, 2, 3});
+        OrderBy byTwo = new OrderBy(new int[]{1, 0}, new boolean[]{false, true}, scan);
+        assertTrue(JoinOptimizer.isGroupedOn(byTwo, new int[]{1}));
+        assertTrue(JoinOptimizer.isGroupedOn(byTwo, new int[]{0, 1}));
+        assertFalse(JoinOptimizer.isGroupedOn(byTwo, new int[]{0}));
+        assertFalse(JoinOptimizer.isGroupedOn(byTwo, new int[]{0, 2}));
+        assertFalse(JoinOptimizer.isGroupedOn(scan, new int[]{0}));
+
+        StreamAggregate op = new StreamAggregate(new OrderBy(1, true, scan), 2, 1, Aggregator.Op.SUM);
+        assertTrue(JoinOptimizer.isSortedOn(op, 0));
+        assertFalse(JoinOptimizer.isSortedOn(op, 1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StreamAggregateTest.class);
+    }
+}
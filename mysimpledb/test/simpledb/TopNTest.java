@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+    int width = 2;
+    DbIterator scan;
+
+    /**
+     * Initialize each unit test
+     */
+    @Before
+    public void createTupleList() throws Exception {
+        this.scan = TestUtil.createTupleList(width,
+                new int[]{3, 0,
+                        1, 1,
+                        2, 2,
+                        1, 3,
+                        0, 4});
+    }
+
+    /**
+     * Unit test for TopN.getTupleDesc()
+     */
+    @Test
+    public void getTupleDesc() {
+        TopN op = new TopN(0, true, 2, scan);
+        TupleDesc expected = Utility.getTupleDesc(width);
+        TupleDesc actual = op.getTupleDesc();
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Unit test for TopN.rewind()
+     */
+    @Test
+    public void rewind() throws Exception {
+        TopN op = new TopN(0, true, 3, scan);
+        op.open();
+        while (op.hasNext()) {
+            op.next();
+        }
+        assertTrue(TestUtil.checkExhausted(op));
+        op.rewind();
+
+        DbIterator expected = TestUtil.createTupleList(width,
+                new int[]{0, 4,
+                        1, 1,
+                        1, 3});
+        expected.open();
+        TestUtil.compareDbIterators(expected, op);
+        assertTrue(TestUtil.checkExhausted(op));
+    }
+
+    /**
+     * A limit that cuts between two equal keys keeps the one the child
+     * returned first
+     */
+    @Test
+    public void tiesKeepChildOrder() throws Exception {
+        TopN op = new TopN(0, true, 2, scan);
+        op.open();
+        DbIterator expected = TestUtil.createTupleList(width,
+                new int[]{0, 4,
+                        1, 1});
+        expected.open();
+        TestUtil.compareDbIterators(expected, op);
+        assertTrue(TestUtil.checkExhausted(op));
+    }
+
+    /**
+     * A limit of zero returns nothing, and a limit past the end of the input
+     * returns all of it
+     */
+    @Test
+    public void limits() throws Exception {
+        TopN op = new TopN(0, false, 0, scan);
+        op.open();
+        assertTrue(TestUtil.checkExhausted(op));
+        op.close();
+
+        op = new TopN(0, false, 10, TestUtil.createTupleList(width,
+                new int[]{3, 0, 1, 1, 2, 2, 1, 3, 0, 4}));
+        op.open();
+        DbIterator expected = TestUtil.createTupleList(width,
+                new int[]{3, 0,
+                        2, 2,
+                        1, 1,
+                        1, 3,
+                        0, 4});
+        expected.open();
+        TestUtil.compareDbIterators(expected, op);
+        assertTrue(TestUtil.checkExhausted(op));
+    }
+
+    /**
+     * The output is the first n tuples of a full sort, in both directions
+     */
+    @Test
+    public void matchesOrderBy() throws Exception {
+        Random r = new Random(42);
+        int rows = 2000;
+        int[] data = new int[rows * 2];
+        for (int i = 0; i < rows; i++) {
+            data[i * 2] = r.nextInt(300);
+            data[i * 2 + 1] = i;
+        }
+        for (boolean asc : new boolean[]{true, false}) {
+            for (int n : new int[]{1, 10, 100, 1999}) {
+                TopN op = new TopN(0, asc, n, TestUtil.createTupleList(width, data));
+                OrderBy sorted = new OrderBy(0, asc, TestUtil.createTupleList(width, data));
+                op.open();
+                sorted.open();
+                for (int i = 0; i < n; i++) {
+                    assertTrue(op.hasNext());
+                    assertTrue(TestUtil.compareTuples(sorted.next(), op.next()));
+                }
+                assertTrue(TestUtil.checkExhausted(op));
+                op.close();
+                sorted.close();
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+}
@@ -0,0 +1,242 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+    int width1 = 3;
+
+    /**
+     * Returns the tuples of an open iterator as a list of strings, in order.
+     */
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> out = new ArrayList<String>();
+        while (it.hasNext()) {
+            out.add(it.next().toString());
+        }
+        return out;
+    }
+
+    /**
+     * Returns the rows of the batches of an open iterator as a list of
+     * strings, in order.
+     */
+    private static ArrayList<String> batchRows(BatchIterator it) throws Exception {
+        ArrayList<String> out = new ArrayList<String>();
+        TupleBatch batch;
+        while ((batch = it.nextBatch()) != null) {
+            assertTrue(batch.size() > 0 && batch.size() <= TupleBatch.CAPACITY);
+            for (int r = 0; r < batch.size(); r++) {
+                out.add(batch.getTuple(r).toString());
+            }
+        }
+        return out;
+    }
+
+    private static int[] randomRows(Random r, int rows, int width, int values) {
+        int[] data = new int[rows * width];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = r.nextInt(values);
+        }
+        return data;
+    }
+
+    /**
+     * The batches of a scan hold the tuples of the table, with their
+     * RecordIds
+     */
+    @Test
+    public void scan() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(width1, 5000, null, null);
+        TransactionId tid = new TransactionId();
+        SeqScan rowScan = new SeqScan(tid, f.getId(), "t");
+        rowScan.open();
+        ArrayList<String> expected = rows(rowScan);
+
+        SeqScan scan = new SeqScan(tid, f.getId(), "t");
+        scan.open();
+        TupleBatch batch = scan.nextBatch();
+        assertTrue(batch.size() > 0 && batch.size() <= TupleBatch.CAPACITY);
+        assertEquals(new RecordId(new HeapPageId(f.getId(), 0), 0), batch.getRecordId(0));
+        ArrayList<String> actual = new ArrayList<String>();
+        for (int r = 0; r < batch.size(); r++) {
+            actual.add(batch.getTuple(r).toString());
+        }
+        actual.addAll(batchRows(scan));
+        assertEquals(expected, actual);
+        assertNull(scan.nextBatch());
+
+        scan.rewind();
+        assertEquals(expected, batchRows(scan));
+    }
+
+    /**
+     * A filter's batches hold the tuples it returns one at a time, for every
+     * operator over int and string fields
+     */
+    @Test
+    public void filter() throws Exception {
+        int[] data = randomRows(new Random(3), 3000, width1, 20);
+        Object[] strings = new Object[data.length];
+        for (int i = 0; i < data.length; i++) {
+            strings[i] = i % width1 == 0 ? "s" + data[i] : data[i];
+        }
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(1, op, new IntField(7));
+            Filter rowFilter = new Filter(p, TestUtil.createTupleList(width1, data));
+            rowFilter.open();
+            Filter filter = new Filter(p, TestUtil.createTupleList(width1, data));
+            filter.open();
+            assertEquals(op.toString(), rows(rowFilter), batchRows(filter));
+
+            p = new Predicate(0, op, new StringField("s7", Type.STRING_LEN));
+            rowFilter = new Filter(p, TestUtil.createTupleList(width1, strings));
+            rowFilter.open();
+            filter = new Filter(p, TestUtil.createTupleList(width1, strings));
+            filter.open();
+            assertEquals(op.toString(), rows(rowFilter), batchRows(filter));
+        }
+    }
+
+    /**
+     * A projection's batches hold the projected tuples, including a field
+     * projected twice, of a selection of a selection
+     */
+    @Test
+    public void project() throws Exception {
+        int[] data = randomRows(new Random(5), 2500, width1, 100);
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        ArrayList<Type> types = new ArrayList<Type>();
+        for (int f : new int[]{2, 0, 2}) {
+            fields.add(f);
+            types.add(Type.INT_TYPE);
+        }
+        DbIterator filtered = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50)),
+                new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(30)),
+                        TestUtil.createTupleList(width1, data)));
+        Project project = new Project(fields, types, filtered);
+        project.open();
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < data.length; i += width1) {
+            if (data[i + 1] < 50 && data[i] >= 30) {
+                expected.add(data[i + 2] + "\t" + data[i] + "\t" + data[i + 2]);
+            }
+        }
+        assertEquals(expected, batchRows(project));
+    }
+
+    /**
+     * A hash join's batches hold the tuples it returns one at a time,
+     * whether or not its inputs fit in the hash table
+     */
+    @Test
+    public void hashJoin() throws Exception {
+        Random r = new Random(7);
+        int[] left = randomRows(r, 3000, 2, 400);
+        int[] right = randomRows(r, 2000, width1, 400);
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        for (int budget : new int[]{100000, 300}) {
+            HashEquiJoin rowJoin = new HashEquiJoin(p, TestUtil.createTupleList(2, left),
+                    TestUtil.createTupleList(width1, right), budget);
+            rowJoin.open();
+            ArrayList<String> expected = rows(rowJoin);
+            Collections.sort(expected);
+            assertTrue(expected.size() > TupleBatch.CAPACITY);
+
+            HashEquiJoin join = new HashEquiJoin(p, TestUtil.createTupleList(2, left),
+                    TestUtil.createTupleList(width1, right), budget);
+            join.open();
+            ArrayList<String> actual = batchRows(join);
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+
+            join.rewind();
+            actual = batchRows(join);
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+            join.close();
+        }
+    }
+
+    /**
+     * Merging the batches of a filter into an aggregator gives the groups of
+     * merging its tuples one at a time
+     */
+    @Test
+    public void aggregators() throws Exception {
+        int[] data = randomRows(new Random(9), 2000, width1, 50);
+        Object[] strings = new Object[data.length];
+        for (int i = 0; i < data.length; i++) {
+            strings[i] = i % width1 == 1 ? "s" + data[i] : data[i];
+        }
+        TupleDesc td = Utility.getTupleDesc(width1);
+        TupleDesc std = TestUtil.createTupleList(width1, strings).getTupleDesc();
+        Aggregator[][] pairs = {
+                {new IntegerAggregator(0, Type.INT_TYPE, 2, Aggregator.Op.AVG),
+                        new IntegerAggregator(0, Type.INT_TYPE, 2, Aggregator.Op.AVG)},
+                {new IntegerAggregator(Aggregator.NO_GROUPING, null, 2, Aggregator.Op.MIN),
+                        new IntegerAggregator(Aggregator.NO_GROUPING, null, 2, Aggregator.Op.MIN)},
+                {new IntegerAggregator(1, Type.STRING_TYPE, 2, Aggregator.Op.SUM_COUNT),
+                        new IntegerAggregator(1, Type.STRING_TYPE, 2, Aggregator.Op.SUM_COUNT)},
+                {new StringAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT),
+                        new StringAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT)},
+                {new GroupAggregator(std, new int[]{0, 1}, new int[]{2, 1, 2},
+                        new Aggregator.Op[]{Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.AVG}),
+                        new GroupAggregator(std, new int[]{0, 1}, new int[]{2, 1, 2},
+                        new Aggregator.Op[]{Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.AVG})},
+                {new GroupAggregator(td, new int[]{}, new int[]{0, 2},
+                        new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.COUNT}),
+                        new GroupAggregator(td, new int[]{}, new int[]{0, 2},
+                        new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.COUNT})},
+        };
+        // whether each pair aggregates the rows with a string field 1
+        boolean[] overStrings = {false, false, true, true, true, false};
+        for (int i = 0; i < pairs.length; i++) {
+            Aggregator[] pair = pairs[i];
+            boolean str = overStrings[i];
+            Predicate p = new Predicate(2, Predicate.Op.LESS_THAN, new IntField(40));
+            DbIterator tuples = new Filter(p, str ? TestUtil.createTupleList(width1, strings)
+                    : TestUtil.createTupleList(width1, data));
+            tuples.open();
+            while (tuples.hasNext()) {
+                pair[0].mergeTupleIntoGroup(tuples.next());
+            }
+            BatchIterator batches = new Filter(p, str ? TestUtil.createTupleList(width1, strings)
+                    : TestUtil.createTupleList(width1, data));
+            batches.open();
+            TupleBatch batch;
+            while ((batch = batches.nextBatch()) != null) {
+                pair[1].mergeBatchIntoGroups(batch);
+            }
+            DbIterator expected = pair[0].iterator();
+            expected.open();
+            ArrayList<String> e = rows(expected);
+            Collections.sort(e);
+            DbIterator actual = pair[1].iterator();
+            actual.open();
+            ArrayList<String> a = rows(actual);
+            Collections.sort(a);
+            assertEquals(e, a);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import simpledb.*;
+
+/**
+ * Runs read-only scans of one table from several threads at once against a
+ * partitioned BufferPool, both when the table fits in the pool and when it
+ * has to be evicted from under the scans.
+ */
+public class ConcurrentScanTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 50000;
+
+    /**
+     * Scans the table once in its own transaction and checks the row count.
+     */
+    private static class Scanner extends Thread {
+        private final HeapFile f;
+        private final int rounds;
+        private final AtomicReference<Throwable> error;
+
+        Scanner(HeapFile f, int rounds, AtomicReference<Throwable> error) {
+            this.f = f;
+            this.rounds = rounds;
+            this.error = error;
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < rounds; i++) {
+                    TransactionId tid = new TransactionId();
+                    SeqScan scan = new SeqScan(tid, f.getId(), "t");
+                    scan.open();
+                    int count = 0;
+                    while (scan.hasNext()) {
+                        scan.next();
+                        count++;
+                    }
+                    scan.close();
+                    Database.getBufferPool().transactionComplete(tid);
+                    if (count != ROWS) {
+                        throw new AssertionError("scanned " + count + " rows, expected " + ROWS);
+                    }
+                }
+            } catch (Throwable t) {
+                error.compareAndSet(null, t);
+            }
+        }
+    }
+
+    /**
+     * A HeapFile that counts the reads of each of its pages.
+     */
+    private static class CountingHeapFile extends HeapFile {
+        final AtomicIntegerArray reads;
+
+        CountingHeapFile(File f, TupleDesc td, int pages) {
+            super(f, td);
+            reads = new AtomicIntegerArray(pages);
+        }
+
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet(pid.pageNumber());
+            return super.readPage(pid);
+        }
+
+        public Page[] readPages(int first, int count) {
+            Page[] pages = super.readPages(first, count);
+            for (int i = 0; i < pages.length; i++) {
+                reads.incrementAndGet(first + i);
+            }
+            return pages;
+        }
+    }
+
+    /**
+     * Runs threads scanners concurrently.
+     */
+    private void scanConcurrently(HeapFile f, int threads, int rounds) throws Throwable {
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        ArrayList<Scanner> scanners = new ArrayList<Scanner>();
+        for (int i = 0; i < threads; i++) {
+            scanners.add(new Scanner(f, rounds, error));
+        }
+        for (Scanner s : scanners) {
+            s.start();
+        }
+        for (Scanner s : scanners) {
+            s.join();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Scans of a table that fits in the pool read each of its pages from the
+     * file exactly once between them, however many threads ask for it at once.
+     */
+    @Test
+    public void testTableFitsInPool() throws Throwable {
+        HeapFile created = SystemTestUtil.createRandomHeapFile(2, ROWS, null, new ArrayList<ArrayList<Integer>>());
+        CountingHeapFile f = new CountingHeapFile(created.getFile(), created.getTupleDesc(), created.numPages());
+        Database.getCatalog().addTable(f, "counted");
+        Database.resetBufferPool(256, ReplacementPolicy.Kind.LRU, 4);
+
+        scanConcurrently(f, 8, 4);
+        for (int i = 0; i < f.numPages(); i++) {
+            assertEquals("reads of page " + i, 1, f.reads.get(i));
+        }
+    }
+
+    @Test
+    public void testEvictionUnderConcurrentScans() throws Throwable {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, new ArrayList<ArrayList<Integer>>());
+        // 100 page table, 64 frames in 8 partitions of 8
+        Database.resetBufferPool(64, ReplacementPolicy.Kind.CLOCK, 8);
+
+        scanConcurrently(f, 8, 2);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ConcurrentScanTest.class);
+    }
+}
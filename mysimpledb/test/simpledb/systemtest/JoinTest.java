@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import static org.junit.Assert.assertEquals;
+
 import org.junit.Test;
 
 import simpledb.*;
@@ -52,6 +54,19 @@ public class JoinTest extends SimpleDbTestBase {
         SystemTestUtil.matchTuples(joinOp, expectedResults);
 
         joinOp.close();
+
+        // the hash join must produce the same tuples
+        HashEquiJoin hashJoinOp = new HashEquiJoin(p,
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+        SystemTestUtil.matchTuples(hashJoinOp, expectedResults);
+        hashJoinOp.close();
+
+        // and so must the merge join, over sorted inputs
+        SortMergeJoin mergeJoinOp = new SortMergeJoin(p,
+                new OrderBy(0, true, new SeqScan(tid, table1.getId(), "")),
+                new OrderBy(0, true, new SeqScan(tid, table2.getId(), "")));
+        SystemTestUtil.matchTuples(mergeJoinOp, expectedResults);
+        mergeJoinOp.close();
         Database.getBufferPool().transactionComplete(tid);
     }
 
@@ -73,6 +88,87 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * Joins two random tables with a HashEquiJoin whose hash table holds
+     * budget tuples, checks the result and that its temporary files are gone
+     * once it is closed.
+     */
+    private void validateHashJoin(int rows, int maxValue, int budget)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, null, t2Tuples);
+        int tables = Database.getCatalog().numTables();
+
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin joinOp = new HashEquiJoin(p,
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""), budget);
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        assertEquals(tables, Database.getCatalog().numTables());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Both tables are ten times the hash table budget, so the join has to
+     * partition them to temporary files.
+     */
+    @Test
+    public void testHashJoinSpills()
+            throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(1000, 1000, 100);
+    }
+
+    /**
+     * Partitions are split again when they still do not fit.
+     */
+    @Test
+    public void testHashJoinRepartitions()
+            throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(2000, 2000, 5);
+    }
+
+    /**
+     * When every tuple has the same key no amount of partitioning helps, and
+     * the join has to go through the build side a budget at a time.
+     */
+    @Test
+    public void testHashJoinSingleKeySpills()
+            throws IOException, DbException, TransactionAbortedException {
+        int rows = 300;
+        HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+        columnSpecification.put(0, 1);
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, columnSpecification, null);
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, columnSpecification, null);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin joinOp = new HashEquiJoin(p,
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""), rows / 10);
+        joinOp.open();
+        int count = 0;
+        while (joinOp.hasNext()) {
+            Tuple t = joinOp.next();
+            assertEquals(t.getField(0), t.getField(COLUMNS));
+            count++;
+        }
+        joinOp.close();
+        assertEquals(rows * rows, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /**
      * Make test compatible with older version of ant.
      */
@@ -3,9 +3,12 @@ package simpledb.systemtest;
 import org.junit.Test;
 import simpledb.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Iterator;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -55,4 +58,118 @@ public class LogNoForceTest extends LogTestBase {
                 Arrays.equals(before.getPageData(), after.getPageData()));
     }
 
+    /**
+     * The background writer writes a committed page soon after the commit,
+     * leaving out the changes of a transaction that dirtied it since.
+     */
+    @Test(timeout = 20000)
+    public void testWriteBehind()
+            throws InterruptedException, TransactionAbortedException, IOException, DbException {
+        setup();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 10, 0);
+        t1.commit();
+
+        // dirty the page again before it is written
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 11, 0);
+
+        while (countOnDisk(hf1, 10) == 0) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, countOnDisk(hf1, 11));
+        t2.abort();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        look(hf1, t3, 10, true);
+        look(hf1, t3, 11, false);
+        t3.commit();
+
+        crash();
+
+        Transaction t4 = new Transaction();
+        t4.start();
+        look(hf1, t4, 10, true);
+        look(hf1, t4, 11, false);
+        t4.commit();
+    }
+
+    /**
+     * A HeapFile whose page writes fail while fail is set.
+     */
+    private static class FailingHeapFile extends HeapFile {
+        volatile boolean fail = true;
+
+        FailingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        public void writePage(Page page) throws IOException {
+            if (fail) {
+                throw new IOException("disk full");
+            }
+            super.writePage(page);
+        }
+    }
+
+    /**
+     * A page the background writer fails to write is reported by the next
+     * flush, not by the commits of other transactions, and written by a
+     * later flush.
+     */
+    @Test(timeout = 20000)
+    public void testWriteBehindFailure()
+            throws InterruptedException, TransactionAbortedException, IOException, DbException {
+        setup();
+        FailingHeapFile failing = new FailingHeapFile(hf1.getFile(), hf1.getTupleDesc());
+        Database.getCatalog().addTable(failing, "failing");
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(failing, t1, 10, 0);
+        t1.commit();
+
+        while (Database.getBufferPool().getWriteFailure() == null) {
+            Thread.sleep(50);
+        }
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(failing, t2, 11, 0);
+        Database.getBufferPool().logDirtyPages(t2.getId());
+        Database.getLogFile().logCommit(t2.getId());
+        Database.getBufferPool().transactionComplete(t2.getId(), true);
+        assertTrue(Database.getBufferPool().getWriteFailure() != null);
+
+        failing.fail = false;
+        try {
+            Database.getBufferPool().flushAllPages();
+            fail("expected the failed write to be reported");
+        } catch (IOException expected) {
+        }
+        assertEquals(null, Database.getBufferPool().getWriteFailure());
+        Database.getBufferPool().flushAllPages();
+        assertEquals(1, countOnDisk(hf1, 10));
+        assertEquals(1, countOnDisk(hf1, 11));
+    }
+
+    // the number of tuples on disk whose first field is v1
+    private int countOnDisk(HeapFile hf, int v1) {
+        int count = 0;
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                if (((IntField) it.next().getField(0)).getValue() == v1) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
 }
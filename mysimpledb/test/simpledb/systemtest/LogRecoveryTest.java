@@ -9,6 +9,8 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+
 /**
  * User: mhay
  * Date: 11/14/14 4:17 PM
@@ -393,4 +395,53 @@ public class LogRecoveryTest extends LogTestBase {
         t.commit();
 
     }
+
+    @Test(timeout = 20000)
+    public void TestGroupCommitCrash()
+            throws Exception {
+        setup();
+
+        // *** Test:
+        // T1 and T2 commit at the same time, sharing a force of the log;
+        // crash, recover: both should be there
+        final Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1, 0);
+        final Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 2, 0);
+
+        LogFile.setGroupCommitMillis(500);
+        int forces = Database.getLogFile().getForceCount();
+        try {
+            final IOException[] error = new IOException[1];
+            Thread other = new Thread() {
+                public void run() {
+                    try {
+                        t2.commit();
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            other.start();
+            t1.commit();
+            other.join();
+            if (error[0] != null) {
+                throw error[0];
+            }
+        } finally {
+            LogFile.resetGroupCommitMillis();
+        }
+        assertEquals("forces of the log for both commits",
+                forces + 1, Database.getLogFile().getForceCount());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 2, true);
+        t.commit();
+    }
 }
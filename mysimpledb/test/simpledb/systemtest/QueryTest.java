@@ -3,18 +3,38 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
+import simpledb.Aggregate;
 import simpledb.BufferPool;
 import simpledb.Database;
 import simpledb.DbException;
+import simpledb.DbIterator;
+import simpledb.Gather;
 import simpledb.HeapFile;
 import simpledb.HeapFileEncoder;
+import simpledb.IntField;
+import simpledb.Limit;
+import simpledb.LogicalPlan;
+import simpledb.Operator;
+import simpledb.OrderBy;
 import simpledb.Parser;
+import simpledb.ParsingException;
 import simpledb.TableStats;
+import simpledb.TopN;
 import simpledb.Transaction;
 import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+import simpledb.Tuple;
 import simpledb.Utility;
 
 public class QueryTest {
@@ -84,6 +104,168 @@ public class QueryTest {
         p.processNextStatement("SELECT * FROM emp,dept,hobbies,hobby WHERE emp.c1 = dept.c0 AND hobbies.c0 = emp.c2 AND hobbies.c1 = hobby.c0 AND emp.c3 < 1000;");
     }
 
+    /**
+     * Plans and runs a query, returning the fields of each result tuple.
+     */
+    private static ArrayList<ArrayList<Integer>> runQuery(String sql, HashMap<String, TableStats> stats,
+                                               Class<?> top)
+            throws ParsingException, DbException, TransactionAbortedException, IOException {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = new Parser().generateLogicalPlan(tid, sql).physicalPlan(tid, stats, false);
+        // under the final projection
+        assertTrue(top.isInstance(((Operator) plan).getChildren()[0]));
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                row.add(((IntField) t.getField(i)).getValue());
+            }
+            out.add(row);
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return out;
+    }
+
+    private static ArrayList<Integer> firstColumn(ArrayList<ArrayList<Integer>> rows) {
+        ArrayList<Integer> column = new ArrayList<Integer>();
+        for (ArrayList<Integer> row : rows) {
+            column.add(row.get(0));
+        }
+        return column;
+    }
+
+    @Test
+    public void limitTest() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, 500, null, tuples, "c");
+        Database.getCatalog().addTable(table, "lim");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("lim", new TableStats(table.getId(), 1));
+
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            keys.add(t.get(0));
+        }
+        Collections.sort(keys);
+        assertEquals(keys.subList(0, 10), firstColumn(
+                runQuery("SELECT * FROM lim ORDER BY lim.c0 LIMIT 10;", stats, TopN.class)));
+        Collections.sort(keys, Collections.reverseOrder());
+        assertEquals(keys.subList(0, 25), firstColumn(
+                runQuery("SELECT * FROM lim ORDER BY lim.c0 DESC limit 25 ;", stats, TopN.class)));
+        assertEquals(7, runQuery("SELECT * FROM lim LIMIT 7;", stats, Limit.class).size());
+        assertEquals(0, runQuery("SELECT * FROM lim LIMIT 0;", stats, Limit.class).size());
+    }
+
+    @Test
+    public void orderByTest() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, 20, null, tuples, "c");
+        Database.getCatalog().addTable(table, "oby");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("oby", new TableStats(table.getId(), 1));
+
+        Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+                int c = t1.get(0).compareTo(t2.get(0));
+                return c != 0 ? c : t2.get(1).compareTo(t1.get(1));
+            }
+        });
+        assertEquals(tuples, runQuery("SELECT * FROM oby ORDER BY oby.c0, oby.c1 DESC;",
+                stats, OrderBy.class));
+        assertEquals(tuples.subList(0, 30), runQuery(
+                "SELECT * FROM oby ORDER BY oby.c0 ASC, oby.c1 DESC LIMIT 30;", stats, TopN.class));
+    }
+
+    @Test
+    public void groupByTest() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 1000, 5, null, tuples, "c");
+        Database.getCatalog().addTable(table, "gby");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("gby", new TableStats(table.getId(), 1));
+
+        // c1, sum, c0, count and max of each group, in the order of the select list
+        HashMap<List<Integer>, ArrayList<Integer>> groups = new HashMap<List<Integer>, ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            List<Integer> key = t.subList(0, 2);
+            ArrayList<Integer> g = groups.get(key);
+            if (g == null) {
+                g = new ArrayList<Integer>(Arrays.asList(t.get(1), 0, t.get(0), 0, Integer.MIN_VALUE));
+                groups.put(key, g);
+            }
+            g.set(1, g.get(1) + t.get(2));
+            g.set(3, g.get(3) + 1);
+            g.set(4, Math.max(g.get(4), t.get(2)));
+        }
+        ArrayList<String> expected = new ArrayList<String>();
+        for (ArrayList<Integer> g : groups.values()) {
+            expected.add(g.toString());
+        }
+        Collections.sort(expected);
+
+        ArrayList<String> actual = new ArrayList<String>();
+        for (ArrayList<Integer> row : runQuery("SELECT gby.c1, SUM(gby.c2), gby.c0, COUNT(gby.c2), MAX(gby.c2) "
+                + "FROM gby GROUP BY gby.c0, gby.c1;", stats, Aggregate.class)) {
+            actual.add(row.toString());
+        }
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Returns the rows of a query's result as sorted strings.
+     */
+    private static ArrayList<String> sorted(ArrayList<ArrayList<Integer>> rows) {
+        ArrayList<String> out = new ArrayList<String>();
+        for (ArrayList<Integer> row : rows) {
+            out.add(row.toString());
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    @Test(timeout = 60000)
+    public void parallelTest() throws Exception {
+        HeapFile big1 = SystemTestUtil.createRandomHeapFile(2, 20000, 2000, null, null, "c");
+        HeapFile big2 = SystemTestUtil.createRandomHeapFile(2, 10000, 2000, null, null, "c");
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 200, 2000, null, null, "c");
+        Database.getCatalog().addTable(big1, "big1");
+        Database.getCatalog().addTable(big2, "big2");
+        Database.getCatalog().addTable(small, "small");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("big1", new TableStats(big1.getId(), 1));
+        stats.put("big2", new TableStats(big2.getId(), 1));
+        stats.put("small", new TableStats(small.getId(), 1));
+
+        String[] queries = {
+                "SELECT * FROM big1 WHERE big1.c1 < 700;",
+                "SELECT * FROM big1, small WHERE big1.c0 = small.c0;",
+                "SELECT * FROM big1, big2 WHERE big1.c0 = big2.c1 AND big2.c0 < 100;",
+                "SELECT big1.c1, SUM(big1.c0), COUNT(big1.c0) FROM big1 GROUP BY big1.c1;",
+                "SELECT AVG(big2.c0) FROM big2 WHERE big2.c1 > 1000;",
+                "SELECT * FROM big2, big1 WHERE big2.c0 < big1.c0 AND big1.c1 < 3;",
+        };
+        Class<?>[] tops = {Gather.class, Gather.class, Gather.class, Gather.class,
+                Aggregate.class, Gather.class};
+        ArrayList<ArrayList<String>> expected = new ArrayList<ArrayList<String>>();
+        for (String q : queries) {
+            expected.add(sorted(runQuery(q, stats, Operator.class)));
+        }
+        // split the big tables but not the small one
+        LogicalPlan.setParallelism(4, 10);
+        try {
+            for (int i = 0; i < queries.length; i++) {
+                assertEquals(queries[i], expected.get(i), sorted(runQuery(queries[i], stats, tops[i])));
+            }
+            assertEquals(5, runQuery("SELECT * FROM big1 LIMIT 5;", stats, Limit.class).size());
+        } finally {
+            LogicalPlan.resetParallelism();
+        }
+    }
+
     /**
      * Build a large series of tables; then run the command-line query code and execute a query.
      * The number of tables is large enough that the query will only succeed within the
@@ -111,6 +111,13 @@ public class ScanTest extends SimpleDbTestBase {
                 return super.readPage(pid);
             }
 
+            @Override
+            public Page[] readPages(int first, int count) {
+                Page[] pages = super.readPages(first, count);
+                readCount += pages.length;
+                return pages;
+            }
+
             public int readCount = 0;
         }
 
@@ -132,6 +139,71 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /**
+     * Verifies that a sequential scan has the buffer pool read the following
+     * pages ahead, each page still being read once.
+     */
+    @Test(timeout = 20000)
+    public void testReadAhead() throws Exception {
+        /** Counts the pages read, and those read ahead. */
+        class InstrumentedHeapFile extends HeapFile {
+            public InstrumentedHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public synchronized Page readPage(PageId pid) throws NoSuchElementException {
+                readCount += 1;
+                return super.readPage(pid);
+            }
+
+            @Override
+            public synchronized Page[] readPages(int first, int count) {
+                Page[] pages = super.readPages(first, count);
+                readCount += pages.length;
+                readAheadCount += pages.length;
+                return pages;
+            }
+
+            public int readCount = 0;
+            public int readAheadCount = 0;
+        }
+
+        final int PAGES = 30;
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * PAGES, 1000, null, null);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        int window = Math.min(BufferPool.getReadAheadPages(), BufferPool.DEFAULT_PAGES / 4);
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        // read into the second page, which continues a run of the first
+        for (int i = 0; i <= 992; i++) {
+            it.next();
+        }
+        while (true) {
+            synchronized (table) {
+                if (table.readCount == 2 + window) {
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+        int n = 993;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(992 * PAGES, n);
+        synchronized (table) {
+            assertEquals(PAGES, table.readCount);
+            assertTrue(table.readAheadCount >= window);
+        }
+    }
+
     /**
      * Make test compatible with older version of ant.
      */